@@ -0,0 +1,57 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Throughput of process lifetimes (reg, start, schedule, terminate) with 32 threads competing
+// for the processors, with the given number of priority levels in use. The competing processes
+// all run on the lowest level, so every dispatch has to look past the higher ones. (Spreading
+// the threads over the levels would starve the low priority ones under strict priority, and
+// JMH keeps finished threads running until the last thread ends its iteration, so the run
+// would never end.)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(32)
+@Fork(1)
+public class ContentionBenchmark {
+    @Param({"OS", "ShardedOS"})
+    public String implementation;
+
+    @Param({"1", "2", "8", "32"})
+    public int processors;
+
+    @Param({"1", "4", "64"})
+    public int levels;
+
+    private Scheduler os;
+
+    @Setup
+    public void setUp() {
+        os = Scheduler.create(implementation, processors);
+        for (int priority = 0; priority < levels - 1; priority++) os.reg(priority); // Keep the higher levels in use
+    }
+
+    @Benchmark
+    public int startScheduleTerminate() {
+        int pid = os.reg(levels - 1);
+        os.start(pid);
+        os.schedule(pid);
+        os.terminate(pid);
+        return pid;
+    }
+}
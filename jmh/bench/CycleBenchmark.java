@@ -0,0 +1,51 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Latency of one uncontended process lifetime - reg, start, schedule and terminate - with the
+// given number of priority levels in use and the process on the lowest priority level.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CycleBenchmark {
+    @Param({"OS", "ShardedOS"})
+    public String implementation;
+
+    @Param({"1", "2", "8", "32"})
+    public int processors;
+
+    @Param({"1", "4", "64"})
+    public int levels;
+
+    private Scheduler os;
+
+    @Setup
+    public void setUp() {
+        os = Scheduler.create(implementation, processors);
+        for (int priority = 0; priority < levels - 1; priority++) os.reg(priority); // Keep every level in use
+    }
+
+    @Benchmark
+    public int startScheduleTerminate() {
+        int pid = os.reg(levels - 1);
+        os.start(pid);
+        os.schedule(pid);
+        os.terminate(pid);
+        return pid;
+    }
+}
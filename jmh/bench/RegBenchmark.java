@@ -0,0 +1,47 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Registration throughput. Each registered process is terminated straight away (without being
+// started) so the process table stays the same size for the whole run.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegBenchmark {
+    @Param({"OS", "ShardedOS"})
+    public String implementation;
+
+    @Param({"1", "4", "64"})
+    public int levels;
+
+    private Scheduler os;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        os = Scheduler.create(implementation, 1);
+        for (int priority = 0; priority < levels; priority++) os.reg(priority); // Keep every level in use
+    }
+
+    @Benchmark
+    public int regThenTerminate() {
+        int pid = os.reg(next++ % levels);
+        os.terminate(pid);
+        return pid;
+    }
+}
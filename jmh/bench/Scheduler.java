@@ -0,0 +1,87 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+// An OS_sim_interface implementation, created and called by name.
+//
+// The simulation classes live in the default package, which code in a named package (as JMH
+// requires for benchmarks) can't import, so the interface methods are called through method
+// handles bound to the instance. invokeExact on a bound handle costs a few ns per call, the
+// same for every implementation, so comparisons between implementations are unaffected.
+public final class Scheduler {
+    private static final MethodType INT_TO_VOID = MethodType.methodType(void.class, int.class);
+    private static final MethodType INT_TO_INT = MethodType.methodType(int.class, int.class);
+
+    private final MethodHandle setNumberOfProcessors;
+    private final MethodHandle reg;
+    private final MethodHandle start;
+    private final MethodHandle schedule;
+    private final MethodHandle terminate;
+
+    private Scheduler(Object os) throws ReflectiveOperationException {
+        Class<?> api = Class.forName("OS_sim_interface");
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        setNumberOfProcessors = lookup.findVirtual(api, "set_number_of_processors", INT_TO_VOID).bindTo(os);
+        reg = lookup.findVirtual(api, "reg", INT_TO_INT).bindTo(os);
+        start = lookup.findVirtual(api, "start", INT_TO_VOID).bindTo(os);
+        schedule = lookup.findVirtual(api, "schedule", INT_TO_VOID).bindTo(os);
+        terminate = lookup.findVirtual(api, "terminate", INT_TO_VOID).bindTo(os);
+    }
+
+    // Create an implementation with the given number of processors: "OS", or "ShardedOS" (one shard per processor)
+    public static Scheduler create(String implementation, int processors) {
+        try {
+            Class<?> type = Class.forName(implementation);
+            Object os = implementation.equals("ShardedOS")
+                    ? type.getConstructor(int.class).newInstance(processors)
+                    : type.getConstructor().newInstance();
+            Scheduler scheduler = new Scheduler(os);
+            scheduler.setNumberOfProcessors(processors);
+            return scheduler;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Cannot create OS_sim_interface implementation " + implementation, e);
+        }
+    }
+
+    public void setNumberOfProcessors(int nProcessors) {
+        try {
+            setNumberOfProcessors.invokeExact(nProcessors);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    public int reg(int priority) {
+        try {
+            return (int) reg.invokeExact(priority);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    public void start(int pid) {
+        try {
+            start.invokeExact(pid);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    public void schedule(int pid) {
+        try {
+            schedule.invokeExact(pid);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    public void terminate(int pid) {
+        try {
+            terminate.invokeExact(pid);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+import java.util.Arrays;
+
+// Admission control for the OS line (see OS.setAdmissionControl): limits on how many processes
+// may wait for a processor - across all priorities and for any one priority - and what happens to
+// a start that finds the line full:
+//   BLOCK        the start waits, out of line, until there is room (first come first served
+//                among the starts that would fit), then joins the line as usual
+//   FAIL_FAST    the start returns straight away without a processor (OS.startStatus returns
+//                REJECTED, OS.start(pid, timeout) false), and the process stays registered
+//   SHED_LOWEST  if the whole line is full and the process the policy would dispatch last has a
+//                lower priority (higher value), that process is taken out of line to make room - its
+//                start or schedule returns without a processor, as if cancelled (startStatus returns
+//                SHED) - otherwise the start is rejected as for FAIL_FAST. Gangs are never shed: if
+//                a gang is last, the last lower priority process in line before it is shed instead.
+// Only starts that can report the outcome (startStatus, the timed start, startAsync, admitBatch) are
+// rejected. The untimed start(pid) has no way to return without a processor, so it waits for room in
+// every mode, and a process shed while waiting in the untimed start or schedule goes back to waiting
+// for room (as under BLOCK) rather than returning.
+// Only starts are limited. A process rejoining the line in schedule was admitted already and gave
+// up a processor to rejoin, so the line can be over its limit by at most the number of processors.
+// A gang takes up one place in line, at the priority of its first member in, from then until it is
+// dispatched or its last member leaves: the rest of its members join it without waiting for room, so
+// a gang bigger than the limits is never left waiting for room only its own dispatch would make.
+//
+// This class is NOT thread safe - once it is handed to an OS, all access must be guarded by the
+// OS lock. Set the limits before handing it over. Stats are immutable copies.
+
+public class AdmissionControl {
+    // What a start that finds the line full does
+    public static final int BLOCK = 0;
+    public static final int FAIL_FAST = 1;
+    public static final int SHED_LOWEST = 2;
+    // Outcomes of OS.startStatus
+    public static final int DISPATCHED = 0; // Has a processor
+    public static final int REJECTED = 1; // Turned away - the line was full
+    public static final int SHED = 2; // Taken out of line to make room for a higher priority process
+    public static final int WITHDRAWN = 3; // Stopped waiting - timed out, interrupted or cancelled
+    public static final int UNKNOWN_PROCESS = 4; // Not registered
+
+    public static final int NONE = -1;
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final int mode;
+    private final int lineLimit;
+    private int depth = 0; // Processes in line
+    private int peakDepth = 0;
+    private long admitted = 0; // Starts let into the line (straight away or after blocking)
+    private long rejected = 0;
+    private long shed = 0;
+    private long blockedStarts = 0; // Starts that had to wait for room
+
+    // Per-priority limits and counters, kept in priority order and looked up by binary search
+    private int priorityCount = 0;
+    private int[] priorities = new int[8];
+    private int[] limits = new int[8];
+    private int[] depths = new int[8];
+    private int[] peakDepths = new int[8];
+    private long[] rejections = new long[8];
+    private long[] sheds = new long[8];
+
+    // Starts blocked for room, first come first served - an intrusive doubly linked list by slot
+    private int[] next = new int[16];
+    private int[] prev = new int[16];
+    private int head = NONE;
+    private int tail = NONE;
+    private int blocked = 0;
+
+    // lineLimit is the most processes that may wait across every priority (UNLIMITED for no limit)
+    public AdmissionControl(int mode, int lineLimit) {
+        this.mode = mode == FAIL_FAST || mode == SHED_LOWEST ? mode : BLOCK;
+        this.lineLimit = Math.max(1, lineLimit);
+    }
+
+    // Limit the processes of one priority that may wait (at least 1, so every priority can make progress)
+    public AdmissionControl setPriorityLimit(int priority, int limit) {
+        limits[indexOf(priority)] = Math.max(1, limit);
+        return this;
+    }
+
+    public int mode() {
+        return mode;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > next.length) {
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+        }
+    }
+
+    // Whether a process of the given priority may join the line now
+    public boolean hasRoom(int priority) {
+        return depth < lineLimit && !priorityFull(priority);
+    }
+
+    // Whether the whole line is at its limit
+    public boolean lineFull() {
+        return depth >= lineLimit;
+    }
+
+    public boolean priorityFull(int priority) {
+        int index = Arrays.binarySearch(priorities, 0, priorityCount, priority);
+        return index >= 0 && depths[index] >= limits[index];
+    }
+
+    // A process has joined the line
+    public void joined(int priority) {
+        int index = indexOf(priority);
+        if (++depths[index] > peakDepths[index]) peakDepths[index] = depths[index];
+        if (++depth > peakDepth) peakDepth = depth;
+    }
+
+    // A process has left the line - dispatched, withdrawn or shed
+    public void left(int priority) {
+        int index = indexOf(priority);
+        if (depths[index] > 0) depths[index]--;
+        if (depth > 0) depth--;
+    }
+
+    public void admitted() {
+        admitted++;
+    }
+
+    public void rejected(int priority) {
+        rejections[indexOf(priority)]++;
+        rejected++;
+    }
+
+    public void shed(int priority) {
+        sheds[indexOf(priority)]++;
+        shed++;
+    }
+
+    // Forget every process in line, to count them again (OS.setAdmissionControl)
+    public void clearDepths() {
+        depth = 0;
+        Arrays.fill(depths, 0, priorityCount, 0);
+    }
+
+    // Add a start to the back of the blocked list
+    public void block(int slot) {
+        next[slot] = NONE;
+        prev[slot] = tail;
+        if (tail == NONE) head = slot; else next[tail] = slot;
+        tail = slot;
+        blocked++;
+        blockedStarts++;
+    }
+
+    // Take a start off the blocked list, from anywhere in it
+    public void unblock(int slot) {
+        int before = prev[slot];
+        int after = next[slot];
+        if (before == NONE) head = after; else next[before] = after;
+        if (after == NONE) tail = before; else prev[after] = before;
+        blocked--;
+    }
+
+    // First blocked start, or NONE
+    public int firstBlocked() {
+        return head;
+    }
+
+    // Blocked start after the given one, or NONE
+    public int nextBlocked(int slot) {
+        return next[slot];
+    }
+
+    public int blocked() {
+        return blocked;
+    }
+
+    public Stats stats() {
+        return new Stats(this);
+    }
+
+    // Helper Function - Find the limit and counters of a priority, adding them if this is the first time it is seen
+    private int indexOf(int priority) {
+        int index = Arrays.binarySearch(priorities, 0, priorityCount, priority);
+        if (index >= 0) return index;
+        index = -index - 1;
+        if (priorityCount == priorities.length) {
+            int capacity = priorityCount * 2;
+            priorities = Arrays.copyOf(priorities, capacity);
+            limits = Arrays.copyOf(limits, capacity);
+            depths = Arrays.copyOf(depths, capacity);
+            peakDepths = Arrays.copyOf(peakDepths, capacity);
+            rejections = Arrays.copyOf(rejections, capacity);
+            sheds = Arrays.copyOf(sheds, capacity);
+        }
+        int behind = priorityCount - index;
+        System.arraycopy(priorities, index, priorities, index + 1, behind);
+        System.arraycopy(limits, index, limits, index + 1, behind);
+        System.arraycopy(depths, index, depths, index + 1, behind);
+        System.arraycopy(peakDepths, index, peakDepths, index + 1, behind);
+        System.arraycopy(rejections, index, rejections, index + 1, behind);
+        System.arraycopy(sheds, index, sheds, index + 1, behind);
+        priorities[index] = priority;
+        limits[index] = UNLIMITED;
+        depths[index] = 0;
+        peakDepths[index] = 0;
+        rejections[index] = 0;
+        sheds[index] = 0;
+        priorityCount++;
+        return index;
+    }
+
+    // An immutable copy of the depths and counters at one point in time
+    public static class Stats {
+        public final int depth; // Processes in line
+        public final int peakDepth;
+        public final int blocked; // Starts waiting for room now
+        public final long admitted;
+        public final long rejected;
+        public final long shed;
+        public final long blockedStarts;
+        public final int[] priorities; // The priorities seen so far, highest priority (lowest value) first
+        public final int[] limits; // UNLIMITED where a priority has no limit of its own
+        public final int[] depths;
+        public final int[] peakDepths;
+        public final long[] rejections;
+        public final long[] sheds;
+
+        private Stats(AdmissionControl control) {
+            depth = control.depth;
+            peakDepth = control.peakDepth;
+            blocked = control.blocked;
+            admitted = control.admitted;
+            rejected = control.rejected;
+            shed = control.shed;
+            blockedStarts = control.blockedStarts;
+            int n = control.priorityCount;
+            priorities = Arrays.copyOf(control.priorities, n);
+            limits = Arrays.copyOf(control.limits, n);
+            depths = Arrays.copyOf(control.depths, n);
+            peakDepths = Arrays.copyOf(control.peakDepths, n);
+            rejections = Arrays.copyOf(control.rejections, n);
+            sheds = Arrays.copyOf(control.sheds, n);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(String.format("admission: depth=%d peak depth=%d blocked now=%d admitted=%d rejected=%d shed=%d blocked starts=%d%n",
+                    depth, peakDepth, blocked, admitted, rejected, shed, blockedStarts));
+            for (int i = 0; i < priorities.length; i++) {
+                report.append(String.format("  priority %d: limit=%s depth=%d peak depth=%d rejected=%d shed=%d%n", priorities[i],
+                        limits[i] == UNLIMITED ? "none" : String.valueOf(limits[i]), depths[i], peakDepths[i], rejections[i], sheds[i]));
+            }
+            return report.toString();
+        }
+    }
+}
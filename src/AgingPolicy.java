@@ -0,0 +1,87 @@
+import java.util.Arrays;
+
+// Strict priority with aging: a process that has been passed over for 'agingStep' dispatches
+// while in line ranks as if its priority were one level higher, and so on, so a low priority
+// process waits for (priority difference x agingStep) dispatches behind a stream of higher
+// priority ones - plus any already in line at its new rank - instead of starving.
+//
+// Waiting time is counted in dispatches, not wall time, so the order is the same on every run.
+// Ranking by priority - dispatches waited / agingStep is the same as ranking by the fixed key
+// priority x agingStep + dispatch count on joining the line, so each process is keyed once, on
+// enqueue, into a SlotHeap: O(log n) per operation. Equal keys are FIFO.
+//
+// NOT thread safe - see SchedulingPolicy.
+
+public class AgingPolicy implements SchedulingPolicy {
+    private final long agingStep;
+    private final SlotHeap line = new SlotHeap();
+    private int[] priorities = new int[16]; // By slot
+    private long dispatches = 0;
+
+    public AgingPolicy(int agingStep) {
+        this.agingStep = Math.max(1, agingStep);
+    }
+
+    @Override
+    public void ensureCapacity(int capacity) {
+        if (capacity > priorities.length) priorities = Arrays.copyOf(priorities, capacity);
+        line.ensureCapacity(capacity);
+    }
+
+    @Override
+    public void register(int slot, int priority) {
+        priorities[slot] = priority;
+    }
+
+    @Override
+    public void unregister(int slot) {
+    }
+
+    @Override
+    public void setPriority(int slot, int priority, boolean inLine) {
+        if (inLine) line.changeKey(slot, line.keyOf(slot) + (priority - priorities[slot]) * agingStep); // Keeping the age it has built up
+        priorities[slot] = priority;
+    }
+
+    @Override
+    public void enqueue(int slot) {
+        line.add(slot, priorities[slot] * agingStep + dispatches);
+    }
+
+    @Override
+    public int peek() {
+        return line.peek();
+    }
+
+    @Override
+    public int last() {
+        return line.last();
+    }
+
+    @Override
+    public int poll() {
+        int slot = line.poll();
+        if (slot != NONE) dispatches++;
+        return slot;
+    }
+
+    @Override
+    public void remove(int slot) {
+        line.remove(slot);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return line.isEmpty();
+    }
+
+    @Override
+    public int line(int[] into) {
+        return line.inOrder(into);
+    }
+
+    @Override
+    public int priorityOf(int slot) {
+        return priorities[slot];
+    }
+}
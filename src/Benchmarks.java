@@ -0,0 +1,725 @@
+// Micro benchmarks for the OS simulation - run with "java Benchmarks"
+// These print their measurements rather than pass/fail, so use them to compare builds.
+
+//Note that you may use *any* classes in this Benchmarks class that are available in SE 17.
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class Benchmarks {
+
+	public static void main(String[] args) {
+		Benchmarks benchmarks = new Benchmarks();
+		benchmarks.schedule_cycle_allocation_benchmark();
+		benchmarks.priority_levels_benchmark(8);
+		benchmarks.priority_levels_benchmark(64);
+		benchmarks.priority_levels_benchmark(1024);
+		benchmarks.handoff_latency_benchmark();
+		benchmarks.heap_footprint_benchmark();
+		for (int depth : new int[] {10, 1_000, 10_000, 100_000}) benchmarks.ready_queue_depth_benchmark(depth);
+		benchmarks.processor_scaling_benchmark();
+		benchmarks.metrics_overhead_benchmark();
+		benchmarks.batch_registration_benchmark();
+		benchmarks.trace_overhead_benchmark();
+		benchmarks.hot_add_benchmark(new OS());
+		benchmarks.hot_add_benchmark(new ShardedOS(4));
+		benchmarks.async_throughput_benchmark();
+		benchmarks.policy_tail_latency_benchmark();
+		benchmarks.gang_utilization_benchmark(false);
+		benchmarks.gang_utilization_benchmark(true);
+		for (int depth : new int[] {1_000, 100_000}) benchmarks.renice_queued_benchmark(depth);
+		benchmarks.renice_contention_benchmark(false);
+		benchmarks.renice_contention_benchmark(true);
+		benchmarks.federation_scaling_benchmark();
+		benchmarks.checkpoint_benchmark(new StrictPriorityPolicy());
+		benchmarks.checkpoint_benchmark(new AgingPolicy(64));
+		benchmarks.admission_overload_benchmark(null);
+		benchmarks.admission_overload_benchmark(new AdmissionControl(AdmissionControl.BLOCK, 32));
+		benchmarks.admission_overload_benchmark(new AdmissionControl(AdmissionControl.FAIL_FAST, 32));
+		benchmarks.admission_overload_benchmark(new AdmissionControl(AdmissionControl.SHED_LOWEST, 32));
+	}
+
+	//Bytes allocated so far by the calling thread (HotSpot specific)
+	long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+	}
+
+	public void schedule_cycle_allocation_benchmark() {
+		System.out.println("\n\n\n*********** Schedule cycle allocation *************");
+
+		//Single processor, single thread: every schedule call re-queues and immediately re-dispatches the caller
+		OS os = new OS();
+		os.set_number_of_processors(1);
+		for (int i = 0; i < 1000; i++) os.reg(1); //Push the measured pid well outside the Integer cache (-128..127)
+		int pid = os.reg(1);
+		os.start(pid);
+
+		int warmup = 200_000;
+		int cycles = 2_000_000;
+		for (int i = 0; i < warmup; i++) os.schedule(pid);
+
+		long bytesBefore = allocatedBytes();
+		long timeBefore = System.nanoTime();
+		for (int i = 0; i < cycles; i++) os.schedule(pid);
+		long elapsed = System.nanoTime() - timeBefore;
+		long allocated = allocatedBytes() - bytesBefore;
+		os.terminate(pid);
+
+		System.out.println("schedule cycles = " + cycles);
+		System.out.println("bytes allocated per cycle = " + String.format("%.2f", (double) allocated / cycles));
+		System.out.println("ns per cycle = " + String.format("%.1f", (double) elapsed / cycles));
+	}
+
+	public void priority_levels_benchmark(int levels) {
+		System.out.println("\n\n\n*********** Priority levels = " + levels + " *************");
+
+		//A process on the lowest priority level re-schedules itself with every higher level registered but empty,
+		//so each cycle has to establish that no higher priority process is ready
+		OS os = new OS();
+		os.set_number_of_processors(1);
+		for (int priority = 0; priority < levels - 1; priority++) os.reg(priority);
+		int pid = os.reg(levels - 1);
+		os.start(pid);
+
+		int warmup = 200_000;
+		int cycles = 1_000_000;
+		for (int i = 0; i < warmup; i++) os.schedule(pid);
+
+		long timeBefore = System.nanoTime();
+		for (int i = 0; i < cycles; i++) os.schedule(pid);
+		long elapsed = System.nanoTime() - timeBefore;
+		os.terminate(pid);
+
+		System.out.println("ns per schedule cycle = " + String.format("%.1f", (double) elapsed / cycles));
+	}
+
+	//Written by the process giving up the processor just before it calls schedule, read by the process it wakes.
+	//The OS lock orders the write before the read.
+	long handoffStart;
+
+	public void handoff_latency_benchmark() {
+		System.out.println("\n\n\n*********** Wakeup-to-run latency *************");
+
+		//Two processes ping-pong a single processor: each schedule call hands it straight to the other process
+		OS os = new OS();
+		os.set_number_of_processors(1);
+		int handoffs = 200_000;
+		long[][] latencies = new long[2][handoffs];
+		Thread[] processes = new Thread[2];
+		for (int p = 0; p < 2; p++) {
+			int pid = os.reg(1);
+			long[] samples = latencies[p];
+			processes[p] = new Thread(() -> {
+				os.start(pid);
+				for (int i = 0; i < handoffs; i++) {
+					handoffStart = System.nanoTime();
+					os.schedule(pid);
+					samples[i] = System.nanoTime() - handoffStart;
+				}
+				os.terminate(pid);
+			});
+		}
+		long timeBefore = System.nanoTime();
+		for (Thread process : processes) process.start();
+		for (Thread process : processes) {
+			try {process.join();} catch (InterruptedException e) {e.printStackTrace();}
+		}
+		long elapsed = System.nanoTime() - timeBefore;
+
+		//The first schedule of the process that started second did not follow a hand-off, so drop the first sample of each
+		long[] all = new long[2 * (handoffs - 1)];
+		System.arraycopy(latencies[0], 1, all, 0, handoffs - 1);
+		System.arraycopy(latencies[1], 1, all, handoffs - 1, handoffs - 1);
+		Arrays.sort(all);
+		System.out.println("hand-offs = " + 2 * handoffs + ", hand-offs per second = " + (long) (2.0 * handoffs * 1e9 / elapsed));
+		System.out.println("wakeup-to-run latency ns: p50 = " + all[all.length / 2] + ", p99 = " + all[(int) (all.length * 0.99)] + ", max = " + all[all.length - 1]);
+	}
+
+	//Heap in use after a full collection
+	long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public void heap_footprint_benchmark() {
+		System.out.println("\n\n\n*********** Heap footprint *************");
+
+		//Short lived processes: each one is registered, started and terminated, with a fixed set of
+		//long lived processes and a rotating set of priorities so that levels come and go as well
+		OS os = new OS();
+		os.set_number_of_processors(4);
+		for (int i = 0; i < 1000; i++) os.reg(i % 8);
+
+		int cycles = 10_000_000;
+		int reportEvery = 1_000_000;
+		long timeBefore = System.nanoTime();
+		for (int i = 1; i <= cycles; i++) {
+			int pid = os.reg(i & 1023);
+			os.start(pid);
+			os.terminate(pid);
+			if (i % reportEvery == 0) {
+				System.out.println("cycles = " + i + ", used heap = " + usedHeap() / 1024 + " KiB");
+			}
+		}
+		long elapsed = System.nanoTime() - timeBefore;
+		System.out.println("ns per reg/start/terminate cycle (including reporting) = " + String.format("%.1f", (double) elapsed / cycles));
+	}
+
+	public void ready_queue_depth_benchmark(int depth) {
+		System.out.println("\n\n\n*********** Ready queue depth = " + depth + " *************");
+
+		//The work done under the OS lock to take the process at the head of a queue and to cancel
+		//one from anywhere in it, compared with cancelling through LinkedList<Integer>.remove(Object)
+		int operations = 1_000_000;
+		ReadyQueues queues = new ReadyQueues();
+		queues.ensureNodeCapacity(depth);
+		int level = queues.acquireLevel(1);
+		LinkedList<Integer> list = new LinkedList<Integer>();
+		for (int node = 0; node < depth; node++) {
+			queues.enqueue(level, node);
+			list.add(node);
+		}
+
+		long timeBefore = System.nanoTime();
+		for (int i = 0; i < operations; i++) queues.enqueue(level, queues.poll(level)); //Dispatch the head, re-queue it at the back
+		long headNs = System.nanoTime() - timeBefore;
+
+		timeBefore = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			int node = (int) ((i * 2654435761L) % depth); //Cancel a waiter from anywhere in the queue
+			queues.remove(level, node);
+			queues.enqueue(level, node);
+		}
+		long cancelNs = System.nanoTime() - timeBefore;
+
+		int listOperations = Math.max(1, operations / depth); //Keep the O(n) baseline's running time bounded
+		timeBefore = System.nanoTime();
+		for (int i = 0; i < listOperations; i++) {
+			Integer pid = (int) ((i * 2654435761L) % depth);
+			list.remove(pid); //Linear search with boxed equals
+			list.add(pid);
+		}
+		long listNs = System.nanoTime() - timeBefore;
+
+		System.out.println("intrusive poll + enqueue ns/op = " + String.format("%.1f", (double) headNs / operations));
+		System.out.println("intrusive cancel + enqueue ns/op = " + String.format("%.1f", (double) cancelNs / operations));
+		System.out.println("LinkedList cancel + add ns/op = " + String.format("%.1f", (double) listNs / listOperations));
+	}
+
+	//Runs two process threads per processor, each re-scheduling itself, and returns schedule calls per second
+	long schedule_throughput(OS_sim_interface os, int processors, int schedulesPerProcess) {
+		os.set_number_of_processors(processors);
+		Thread[] processes = new Thread[2 * processors];
+		CountDownLatch go = new CountDownLatch(1);
+		for (int p = 0; p < processes.length; p++) {
+			int pid = os.reg(1); //One priority, so every schedule call hands the processor to the next process in line
+			processes[p] = new Thread(() -> {
+				os.start(pid);
+				try {go.await();} catch (InterruptedException e) {e.printStackTrace();}
+				for (int i = 0; i < schedulesPerProcess; i++) os.schedule(pid);
+				os.terminate(pid);
+			});
+		}
+		for (Thread process : processes) process.start();
+		//Wait until every process is either running (parked on the latch) or in line (parked in start), so that
+		//the processes contend from the first schedule call rather than running one after another
+		for (Thread process : processes) {
+			while (process.getState() != Thread.State.WAITING) Thread.yield();
+		}
+		long timeBefore = System.nanoTime();
+		go.countDown();
+		for (Thread process : processes) {
+			try {process.join();} catch (InterruptedException e) {e.printStackTrace();}
+		}
+		long elapsed = System.nanoTime() - timeBefore;
+		return (long) ((double) processes.length * schedulesPerProcess * 1e9 / elapsed);
+	}
+
+	public void processor_scaling_benchmark() {
+		System.out.println("\n\n\n*********** Processor scaling (schedule calls per second) *************");
+		System.out.println("processors, OS, ShardedOS strict, ShardedOS window=16");
+		int totalSchedules = 400_000;
+		for (int processors = 1; processors <= 64; processors *= 2) {
+			int schedulesPerProcess = totalSchedules / (2 * processors);
+			long single = schedule_throughput(new OS(), processors, schedulesPerProcess);
+			long strict = schedule_throughput(new ShardedOS(processors), processors, schedulesPerProcess);
+			long bounded = schedule_throughput(new ShardedOS(processors, 16), processors, schedulesPerProcess);
+			System.out.println(processors + ", " + single + ", " + strict + ", " + bounded);
+		}
+	}
+
+	public void metrics_overhead_benchmark() {
+		System.out.println("\n\n\n*********** Metrics overhead *************");
+
+		//The schedule cycle of schedule_cycle_allocation_benchmark, with metrics never enabled, enabled, and enabled then disabled
+		String[] modes = {"never enabled", "enabled", "disabled again"};
+		for (String mode : modes) {
+			OS os = new OS();
+			os.set_number_of_processors(1);
+			if (!mode.equals("never enabled")) os.enableMetrics();
+			if (mode.equals("disabled again")) os.disableMetrics();
+			int pid = os.reg(1);
+			os.start(pid);
+
+			int warmup = 200_000;
+			int cycles = 2_000_000;
+			for (int i = 0; i < warmup; i++) os.schedule(pid);
+			long timeBefore = System.nanoTime();
+			for (int i = 0; i < cycles; i++) os.schedule(pid);
+			long elapsed = System.nanoTime() - timeBefore;
+			os.terminate(pid);
+			System.out.println("metrics " + mode + ": ns per cycle = " + String.format("%.1f", (double) elapsed / cycles));
+		}
+	}
+
+	public void batch_registration_benchmark() {
+		System.out.println("\n\n\n*********** Batch registration *************");
+
+		//A workload generator registers and admits a tick's worth of processes, which are then all terminated.
+		//Per-call reg/start takes the lock twice per process; regBatch/admitBatch take it twice per tick.
+		int tick = 20_000;
+		int ticks = 50;
+		int[] priorities = new int[tick];
+		for (int i = 0; i < tick; i++) priorities[i] = i % 4;
+		for (int round = 0; round < 2; round++) { //The first round warms up
+			boolean report = round == 1;
+
+			OS perCall = new OS();
+			perCall.set_number_of_processors(tick); //Every start takes a free processor, so no thread ever waits
+			long timeBefore = System.nanoTime();
+			for (int t = 0; t < ticks; t++) {
+				int first = -1;
+				for (int i = 0; i < tick; i++) {
+					int pid = perCall.reg(priorities[i]);
+					if (i == 0) first = pid;
+					perCall.start(pid);
+				}
+				for (int pid = first; pid < first + tick; pid++) perCall.terminate(pid);
+			}
+			long perCallElapsed = System.nanoTime() - timeBefore;
+
+			OS batched = new OS();
+			batched.set_number_of_processors(tick);
+			timeBefore = System.nanoTime();
+			for (int t = 0; t < ticks; t++) {
+				int first = batched.regBatch(priorities);
+				batched.admitBatch(first, tick);
+				for (int pid = first; pid < first + tick; pid++) batched.terminate(pid);
+			}
+			long batchedElapsed = System.nanoTime() - timeBefore;
+
+			if (report) {
+				System.out.println("processes per tick = " + tick + ", ticks = " + ticks);
+				System.out.println("reg + start per call: ns per process = " + String.format("%.1f", (double) perCallElapsed / (tick * ticks)));
+				System.out.println("regBatch + admitBatch: ns per process = " + String.format("%.1f", (double) batchedElapsed / (tick * ticks)));
+				System.out.println("speedup = " + String.format("%.2f", (double) perCallElapsed / batchedElapsed) + "x (terminate included in both)");
+			}
+		}
+	}
+
+	public void trace_overhead_benchmark() {
+		System.out.println("\n\n\n*********** Trace overhead *************");
+
+		//The schedule cycle of schedule_cycle_allocation_benchmark writes three records (schedule, enqueue, dispatch)
+		double[] nsPerCycle = new double[2];
+		for (int traced = 0; traced < 2; traced++) {
+			OS os = new OS();
+			os.set_number_of_processors(1);
+			String file = null;
+			if (traced == 1) {
+				try {
+					file = Files.createTempFile("os-trace", ".bin").toString();
+				} catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+				os.enableTrace(file, 1 << 20); //A 32 MiB ring, so the measured cycles wrap it several times
+			}
+			int pid = os.reg(1);
+			os.start(pid);
+
+			int warmup = 200_000;
+			int cycles = 2_000_000;
+			for (int i = 0; i < warmup; i++) os.schedule(pid);
+			long timeBefore = System.nanoTime();
+			for (int i = 0; i < cycles; i++) os.schedule(pid);
+			nsPerCycle[traced] = (double) (System.nanoTime() - timeBefore) / cycles;
+			os.terminate(pid);
+			os.disableTrace();
+			if (file != null) new File(file).delete();
+		}
+		System.out.println("ns per cycle untraced = " + String.format("%.1f", nsPerCycle[0]) + ", traced = " + String.format("%.1f", nsPerCycle[1]));
+		System.out.println("ns per trace record = " + String.format("%.1f", (nsPerCycle[1] - nsPerCycle[0]) / 3));
+	}
+
+	public void hot_add_benchmark(OS_sim_interface os) {
+		System.out.println("\n\n\n*********** Processor hot add - " + os.getClass().getName() + " *************");
+
+		//64 processes wait in start behind one busy processor, then 64 processors are added at once:
+		//how long until every waiter is running
+		int waiters = 64;
+		os.set_number_of_processors(1);
+		int holder = os.reg(0);
+		os.start(holder);
+		long[] dispatchedAt = new long[waiters];
+		Thread[] threads = new Thread[waiters];
+		for (int i = 0; i < waiters; i++) {
+			int pid = os.reg(1);
+			int index = i;
+			threads[i] = new Thread(() -> {
+				os.start(pid);
+				dispatchedAt[index] = System.nanoTime();
+				os.terminate(pid);
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) { //Wait until every waiter is parked in start
+			while (thread.getState() != Thread.State.WAITING) Thread.yield();
+		}
+		long timeBefore = System.nanoTime();
+		os.set_number_of_processors(1 + waiters);
+		long setReturned = System.nanoTime() - timeBefore;
+		for (Thread thread : threads) {
+			try {thread.join();} catch (InterruptedException e) {e.printStackTrace();}
+		}
+		long last = 0;
+		for (long at : dispatchedAt) last = Math.max(last, at - timeBefore);
+		os.terminate(holder);
+		System.out.println("set_number_of_processors returned after " + setReturned / 1000 + " us");
+		System.out.println("all " + waiters + " waiters running after " + last / 1000 + " us (" + last / waiters + " ns per waiter)");
+	}
+
+	public void async_throughput_benchmark() {
+		System.out.println("\n\n\n*********** Async throughput *************");
+
+		//Processes driven entirely by DispatchHandle callbacks - no thread per process - on 8 processors
+		for (int callbackThreads : new int[] {1, 2, 4}) {
+			OS os = new OS();
+			os.set_number_of_processors(8);
+			CallbackExecutor executor = new CallbackExecutor(callbackThreads);
+			os.setCallbackExecutor(executor);
+			int processes = 200_000;
+			int schedules = 4;
+			CountDownLatch done = new CountDownLatch(processes);
+			long timeBefore = System.nanoTime();
+			for (int p = 0; p < processes; p++) {
+				int pid = os.reg(p % 4);
+				os.startAsync(pid).onDispatch(new Runnable() {
+					int remaining = schedules;
+					public void run() {
+						if (remaining-- == 0) {
+							os.terminate(pid);
+							done.countDown();
+						} else {
+							os.scheduleAsync(pid).onDispatch(this);
+						}
+					}
+				});
+			}
+			try {done.await();} catch (InterruptedException e) {e.printStackTrace();}
+			long elapsed = System.nanoTime() - timeBefore;
+			executor.shutdown();
+			System.out.println("callback threads = " + callbackThreads + ": processes = " + processes + ", schedules per process = " + schedules
+					+ ", processes per second = " + (long) (processes * 1e9 / elapsed) + ", schedules per second = " + (long) (processes * (long) schedules * 1e9 / elapsed));
+		}
+	}
+
+	public void policy_tail_latency_benchmark() {
+		System.out.println("\n\n\n*********** Scheduling policy tail latency *************");
+
+		//Skewed overload, paced in real time: 8 processors, a process arriving every 0-50 us, 60% of them
+		//priority 0 and 10% priority 3, each holding its processor for 3 sessions of 20 us (more in
+		//practice - parkNanos overshoots). The priority 0 work alone nearly fills the processors, so
+		//under strict priority the others wait until the arrivals stop. Compare each policy's p99
+		//start and schedule waits per priority. Every process may be live at once (a thread each) - a
+		//lower cap would hold back the arrivals behind starved processes and hide the starvation.
+		int processes = 20_000;
+		try {
+			File file = File.createTempFile("skewed", ".txt");
+			Random random = new Random(7);
+			StringBuilder workload = new StringBuilder();
+			long arrival = 0;
+			for (int p = 0; p < processes; p++) {
+				arrival += random.nextInt(51);
+				int draw = random.nextInt(10);
+				int priority = draw < 6 ? 0 : draw < 8 ? 1 : draw < 9 ? 2 : 3;
+				workload.append(arrival + " " + priority + " 2 20\n");
+			}
+			Files.write(file.toPath(), workload.toString().getBytes());
+			for (String implementation : new String[] {"OS", "OS-aging", "OS-mlfq", "OS-fair"}) {
+				WorkloadReplay.Report report = new WorkloadReplay(WorkloadReplay.implementation(implementation, 8), 8, true, processes).replay(file.toPath());
+				StringBuilder line = new StringBuilder(String.format("%-9s elapsed = %4d ms, p99 start/schedule wait (us):", implementation, report.elapsedNanos / 1_000_000));
+				for (Integer priority : report.startWaits.keySet()) {
+					line.append(String.format("  priority %d = %d/%d", priority,
+							report.startWaits.get(priority).percentile(99) / 1000, report.scheduleWaits.get(priority).percentile(99) / 1000));
+				}
+				System.out.println(line);
+			}
+			file.delete();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void gang_utilization_benchmark(boolean gangs) {
+		System.out.println("\n\n\n*********** Gang utilization (" + (gangs ? "gang dispatch" : "per-process dispatch") + ") *************");
+
+		//A mixed workload on 8 processors: 30 parallel jobs of 4 processes and 60 single processes, each
+		//running 20 steps of 100 us. A job's step only counts once all 4 of its processes are running
+		//it, so a process that gets there first waits for the rest. Dispatched one at a time, it holds
+		//its processor while it waits, calling schedule to let others in rather than deadlock; as a gang,
+		//the job's processes are dispatched together. Utilization is the processor time spent on
+		//steps that count over the processor time available.
+		int processors = 8;
+		int jobs = 30, gangSize = 4, singles = 60, steps = 20;
+		long step = 100_000;
+		OS os = new OS();
+		os.set_number_of_processors(processors);
+		AtomicLong usefulNanos = new AtomicLong();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int j = 0; j < jobs; j++) {
+			int first = gangs ? os.regGang(gangSize, 1) : os.reg(1);
+			for (int m = 1; m < gangSize && !gangs; m++) os.reg(1); //Consecutive pids, like a gang
+			AtomicInteger arrived = new AtomicInteger();
+			CyclicBarrier barrier = new CyclicBarrier(gangSize);
+			for (int m = 0; m < gangSize; m++) {
+				int pid = first + m;
+				threads.add(new Thread(() -> {
+					os.start(pid);
+					for (int s = 0; s < steps; s++) {
+						if (gangs) { //The rest of the job is running too, so it will be along
+							try {barrier.await();} catch (InterruptedException | BrokenBarrierException e) {e.printStackTrace();}
+						} else {
+							arrived.incrementAndGet();
+							while (arrived.get() < gangSize * (s + 1)) os.schedule(pid); //Wait, holding the processor, for the rest of the job
+						}
+						long before = System.nanoTime();
+						LockSupport.parkNanos(step);
+						usefulNanos.addAndGet(System.nanoTime() - before);
+						os.schedule(pid);
+					}
+					os.terminate(pid);
+				}));
+			}
+		}
+		for (int p = 0; p < singles; p++) {
+			int pid = os.reg(1);
+			threads.add(new Thread(() -> {
+				os.start(pid);
+				for (int s = 0; s < steps; s++) {
+					long before = System.nanoTime();
+					LockSupport.parkNanos(step);
+					usefulNanos.addAndGet(System.nanoTime() - before);
+					os.schedule(pid);
+				}
+				os.terminate(pid);
+			}));
+		}
+		long timeBefore = System.nanoTime();
+		for (Thread thread : threads) thread.start();
+		try {
+			for (Thread thread : threads) thread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		long elapsed = System.nanoTime() - timeBefore;
+		System.out.println("processes = " + threads.size() + ", elapsed = " + elapsed / 1_000_000 + " ms, utilization = "
+				+ String.format("%.1f", 100.0 * usefulNanos.get() / ((double) elapsed * processors)) + "%");
+	}
+
+	public void renice_queued_benchmark(int depth) {
+		System.out.println("\n\n\n*********** Renice with " + depth + " processes in line *************");
+
+		//No processors, so every admitted process stays in line; one thread moves random waiting processes
+		//between 64 priority levels. Each move is a level search plus an O(1) unlink and relink.
+		OS os = new OS();
+		int[] priorities = new int[depth];
+		Random random = new Random(11);
+		for (int i = 0; i < depth; i++) priorities[i] = random.nextInt(64);
+		int first = os.regBatch(priorities);
+		os.admitBatch(first, depth);
+		int renices = 2_000_000;
+		int[] pids = new int[renices];
+		int[] newPriorities = new int[renices];
+		for (int i = 0; i < renices; i++) {
+			pids[i] = first + random.nextInt(depth);
+			newPriorities[i] = random.nextInt(64);
+		}
+		for (int i = 0; i < renices / 4; i++) os.setPriority(pids[i], newPriorities[i]); //Warm up
+		long timeBefore = System.nanoTime();
+		for (int i = 0; i < renices; i++) os.setPriority(pids[i], newPriorities[i]);
+		long elapsed = System.nanoTime() - timeBefore;
+		System.out.println("renices = " + renices + ", ns per renice = " + String.format("%.1f", (double) elapsed / renices)
+				+ ", renices per second = " + (long) (renices * 1e9 / elapsed));
+	}
+
+	public void renice_contention_benchmark(boolean renicing) {
+		System.out.println("\n\n\n*********** Schedule throughput " + (renicing ? "with" : "without") + " a renicing thread *************");
+
+		//16 processes on 4 processors call schedule as fast as they can for 500 ms, while (optionally) another
+		//thread changes the priority of random processes among 8 levels as fast as it can.
+		OS os = new OS();
+		int processors = 4, processes = 16;
+		long duration = 500_000_000;
+		os.set_number_of_processors(processors);
+		int[] pids = new int[processes];
+		for (int p = 0; p < processes; p++) pids[p] = os.reg(p % 8);
+		AtomicLong schedules = new AtomicLong();
+		AtomicLong renices = new AtomicLong();
+		long stopAt = System.nanoTime() + duration;
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int pid : pids) {
+			threads.add(new Thread(() -> {
+				os.start(pid);
+				long count = 0;
+				while (System.nanoTime() < stopAt) {
+					os.schedule(pid);
+					count++;
+				}
+				schedules.addAndGet(count);
+				os.terminate(pid);
+			}));
+		}
+		if (renicing) {
+			threads.add(new Thread(() -> {
+				Random random = new Random(5);
+				long count = 0;
+				while (System.nanoTime() < stopAt) {
+					os.setPriority(pids[random.nextInt(processes)], random.nextInt(8));
+					count++;
+				}
+				renices.addAndGet(count);
+			}));
+		}
+		for (Thread thread : threads) thread.start();
+		try {
+			for (Thread thread : threads) thread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		System.out.println("schedules per second = " + (long) (schedules.get() * 1e9 / duration) + ", renices per second = " + (long) (renices.get() * 1e9 / duration));
+	}
+
+	public void federation_scaling_benchmark() {
+		System.out.println("\n\n\n*********** Federation scaling, 1 to 8 node JVMs *************");
+
+		//400 processes of 4 1 ms sessions arrive at node 0 of a federation of 1, 2, 4 and 8 node JVMs
+		//with 2 processors each (see FederationHarness). With 1 node the run takes at least 800 ms.
+		for (int nodes : new int[] {1, 2, 4, 8}) {
+			try (FederationHarness harness = new FederationHarness(nodes, 2)) {
+				System.out.println(harness.run(400, 4, 1000));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void checkpoint_benchmark(SchedulingPolicy policy) {
+		System.out.println("\n\n\n*********** Checkpoint and restore, 1M processes, " + policy.getClass().getName() + " *************");
+
+		//1M processes of 64 priorities on 8 processors - 8 running and the rest waiting in line. The pause
+		//is how long checkpoint holds the OS lock; writing the file and restoring happen without it.
+		int processes = 1_000_000;
+		OS os = new OS(policy);
+		os.set_number_of_processors(8);
+		int[] priorities = new int[processes];
+		Random random = new Random(13);
+		for (int i = 0; i < processes; i++) priorities[i] = random.nextInt(64);
+		os.admitBatch(os.regBatch(priorities), processes);
+		try {
+			File file = File.createTempFile("os-checkpoint", ".bin");
+			for (int i = 0; i < 3; i++) os.checkpoint(); //Warm up
+			long pauses = 0, maxPause = 0;
+			Checkpoint checkpoint = null;
+			for (int i = 0; i < 5; i++) {
+				long timeBefore = System.nanoTime();
+				checkpoint = os.checkpoint();
+				long pause = System.nanoTime() - timeBefore;
+				pauses += pause;
+				maxPause = Math.max(maxPause, pause);
+			}
+			long timeBefore = System.nanoTime();
+			boolean written = checkpoint.write(file.getPath());
+			long writeNanos = System.nanoTime() - timeBefore;
+			timeBefore = System.nanoTime();
+			OS restored = OS.restore(file.getPath(), policy instanceof AgingPolicy ? new AgingPolicy(64) : new StrictPriorityPolicy());
+			long restoreNanos = System.nanoTime() - timeBefore;
+			System.out.println("processes = " + checkpoint.processes + ", in line = " + checkpoint.lineLength() + ", file = " + checkpoint.fileSize() / 1024 + " KB, written = " + written);
+			System.out.println("pause (lock held) mean = " + String.format("%.2f", pauses / 5 / 1e6) + " ms, max = " + String.format("%.2f", maxPause / 1e6)
+					+ " ms, write = " + String.format("%.1f", writeNanos / 1e6) + " ms, read and restore = " + String.format("%.1f", restoreNanos / 1e6) + " ms"
+					+ (restored != null && restored.checkpoint().lineLength() == checkpoint.lineLength() ? "" : " --- ERROR"));
+			file.delete();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void admission_overload_benchmark(AdmissionControl control) {
+		String name = control == null ? "no limit" : new String[] {"BLOCK", "FAIL_FAST", "SHED_LOWEST"}[control.mode()] + ", line limit 32";
+		System.out.println("\n\n\n*********** Admission control under overload (" + name + ") *************");
+
+		//Overload paced in real time: 2 processors, a process of priority 0-3 arriving every 50 us, each
+		//holding its processor for 500 us - ten times what the processors can serve. Without a limit the
+		//line, and every start's wait, grows until the arrivals stop; with one the line stays short,
+		//and the processes turned away (FAIL_FAST, SHED_LOWEST) or held back (BLOCK) pay for it.
+		int processes = 2_000;
+		long interarrival = 50_000, session = 500_000;
+		OS os = new OS();
+		os.set_number_of_processors(2);
+		os.setAdmissionControl(control);
+		long[] waits = new long[processes]; //Start waits of the processes dispatched, -1 for the rest
+		int[] priorities = new int[processes];
+		Random random = new Random(17);
+		Thread[] threads = new Thread[processes];
+		long timeBefore = System.nanoTime();
+		for (int p = 0; p < processes; p++) {
+			LockSupport.parkNanos(timeBefore + p * interarrival - System.nanoTime());
+			int i = p;
+			priorities[i] = random.nextInt(4);
+			int pid = os.reg(priorities[i]);
+			threads[i] = new Thread(() -> {
+				long queuedAt = System.nanoTime();
+				if (os.startStatus(pid, -1) != AdmissionControl.DISPATCHED) {
+					waits[i] = -1;
+					os.terminate(pid);
+					return;
+				}
+				waits[i] = System.nanoTime() - queuedAt;
+				LockSupport.parkNanos(session);
+				os.terminate(pid);
+			});
+			threads[i].start();
+		}
+		try {
+			for (Thread thread : threads) thread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		long elapsed = System.nanoTime() - timeBefore;
+		StringBuilder line = new StringBuilder(String.format("elapsed = %d ms, p99 start wait of those dispatched (us):", elapsed / 1_000_000));
+		for (int priority = 0; priority < 4; priority++) {
+			int dispatched = 0;
+			long[] ofPriority = new long[processes];
+			for (int i = 0; i < processes; i++) {
+				if (priorities[i] == priority && waits[i] >= 0) ofPriority[dispatched++] = waits[i];
+			}
+			Arrays.sort(ofPriority, 0, dispatched);
+			line.append(String.format("  priority %d = %d (%d dispatched)", priority, dispatched == 0 ? 0 : ofPriority[(int) Math.ceil(dispatched * 0.99) - 1] / 1000, dispatched));
+		}
+		System.out.println(line);
+		if (control != null) System.out.print(os.admissionStats());
+	}
+}
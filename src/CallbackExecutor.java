@@ -0,0 +1,68 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A small fixed pool of threads that runs the callbacks of DispatchHandles, built from a
+// ReentrantLock and Condition like the OS itself (so no java.util.concurrent executor).
+//
+// Callbacks run in the order they were submitted when there is one thread; with more, they
+// are started in that order but may overlap. A callback that throws is reported and the
+// thread carries on. The threads are daemons, so an unused executor doesn't keep the JVM alive.
+
+public class CallbackExecutor {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workReady = lock.newCondition();
+    private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+    private boolean shutdown = false;
+
+    public CallbackExecutor(int threads) {
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            Thread thread = new Thread(this::runCallbacks, "os-callback-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void execute(Runnable callback) {
+        lock.lock();
+        try {
+            if (shutdown) return;
+            queue.add(callback);
+            workReady.signal(); // Wake one idle thread, if there is one
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stop the threads once the callbacks already submitted have run
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            workReady.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runCallbacks() {
+        while (true) {
+            Runnable callback;
+            lock.lock();
+            try {
+                while (queue.isEmpty()) {
+                    if (shutdown) return;
+                    workReady.awaitUninterruptibly();
+                }
+                callback = queue.poll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // A failing callback must not take the thread down with it
+            }
+        }
+    }
+}
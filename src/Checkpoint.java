@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// A point-in-time copy of an OS's scheduler state, taken by OS.checkpoint and turned back into an
+// OS by OS.restore: every live process's pid, priority, state and gang, the line of waiting
+// processes in dispatch order, the gangs, the processor counts and the pid counter.
+//
+// A checkpoint is immutable once the OS has filled it in (under its lock), so it can be written
+// to a file by any thread while the OS carries on. The file is written next to its final name and
+// moved into place, so a crash while writing leaves the previous checkpoint whole, and a CRC of
+// the body catches a file damaged since. A file that passes the CRC is still checked for being a
+// state an OS could have been in (see validate) before it is restored.
+//
+// What isn't saved: the threads themselves, DispatchHandles, metrics, the trace and listener, and
+// any history a policy keeps beyond the order of the line (ages, MLFQ drops, fair share run times).
+//
+// File layout (little-endian):
+//   header, 40 bytes:  magic "OSCHKPT1" | int version | int last pid | int total processors
+//                      | int free processors | int processes | int line length | int gangs | int CRC32 of the body
+//   body:              int pid[processes] | int priority[processes] | int gang[processes] (index into the gangs, -1 for none)
+//                      | int line[line length] (pids, the first to be dispatched first)
+//                      | gangs x (int first pid | int span | int live members | int waiting members | int pid in line for it, -1 for none)
+//                      | byte state[processes] (0 registered, 1 waiting for a processor, 2 running)
+
+public class Checkpoint {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 40;
+    public static final int NONE = -1;
+    // Process states, as the OS keeps them
+    public static final byte REGISTERED = 0;
+    public static final byte READY = 1;
+    public static final byte RUNNING = 2;
+
+    public final int lastPid;
+    public final int totalProcessors;
+    public final int availableProcessors;
+    public final int processes;
+    final int[] pids;
+    final int[] priorities;
+    final int[] gangs;
+    final byte[] states;
+    int lineLength = 0;
+    final int[] line; // Pids in dispatch order
+    int gangCount = 0;
+    final int[] gangRows; // 5 ints per gang
+
+    // An empty checkpoint for the OS to fill in, with room for the given processes and gangs
+    Checkpoint(int lastPid, int totalProcessors, int availableProcessors, int processes, int gangs) {
+        this.lastPid = lastPid;
+        this.totalProcessors = totalProcessors;
+        this.availableProcessors = availableProcessors;
+        this.processes = processes;
+        pids = new int[processes];
+        priorities = new int[processes];
+        this.gangs = new int[processes];
+        states = new byte[processes];
+        line = new int[processes];
+        gangRows = new int[gangs * 5];
+    }
+
+    // Add a gang and get its index
+    int addGang(int firstPid, int span, int live, int waiting, int entryPid) {
+        int at = gangCount * 5;
+        gangRows[at] = firstPid;
+        gangRows[at + 1] = span;
+        gangRows[at + 2] = live;
+        gangRows[at + 3] = waiting;
+        gangRows[at + 4] = entryPid;
+        return gangCount++;
+    }
+
+    public int lineLength() {
+        return lineLength;
+    }
+
+    public int gangCount() {
+        return gangCount;
+    }
+
+    // Size of the checkpoint file in bytes
+    public long fileSize() {
+        return fileSize(processes, lineLength, gangCount);
+    }
+
+    private static long fileSize(int processes, int lineLength, int gangs) {
+        return HEADER_SIZE + 4L * (3L * processes + lineLength + 5L * gangs) + processes;
+    }
+
+    public static byte[] magicBytes() {
+        return new byte[] {'O', 'S', 'C', 'H', 'K', 'P', 'T', '1'};
+    }
+
+    // Write the checkpoint to a file, replacing any file already there only once it is complete.
+    // Returns false if it couldn't be written.
+    public boolean write(String path) {
+        try {
+            if (fileSize() > Integer.MAX_VALUE) return false; // A single buffer is limited to 2 GB
+            Path file = Paths.get(path);
+            Path partial = file.resolveSibling(file.getFileName() + ".partial");
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) fileSize()).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(HEADER_SIZE);
+            IntBuffer ints = buffer.asIntBuffer(); // Bulk copies of the int arrays, in the buffer's byte order
+            ints.put(pids).put(priorities).put(gangs).put(line, 0, lineLength).put(gangRows, 0, gangCount * 5);
+            buffer.position(HEADER_SIZE + ints.position() * 4);
+            buffer.put(states);
+            buffer.position(HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(buffer);
+            buffer.put(0, magicBytes());
+            buffer.putInt(8, VERSION);
+            buffer.putInt(12, lastPid);
+            buffer.putInt(16, totalProcessors);
+            buffer.putInt(20, availableProcessors);
+            buffer.putInt(24, processes);
+            buffer.putInt(28, lineLength);
+            buffer.putInt(32, gangCount);
+            buffer.putInt(36, (int) crc.getValue());
+            buffer.position(0);
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(false);
+            }
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Read a checkpoint file. Throws IOException if it can't be read or isn't a whole, valid checkpoint.
+    public static Checkpoint read(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) throw invalid(path, "it is " + size + " bytes long");
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) throw invalid(path, "it was cut short while being read");
+            }
+            byte[] magic = new byte[8];
+            buffer.get(0, magic);
+            if (!Arrays.equals(magic, magicBytes()) || buffer.getInt(8) != VERSION) throw invalid(path, "it has no checkpoint header, or is another version");
+            int processes = buffer.getInt(24);
+            int lineLength = buffer.getInt(28);
+            int gangCount = buffer.getInt(32);
+            if (processes < 0 || lineLength < 0 || lineLength > processes || gangCount < 0 || gangCount > processes) throw invalid(path, "its counts are out of range");
+            long expected = fileSize(processes, lineLength, gangCount); // Checked before the arrays are allocated, so a bad header can't ask for gigabytes
+            if (expected != size) throw invalid(path, "it is " + size + " bytes long, not " + expected);
+            Checkpoint checkpoint = new Checkpoint(buffer.getInt(12), buffer.getInt(16), buffer.getInt(20), processes, gangCount);
+            checkpoint.lineLength = lineLength;
+            checkpoint.gangCount = gangCount;
+            buffer.position(HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(buffer);
+            if ((int) crc.getValue() != buffer.getInt(36)) throw invalid(path, "the CRC doesn't match");
+            buffer.position(HEADER_SIZE);
+            IntBuffer ints = buffer.asIntBuffer();
+            ints.get(checkpoint.pids).get(checkpoint.priorities).get(checkpoint.gangs).get(checkpoint.line, 0, lineLength).get(checkpoint.gangRows);
+            buffer.position(HEADER_SIZE + ints.position() * 4);
+            buffer.get(checkpoint.states);
+            checkpoint.validate(path);
+            return checkpoint;
+        }
+    }
+
+    // Helper Function - Check that the checkpoint is a state an OS could have been in, so that the OS
+    // restored from it never runs more processes than it has processors and never strands a process:
+    // pids are unique, each process waiting for a processor is in line (or, in a gang, waits for its gang),
+    // the line holds only waiting processes, each once, and each gang's counts match its members. A gang
+    // in line must be able to fit on the processors; one set aside for being too big (see OS.regGang) may not.
+    private void validate(String path) throws IOException {
+        if (totalProcessors < 0) throw invalid(path, "it has " + totalProcessors + " processors");
+        long[] byPid = new long[processes]; // pid << 32 | index, sorted by pid
+        int running = 0;
+        for (int p = 0; p < processes; p++) {
+            if (states[p] < REGISTERED || states[p] > RUNNING || pids[p] < 0 || pids[p] > lastPid || gangs[p] < NONE || gangs[p] >= gangCount) {
+                throw invalid(path, "process " + p + " has an unknown state, pid or gang");
+            }
+            if (states[p] == RUNNING) running++;
+            byPid[p] = (long) pids[p] << 32 | p;
+        }
+        if (availableProcessors != totalProcessors - running) {
+            throw invalid(path, running + " processes run on " + totalProcessors + " processors with " + availableProcessors + " free");
+        }
+        Arrays.sort(byPid);
+        for (int i = 1; i < processes; i++) {
+            if (byPid[i] >>> 32 == byPid[i - 1] >>> 32) throw invalid(path, "pid " + (byPid[i] >>> 32) + " appears twice");
+        }
+        boolean[] inLine = new boolean[processes];
+        for (int i = 0; i < lineLength; i++) {
+            int p = indexOf(byPid, line[i]);
+            if (p == NONE || states[p] != READY || inLine[p]) throw invalid(path, "pid " + line[i] + " in line is unknown, not waiting, or in line twice");
+            if (gangs[p] != NONE && gangRows[gangs[p] * 5 + 4] != line[i]) throw invalid(path, "pid " + line[i] + " is in line but doesn't stand for its gang");
+            inLine[p] = true;
+        }
+        int[] members = new int[gangCount * 2]; // Live and waiting members of each gang
+        for (int p = 0; p < processes; p++) {
+            int gang = gangs[p];
+            if (gang == NONE) {
+                if (states[p] == READY && !inLine[p]) throw invalid(path, "pid " + pids[p] + " is waiting but not in line");
+                continue;
+            }
+            if (pids[p] < gangRows[gang * 5] || (long) pids[p] >= (long) gangRows[gang * 5] + gangRows[gang * 5 + 1]) {
+                throw invalid(path, "pid " + pids[p] + " is outside the pids of its gang");
+            }
+            members[gang * 2]++;
+            if (states[p] == READY) members[gang * 2 + 1]++;
+        }
+        for (int gang = 0; gang < gangCount; gang++) {
+            int at = gang * 5;
+            int live = gangRows[at + 2];
+            int waiting = gangRows[at + 3];
+            int entryPid = gangRows[at + 4];
+            if (gangRows[at + 1] < 1 || live != members[gang * 2] || waiting != members[gang * 2 + 1]) {
+                throw invalid(path, "gang " + gang + " doesn't match its members");
+            }
+            if (entryPid == NONE) continue;
+            int p = indexOf(byPid, entryPid);
+            if (p == NONE || gangs[p] != gang || !inLine[p] || waiting != live) {
+                throw invalid(path, "gang " + gang + " is in line for pid " + entryPid + ", which isn't a member in line for the whole gang");
+            }
+            if (waiting > totalProcessors) {
+                throw invalid(path, "gang " + gang + " is in line needing " + waiting + " processors, but there are " + totalProcessors);
+            }
+        }
+    }
+
+    // Helper Function - Find the index of a pid in the sorted pid << 32 | index keys, or NONE
+    private static int indexOf(long[] byPid, int pid) {
+        int low = 0, high = byPid.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int found = (int) (byPid[middle] >>> 32);
+            if (found < pid) low = middle + 1;
+            else if (found > pid) high = middle - 1;
+            else return (int) byPid[middle];
+        }
+        return NONE;
+    }
+
+    private static IOException invalid(String path, String reason) {
+        return new IOException(path + " is not a valid checkpoint: " + reason);
+    }
+}
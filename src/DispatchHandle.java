@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Completion handle returned by OS.startAsync and OS.scheduleAsync: completes when the OS hands
+// the process a processor, or is cancelled if the process is taken out of line first (OS.cancel).
+//
+// The handle's state is guarded by the lock of the OS that created it, so completing it is part
+// of the dispatch itself. Callbacks run on the OS's CallbackExecutor (the one it has when they
+// become due), never on the thread that completed the handle, so a callback may call straight
+// back into the OS.
+
+public class DispatchHandle {
+    private final int pid;
+    private final OS os;
+    private final ReentrantLock lock; // The OS lock
+    private boolean dispatched = false;
+    private boolean cancelled = false;
+    private Condition dispatchedCondition = null; // Created by the first thread to wait
+    private ArrayList<Runnable> callbacks = null;
+
+    DispatchHandle(int pid, OS os, ReentrantLock lock) {
+        this.pid = pid;
+        this.os = os;
+        this.lock = lock;
+    }
+
+    public int pid() {
+        return pid;
+    }
+
+    public boolean isDispatched() {
+        lock.lock();
+        try {
+            return dispatched;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isCancelled() {
+        lock.lock();
+        try {
+            return cancelled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Run a callback once the process has a processor (straight away, on the executor, if it already has).
+    // The callbacks of a cancelled handle are dropped.
+    public void onDispatch(Runnable callback) {
+        lock.lock();
+        try {
+            if (dispatched) {
+                os.callbackExecutor().execute(callback);
+                return;
+            }
+            if (cancelled) return;
+            if (callbacks == null) callbacks = new ArrayList<Runnable>(1);
+            callbacks.add(callback);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Block until the process has a processor (returning true) or the handle is cancelled (returning false)
+    public boolean await() {
+        lock.lock();
+        try {
+            if (!dispatched && !cancelled && dispatchedCondition == null) dispatchedCondition = lock.newCondition();
+            while (!dispatched && !cancelled) dispatchedCondition.awaitUninterruptibly();
+            return dispatched;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called by the OS, with its lock held, when it hands the process a processor
+    void complete() {
+        dispatched = true;
+        if (dispatchedCondition != null) dispatchedCondition.signalAll();
+        if (callbacks != null) {
+            CallbackExecutor executor = os.callbackExecutor();
+            for (Runnable callback : callbacks) executor.execute(callback);
+            callbacks = null;
+        }
+    }
+
+    // Called by the OS, with its lock held, when it takes the process out of line without a processor
+    void cancel() {
+        cancelled = true;
+        if (dispatchedCondition != null) dispatchedCondition.signalAll();
+        callbacks = null;
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.Arrays;
+
+// Fair share by virtual run time, in the style of Linux CFS: each process accumulates the time
+// it holds a processor, scaled by a weight for its priority (each level lower counts 25% more),
+// and the process in line with the least virtual run time goes first. Every priority gets a
+// share of the processors in proportion to its weight, so none starves.
+//
+// A process joining the line for the first time, or after a long wait, starts from the least
+// virtual run time in line, so it can't bank credit and then hold the processors. The line is a
+// SlotHeap keyed by virtual run time: O(log n) per operation, FIFO on equal keys.
+//
+// NOT thread safe - see SchedulingPolicy.
+
+public class FairSharePolicy implements SchedulingPolicy {
+    private final SlotHeap line = new SlotHeap();
+    private int[] priorities = new int[16]; // By slot
+    private long[] vruntimes = new long[16]; // By slot
+    private long minVruntime = 0; // Virtual run time of the last process dispatched - never goes down
+
+    @Override
+    public void ensureCapacity(int capacity) {
+        if (capacity > priorities.length) {
+            priorities = Arrays.copyOf(priorities, capacity);
+            vruntimes = Arrays.copyOf(vruntimes, capacity);
+        }
+        line.ensureCapacity(capacity);
+    }
+
+    @Override
+    public void register(int slot, int priority) {
+        priorities[slot] = priority;
+        vruntimes[slot] = minVruntime;
+    }
+
+    @Override
+    public void unregister(int slot) {
+    }
+
+    @Override
+    public void setPriority(int slot, int priority, boolean inLine) {
+        priorities[slot] = priority; // Only the weight of its future run time changes, so its place in line stays
+    }
+
+    @Override
+    public void enqueue(int slot) {
+        vruntimes[slot] = Math.max(vruntimes[slot], minVruntime);
+        line.add(slot, vruntimes[slot]);
+    }
+
+    @Override
+    public int peek() {
+        return line.peek();
+    }
+
+    @Override
+    public int last() {
+        return line.last();
+    }
+
+    @Override
+    public int poll() {
+        int slot = line.poll();
+        if (slot != NONE) minVruntime = Math.max(minVruntime, vruntimes[slot]);
+        return slot;
+    }
+
+    @Override
+    public void remove(int slot) {
+        line.remove(slot);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return line.isEmpty();
+    }
+
+    @Override
+    public int line(int[] into) {
+        return line.inOrder(into);
+    }
+
+    @Override
+    public int priorityOf(int slot) {
+        return priorities[slot];
+    }
+
+    @Override
+    public boolean usesRunTimes() {
+        return true;
+    }
+
+    @Override
+    public void ran(int slot, long nanos) {
+        vruntimes[slot] += (long) (nanos * weight(priorities[slot]));
+    }
+
+    // Helper Function - Virtual time per nanosecond run: 1.25^priority, so a lower priority's time counts for more
+    private static double weight(int priority) {
+        return Math.pow(1.25, Math.max(-40, Math.min(40, priority)));
+    }
+}
@@ -0,0 +1,120 @@
+// Multi-process harness for FederationNode - starts a federation of node JVMs on this machine and
+// runs a workload on it - run with
+//   java FederationHarness [nodes...] [processes] [sessions] [session-us]
+// e.g. java FederationHarness 1,2,4,8 400 4 1000 for a scaling table from 1 to 8 nodes.
+//
+// Each node is a child JVM running FederationNode with the same classpath, driven over its stdin
+// and stdout. The workload arrives at node 0 only, so with one node it is limited to node 0's
+// processors, and with more nodes the run shows how much of it the federation moves to the idle
+// peers and how much sooner it finishes.
+
+//Note that you may use *any* classes in this FederationHarness class that are available in SE 17.
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class FederationHarness implements Closeable {
+
+	static final int PROCESSORS_PER_NODE = 2;
+
+	public static void main(String[] args) throws IOException {
+		String[] counts = (args.length > 0 ? args[0] : "1,2,4,8").split(",");
+		int processes = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+		int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		int sessionMicros = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+		System.out.println("processes = " + processes + ", sessions = " + sessions + ", session = " + sessionMicros + " us, " + PROCESSORS_PER_NODE + " processors per node");
+		for (String count : counts) {
+			try (FederationHarness harness = new FederationHarness(Integer.parseInt(count), PROCESSORS_PER_NODE)) {
+				System.out.println(harness.run(processes, sessions, sessionMicros));
+			}
+		}
+	}
+
+	public static class Result {
+		public int nodes;
+		public long elapsedMicros;
+		public int migrations; //Processes that moved from node 0 to a peer
+		public int[] hosted; //Processes each node took in from a peer
+		public int[] peakRunning; //Most processes each node ran at once
+
+		@Override
+		public String toString() {
+			StringBuilder result = new StringBuilder();
+			result.append(nodes + " node(s): elapsed = " + elapsedMicros / 1000 + " ms, migrated = " + migrations + ", hosted per node =");
+			for (int h : hosted) result.append(" " + h);
+			result.append(", peak running per node =");
+			for (int p : peakRunning) result.append(" " + p);
+			return result.toString();
+		}
+	}
+
+	final List<Process> children = new ArrayList<Process>();
+	final List<BufferedReader> outputs = new ArrayList<BufferedReader>();
+	final List<PrintWriter> inputs = new ArrayList<PrintWriter>();
+
+	//Start the node JVMs and connect every node to every other
+	public FederationHarness(int nodes, int processorsPerNode) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		StringBuilder peers = new StringBuilder("peers");
+		try {
+			for (int n = 0; n < nodes; n++) {
+				Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "FederationNode", String.valueOf(processorsPerNode))
+						.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+				children.add(child);
+				outputs.add(new BufferedReader(new InputStreamReader(child.getInputStream())));
+				inputs.add(new PrintWriter(child.getOutputStream(), true));
+				peers.append(" ").append(expect(n, "port")[1]);
+			}
+			for (int n = 0; n < nodes; n++) inputs.get(n).println(peers);
+			for (int n = 0; n < nodes; n++) expect(n, "connected");
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	//Run the workload on node 0 and collect every node's counters
+	public Result run(int processes, int sessions, int sessionMicros) throws IOException {
+		Result result = new Result();
+		result.nodes = children.size();
+		inputs.get(0).println("run " + processes + " " + sessions + " " + sessionMicros);
+		String[] done = expect(0, "done");
+		result.elapsedMicros = Long.parseLong(done[1]);
+		result.migrations = Integer.parseInt(done[2]);
+		result.hosted = new int[result.nodes];
+		result.peakRunning = new int[result.nodes];
+		for (int n = 0; n < result.nodes; n++) {
+			inputs.get(n).println("stats");
+			String[] stats = expect(n, "stats");
+			result.hosted[n] = Integer.parseInt(stats[1]);
+			result.peakRunning[n] = Integer.parseInt(stats[2]);
+		}
+		return result;
+	}
+
+	@Override
+	public void close() {
+		for (PrintWriter input : inputs) input.println("exit");
+		for (Process child : children) {
+			try {
+				if (!child.waitFor(10, TimeUnit.SECONDS)) child.destroyForcibly();
+			} catch (InterruptedException e) {
+				child.destroyForcibly();
+			}
+		}
+	}
+
+	//Read node n's next line, which must start with the given word
+	String[] expect(int n, String word) throws IOException {
+		String line = outputs.get(n).readLine();
+		if (line == null || !line.startsWith(word)) throw new IOException("node " + n + " said '" + line + "', expected '" + word + "'");
+		return line.trim().split("\\s+");
+	}
+}
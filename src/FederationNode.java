@@ -0,0 +1,632 @@
+// One node of a federation of OS instances spread across JVMs on one machine - run a node with
+//   java FederationNode processors
+// which prints the port it listens on and is then driven over stdin (see FederationHarness), or
+// create nodes in one JVM with new FederationNode(processors) and join them up with connect.
+//
+// Each node has its own OS and processors. Every millisecond it tells every other node how many of
+// its processors are free and how many processes are waiting in its line. A FederationNode is an
+// OS_sim_interface: processes register on their home node and call start, schedule and terminate
+// on it as usual. When a process asks for a processor (start, or schedule while it is still at home)
+// and its home node has none to spare, it migrates to the peer reporting the most spare processors
+// (free less waiting), if any: it terminates at home, registers on the peer with the same priority,
+// and its calls go to the peer from then on. A process migrates at most once, so it never bounces.
+// Load reports can be a millisecond or so stale, so a peer may be over-subscribed for a moment -
+// the migrated process then simply waits in that peer's line.
+//
+// Wire format: every message is 20 bytes - int type | long request id | int a | int b. Requests
+// (REG priority, START pid, SCHEDULE pid, TERMINATE pid running) go out on the connection this node
+// opened to the peer and are answered on it with a REPLY carrying the same id; LOAD (free, waiting)
+// reports are one-way, with the sender's port in the id field. A request that blocks (START,
+// SCHEDULE) is served on its own thread, so one connection carries any number of waiting processes.
+//
+// A peer is taken for gone once its connection breaks, or once it has sent no load report for
+// PEER_TIMEOUT_NANOS (its reports keep coming while a process waits in its line, so a long wait
+// there is not mistaken for a lost peer). The processes waiting on it, or placed on it, come back
+// home: they register again here and wait for a processor in this node's line.
+
+// IMPORTANT:
+//
+// The same rules apply here as in OS.java and ShardedOS: ReentrantLock and Condition are the only
+// thread safe mechanisms used - one lock guards the node's peers, placements, load counts and the
+// calls waiting for a reply, each of which waits on a condition of its own - there is no
+// 'synchronized', busy waiting or delay, and exceptions are handled locally. The load reports and
+// the peer timeout are timed waits on conditions of that lock, which close ends early.
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class FederationNode implements OS_sim_interface, Closeable {
+
+	static final int REG = 0, START = 1, SCHEDULE = 2, TERMINATE = 3, LOAD = 4, REPLY = 5; //Message types
+	static final long LOAD_INTERVAL_NANOS = 1_000_000;
+	static final long PEER_TIMEOUT_NANOS = 5_000_000_000L; //Silence after which a peer is taken for gone
+	static final int LOST = -1; //Returned by Peer.call when the peer has gone
+
+	public static void main(String[] args) throws IOException {
+		int processors = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		try (FederationNode node = new FederationNode(processors)) {
+			System.out.println("port " + node.port());
+			BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+			String line;
+			while ((line = commands.readLine()) != null) {
+				String[] words = line.trim().split("\\s+");
+				if (words[0].equals("peers")) {
+					int[] ports = new int[words.length - 1];
+					for (int i = 1; i < words.length; i++) ports[i - 1] = Integer.parseInt(words[i]);
+					node.connect(ports);
+					System.out.println("connected");
+				} else if (words[0].equals("run")) {
+					long elapsed = node.runWorkload(Integer.parseInt(words[1]), Integer.parseInt(words[2]), Long.parseLong(words[3]) * 1000);
+					System.out.println("done " + elapsed / 1000 + " " + node.migrations());
+				} else if (words[0].equals("stats")) {
+					System.out.println("stats " + node.hosted() + " " + node.peakRunning());
+				} else if (words[0].equals("exit")) {
+					break;
+				}
+			}
+		}
+	}
+
+	//A peer as seen from this node: the connection this node opened to it, and the last load it reported.
+	//Its fields are guarded by the node lock.
+	class Peer {
+		final int port;
+		final Connection connection;
+		int spare = 0; //Free less waiting, less processes sent since the last report
+		long lastHeard = System.nanoTime(); //When it last reported its load
+		boolean lost = false;
+
+		Peer(int port, Socket socket) throws IOException {
+			this.port = port;
+			connection = new Connection(socket);
+		}
+
+		//Make a request and wait for the reply, or return LOST if the peer goes (see lose)
+		int call(int type, int a, int b) {
+			Call call;
+			lock.lock();
+			try {
+				if (lost) return LOST;
+				call = new Call(++nextRequestId, this);
+				pending.put(call.id, call);
+			} finally {
+				lock.unlock();
+			}
+			boolean sent = connection.send(type, call.id, a, b);
+			boolean interrupted = false;
+			lock.lock();
+			try {
+				if (!sent) lose(this);
+				while (!call.replied && !lost) {
+					long quiet = System.nanoTime() - lastHeard;
+					if (quiet >= PEER_TIMEOUT_NANOS) {
+						lose(this);
+						break;
+					}
+					try {
+						call.condition.awaitNanos(PEER_TIMEOUT_NANOS - quiet);
+					} catch (InterruptedException e) {
+						interrupted = true; //Re-asserted once the call is over
+					}
+				}
+				pending.remove(call.id);
+				return call.replied ? call.value : LOST;
+			} finally {
+				lock.unlock();
+				if (interrupted) Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	//A request waiting for its reply
+	class Call {
+		final long id;
+		final Peer peer;
+		final Condition condition = lock.newCondition();
+		boolean replied = false;
+		int value;
+
+		Call(long id, Peer peer) {
+			this.id = id;
+			this.peer = peer;
+		}
+	}
+
+	//One socket, with its writes serialized
+	static class Connection {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+		final ReentrantLock writeLock = new ReentrantLock();
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		//Returns false if the peer has gone
+		boolean send(int type, long id, int a, int b) {
+			writeLock.lock();
+			try {
+				out.writeInt(type);
+				out.writeLong(id);
+				out.writeInt(a);
+				out.writeInt(b);
+				out.flush();
+				return true;
+			} catch (IOException e) {
+				return false;
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	//Where a process registered on this node lives now. Only the process's own thread uses it.
+	static class Placement {
+		final int priority;
+		Peer peer = null; //null while it is at home
+		int pid; //Its pid on the node it is on
+		boolean running = false;
+
+		Placement(int priority, int pid) {
+			this.priority = priority;
+			this.pid = pid;
+		}
+	}
+
+	final OS os = new OS();
+	final ServerSocket server;
+	final ThreadFactory threads;
+	//Everything below is guarded by the node lock
+	final ReentrantLock lock = new ReentrantLock();
+	final Condition closing = lock.newCondition(); //Ends the load reporter's wait between reports
+	int processors = 0;
+	final ArrayList<Peer> peers = new ArrayList<Peer>();
+	final ArrayList<Connection> inbound = new ArrayList<Connection>();
+	final HashMap<Long, Call> pending = new HashMap<Long, Call>();
+	long nextRequestId = 0;
+	final HashMap<Integer, Placement> placements = new HashMap<Integer, Placement>(); //By home pid
+	//Load of the local OS - processes holding one of its processors, or waiting for one, whichever node they came from
+	int running = 0;
+	int waiting = 0;
+	int peakRunning = 0;
+	int migrations = 0; //Processes registered here that moved to a peer
+	int hosted = 0; //Processes that moved here from a peer
+	boolean closed = false;
+
+	public FederationNode(int processors) throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		ThreadFactory factory = LoadDriver.virtualThreadFactory();
+		threads = factory != null ? factory : runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		};
+		set_number_of_processors(processors);
+		daemon(this::accept);
+	}
+
+	public int port() {
+		return server.getLocalPort();
+	}
+
+	//Open a connection to each peer and start reporting this node's load to them
+	public void connect(int... peerPorts) throws IOException {
+		for (int port : peerPorts) {
+			if (port == port()) continue;
+			Peer peer = new Peer(port, new Socket(InetAddress.getLoopbackAddress(), port));
+			lock.lock();
+			try {
+				peers.add(peer);
+			} finally {
+				lock.unlock();
+			}
+			daemon(() -> readReplies(peer));
+		}
+		daemon(this::reportLoad);
+	}
+
+	public int migrations() {
+		lock.lock();
+		try {
+			return migrations;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int hosted() {
+		lock.lock();
+		try {
+			return hosted;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int peakRunning() {
+		lock.lock();
+		try {
+			return peakRunning;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void set_number_of_processors(int nProcessors) {
+		lock.lock();
+		try {
+			processors = nProcessors;
+		} finally {
+			lock.unlock();
+		}
+		os.set_number_of_processors(nProcessors);
+	}
+
+	@Override
+	public int reg(int priority) {
+		int pid = os.reg(priority);
+		lock.lock();
+		try {
+			placements.put(pid, new Placement(priority, pid));
+		} finally {
+			lock.unlock();
+		}
+		return pid;
+	}
+
+	@Override
+	public void start(int ID) {
+		Placement placement = placement(ID, false);
+		if (placement == null || placement.running) return;
+		Peer target = peerWithSpare();
+		if (target != null) {
+			os.terminate(placement.pid); //Never started here, so it holds nothing
+			migrate(placement, target);
+		} else {
+			localStart(placement.pid);
+		}
+		placement.running = true;
+	}
+
+	@Override
+	public void schedule(int ID) {
+		Placement placement = placement(ID, false);
+		if (placement == null || !placement.running) return;
+		if (placement.peer != null) {
+			if (placement.peer.call(SCHEDULE, placement.pid, 0) == LOST) comeHome(placement);
+			return;
+		}
+		Peer target = peerWithSpare();
+		if (target != null) { //Give up the processor here and wait for one on the peer instead
+			localTerminate(placement.pid, true);
+			migrate(placement, target);
+		} else {
+			localSchedule(placement.pid);
+		}
+	}
+
+	@Override
+	public void terminate(int ID) {
+		Placement placement = placement(ID, true);
+		if (placement == null) return;
+		if (placement.peer != null) placement.peer.call(TERMINATE, placement.pid, placement.running ? 1 : 0); //Nothing to free here if the peer has gone
+		else localTerminate(placement.pid, placement.running);
+	}
+
+	@Override
+	public void close() {
+		ArrayList<Connection> connections = new ArrayList<Connection>();
+		lock.lock();
+		try {
+			closed = true;
+			closing.signalAll();
+			for (Peer peer : peers) {
+				lose(peer);
+				connections.add(peer.connection);
+			}
+			connections.addAll(inbound);
+		} finally {
+			lock.unlock();
+		}
+		try {
+			server.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (Connection connection : connections) connection.close();
+	}
+
+	//Run processes on this node: each starts, holds its processor for a session, schedules, and so on,
+	//terminating after the last session. Returns the nanoseconds until every process had terminated.
+	public long runWorkload(int processes, int sessions, long sessionNanos) {
+		Thread[] workers = new Thread[processes];
+		long timeBefore = System.nanoTime();
+		for (int p = 0; p < processes; p++) {
+			int pid = reg(p % 4);
+			workers[p] = threads.newThread(() -> {
+				start(pid);
+				for (int s = 0; s < sessions; s++) {
+					LockSupport.parkNanos(sessionNanos); //The process's work, holding its processor
+					if (s + 1 < sessions) schedule(pid);
+				}
+				terminate(pid);
+			});
+			workers[p].start();
+		}
+		try {
+			for (Thread worker : workers) worker.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return System.nanoTime() - timeBefore;
+	}
+
+	//Get where a process registered here lives, taking it out of the table if it is terminating
+	Placement placement(int pid, boolean remove) {
+		lock.lock();
+		try {
+			return remove ? placements.remove(pid) : placements.get(pid);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Move a process to a peer and wait there for a processor, or back here if the peer has gone
+	void migrate(Placement placement, Peer target) {
+		int pid = target.call(REG, placement.priority, 0);
+		if (pid == LOST) {
+			comeHome(placement);
+			return;
+		}
+		placement.peer = target;
+		placement.pid = pid;
+		lock.lock();
+		try {
+			migrations++;
+		} finally {
+			lock.unlock();
+		}
+		if (target.call(START, pid, 0) == LOST) comeHome(placement);
+	}
+
+	//Register a process here again, its peer having gone, and wait for a processor in this node's line
+	void comeHome(Placement placement) {
+		placement.peer = null;
+		placement.pid = os.reg(placement.priority);
+		localStart(placement.pid);
+	}
+
+	//The peer with the most spare processors, taking one of them, or null if this node has a processor to spare or no peer has
+	Peer peerWithSpare() {
+		lock.lock();
+		try {
+			if (processors - running - waiting > 0) return null;
+			Peer best = null;
+			for (Peer peer : peers) {
+				if (!peer.lost && peer.spare > (best == null ? 0 : best.spare)) best = peer;
+			}
+			if (best != null) best.spare--;
+			return best;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Take a peer for gone (with the node lock held): its calls waiting for a reply return LOST
+	void lose(Peer peer) {
+		if (peer.lost) return;
+		peer.lost = true;
+		for (Call call : pending.values()) {
+			if (call.peer == peer) call.condition.signal();
+		}
+	}
+
+	void localStart(int pid) {
+		lock.lock();
+		try {
+			waiting++;
+		} finally {
+			lock.unlock();
+		}
+		os.start(pid);
+		lock.lock();
+		try {
+			waiting--;
+			peakRunning = Math.max(peakRunning, ++running);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void localSchedule(int pid) {
+		lock.lock();
+		try {
+			running--;
+			waiting++;
+		} finally {
+			lock.unlock();
+		}
+		os.schedule(pid);
+		lock.lock();
+		try {
+			waiting--;
+			peakRunning = Math.max(peakRunning, ++running);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void localTerminate(int pid, boolean wasRunning) {
+		if (wasRunning) {
+			lock.lock();
+			try {
+				running--;
+			} finally {
+				lock.unlock();
+			}
+		}
+		os.terminate(pid);
+	}
+
+	boolean isClosed() {
+		lock.lock();
+		try {
+			return closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void daemon(Runnable task) {
+		Thread thread = new Thread(task);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void accept() {
+		while (!isClosed()) {
+			try {
+				Connection connection = new Connection(server.accept());
+				lock.lock();
+				try {
+					inbound.add(connection);
+				} finally {
+					lock.unlock();
+				}
+				daemon(() -> serve(connection));
+			} catch (IOException e) {
+				if (!isClosed()) e.printStackTrace();
+			}
+		}
+	}
+
+	//Read requests and load reports from a peer, answering each request on its own thread
+	void serve(Connection connection) {
+		try {
+			while (true) {
+				int type = connection.in.readInt();
+				long id = connection.in.readLong();
+				int a = connection.in.readInt();
+				int b = connection.in.readInt();
+				if (type == LOAD) {
+					lock.lock();
+					try {
+						for (Peer peer : peers) {
+							if (peer.port == id) {
+								peer.spare = a - b;
+								peer.lastHeard = System.nanoTime();
+							}
+						}
+					} finally {
+						lock.unlock();
+					}
+				} else if (type == REG) {
+					lock.lock();
+					try {
+						hosted++;
+					} finally {
+						lock.unlock();
+					}
+					connection.send(REPLY, id, os.reg(a), 0);
+				} else {
+					threads.newThread(() -> {
+						if (type == START) localStart(a);
+						else if (type == SCHEDULE) localSchedule(a);
+						else if (type == TERMINATE) localTerminate(a, b == 1);
+						connection.send(REPLY, id, 0, 0);
+					}).start();
+				}
+			}
+		} catch (IOException e) {
+			//The peer has gone
+		}
+	}
+
+	void readReplies(Peer peer) {
+		try {
+			while (true) {
+				int type = peer.connection.in.readInt();
+				long id = peer.connection.in.readLong();
+				int a = peer.connection.in.readInt();
+				peer.connection.in.readInt();
+				if (type != REPLY) continue;
+				lock.lock();
+				try {
+					Call call = pending.get(id);
+					if (call != null) {
+						call.replied = true;
+						call.value = a;
+						call.condition.signal();
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		} catch (IOException e) {
+			lock.lock();
+			try {
+				lose(peer); //Its connection broke
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	//Report this node's load to its peers every LOAD_INTERVAL_NANOS until it closes
+	void reportLoad() {
+		ArrayList<Peer> to = new ArrayList<Peer>();
+		while (true) {
+			int free, queued;
+			lock.lock();
+			try {
+				if (closed) return;
+				free = processors - running;
+				queued = waiting;
+				to.clear();
+				for (Peer peer : peers) {
+					if (!peer.lost) to.add(peer);
+				}
+			} finally {
+				lock.unlock();
+			}
+			for (Peer peer : to) peer.connection.send(LOAD, port(), free, queued);
+			lock.lock();
+			try {
+				long remaining = LOAD_INTERVAL_NANOS;
+				while (!closed && remaining > 0) remaining = closing.awaitNanos(remaining);
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,131 @@
+import java.util.Arrays;
+
+// Bookkeeping for gangs - groups of processes that the OS only ever dispatches together (see
+// OS.regGang).
+//
+// This class is NOT thread safe - all access must be guarded by the OS lock.
+//
+// A gang's members have consecutive pids. The gang joins the line only when every member that
+// hasn't terminated is waiting for a processor, and it does so as one entry: the slot of the
+// last member to arrive stands in line for the whole gang. Gang ids are recycled once every
+// member has terminated, like process table slots.
+
+public class GangTable {
+    public static final int NONE = -1; // The gang of a process that isn't in one; the entry of a gang that isn't in line
+
+    private int size = 0; // Live gangs
+    private int idCount = 0; // Number of ids ever handed out
+    private int[] freeIds = new int[4]; // Stack of ids released by memberTerminated
+    private int freeCount = 0;
+    private int[] firstPids = new int[4]; // By gang id
+    private int[] spans = new int[4]; // Pids first .. first+span-1 are the members
+    private int[] live = new int[4]; // Members not yet terminated
+    private int[] waiting = new int[4]; // Members waiting for a processor
+    private int[] entries = new int[4]; // Slot standing in line for the gang, or NONE
+    private int[] linePriorities = new int[4]; // Priority of the gang's first member to start waiting, for admission control
+
+    // Number of live gangs
+    public int size() {
+        return size;
+    }
+
+    // Add a gang of the pids first .. first+span-1, and get its id
+    public int add(int firstPid, int span) {
+        int gang = freeCount > 0 ? freeIds[--freeCount] : idCount++;
+        if (gang == firstPids.length) {
+            int capacity = gang * 2;
+            firstPids = Arrays.copyOf(firstPids, capacity);
+            spans = Arrays.copyOf(spans, capacity);
+            live = Arrays.copyOf(live, capacity);
+            waiting = Arrays.copyOf(waiting, capacity);
+            entries = Arrays.copyOf(entries, capacity);
+            linePriorities = Arrays.copyOf(linePriorities, capacity);
+        }
+        firstPids[gang] = firstPid;
+        spans[gang] = span;
+        live[gang] = span;
+        waiting[gang] = 0;
+        entries[gang] = NONE;
+        size++;
+        return gang;
+    }
+
+    // Restore a gang from a checkpoint, and get its id
+    public int restore(int firstPid, int span, int liveMembers, int waitingMembers) {
+        int gang = add(firstPid, span);
+        live[gang] = liveMembers;
+        waiting[gang] = waitingMembers;
+        return gang;
+    }
+
+    // Number of ids ever handed out - every gang id is below this
+    public int ids() {
+        return idCount;
+    }
+
+    public int firstPid(int gang) {
+        return firstPids[gang];
+    }
+
+    public int span(int gang) {
+        return spans[gang];
+    }
+
+    // Members not yet terminated
+    public int live(int gang) {
+        return live[gang];
+    }
+
+    // Members waiting for a processor - the processors the gang needs to be dispatched
+    public int waiting(int gang) {
+        return waiting[gang];
+    }
+
+    public int entry(int gang) {
+        return entries[gang];
+    }
+
+    public void setEntry(int gang, int slot) {
+        entries[gang] = slot;
+    }
+
+    // The priority admission control counts the gang at while any of its members wait (see OS.enqueue)
+    public int linePriority(int gang) {
+        return linePriorities[gang];
+    }
+
+    public void setLinePriority(int gang, int priority) {
+        linePriorities[gang] = priority;
+    }
+
+    // Whether every live member is waiting but the gang isn't in line - it needs more processors than
+    // there are, so the OS has set it aside until there are enough
+    public boolean isParked(int gang) {
+        return live[gang] > 0 && waiting[gang] == live[gang] && entries[gang] == NONE;
+    }
+
+    // A member has started waiting for a processor: return whether every live member now is
+    public boolean joined(int gang) {
+        return ++waiting[gang] == live[gang];
+    }
+
+    // A waiting member has stopped waiting without a processor (timed out or cancelled)
+    public void left(int gang) {
+        waiting[gang]--;
+    }
+
+    // Every waiting member has been handed a processor
+    public void dispatched(int gang) {
+        waiting[gang] = 0;
+    }
+
+    // A member that wasn't waiting has terminated: return whether every live member that is left is
+    // waiting (so the gang can go in line), releasing the id if no member is left
+    public boolean memberTerminated(int gang) {
+        if (--live[gang] > 0) return waiting[gang] == live[gang];
+        if (freeCount == freeIds.length) freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        freeIds[freeCount++] = gang;
+        size--;
+        return false;
+    }
+}
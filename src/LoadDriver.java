@@ -0,0 +1,113 @@
+// Load driver for million-process simulations - run with
+//   java LoadDriver [processes] [processors] [schedules per process] [OS|ShardedOS]
+// e.g. java LoadDriver 1000000 8 2 OS
+//
+// Each simulated process is a thread that calls start, schedule (a number of times) and
+// terminate. On Java 21+ the threads are virtual threads, so a parked process costs a small
+// heap-allocated stack rather than a platform thread; on older runtimes the driver falls
+// back to platform threads, which limits it to a few thousand processes.
+//
+// Virtual threads park on the OS's ReentrantLock conditions without pinning their carrier
+// thread (only 'synchronized' and native frames pin). The driver checks this directly: if
+// waits pinned, then once every carrier held a parked process no other process could run
+// and the run would stall. Run with -Djdk.virtualThreadScheduler.parallelism=1 for the
+// strictest check, and -Djdk.tracePinnedThreads=short to have the JVM report any pinning.
+
+//Note that you may use *any* classes in this LoadDriver class that are available in SE 17.
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LoadDriver {
+
+	public static void main(String[] args) {
+		int processes = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int processors = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int schedules = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		String implementation = args.length > 3 ? args[3] : "OS";
+		OS_sim_interface os = implementation.equals("ShardedOS") ? new ShardedOS(processors) : new OS();
+		new LoadDriver().run(os, processes, processors, schedules);
+	}
+
+	//Thread.ofVirtual().factory() when running on Java 21+, looked up reflectively so that this class still builds for SE 17
+	static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	//Heap in use after a full collection
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public void run(OS_sim_interface os, int processes, int processors, int schedules) {
+		ThreadFactory factory = virtualThreadFactory();
+		if (factory == null) {
+			System.out.println("Virtual threads are not available on Java " + System.getProperty("java.version") + " - falling back to platform threads");
+			factory = Thread::new;
+		}
+		System.out.println("implementation = " + os.getClass().getName() + ", processes = " + processes + ", processors = " + processors + ", schedules per process = " + schedules);
+
+		os.set_number_of_processors(processors);
+		//The driver holds every processor while the processes are launched, so that all of them are
+		//registered and parked in start at once before any is dispatched
+		int[] holders = new int[processors];
+		for (int i = 0; i < processors; i++) {
+			holders[i] = os.reg(0);
+			os.start(holders[i]);
+		}
+		long heapBefore = usedHeap();
+		AtomicLong completed = new AtomicLong();
+		Thread[] threads = new Thread[processes];
+
+		long timeBefore = System.nanoTime();
+		for (int p = 0; p < processes; p++) {
+			int pid = os.reg(1 + p % 4);
+			threads[p] = factory.newThread(() -> {
+				os.start(pid);
+				for (int i = 0; i < schedules; i++) os.schedule(pid);
+				os.terminate(pid);
+				completed.incrementAndGet();
+			});
+			threads[p].start();
+		}
+		long launched = System.nanoTime() - timeBefore;
+		long heapAtPeak = usedHeap();
+		System.out.println("launched " + processes + " processes in " + launched / 1_000_000 + " ms");
+		System.out.println("heap with every process live = " + (heapAtPeak - heapBefore) / (1024 * 1024) + " MiB, "
+				+ (heapAtPeak - heapBefore) / processes + " bytes per process");
+		for (int holder : holders) os.terminate(holder); //Let the processes run
+
+		//Watch for progress rather than joining blindly, so that a stall (e.g. pinned carriers) is reported
+		long lastCompleted = -1;
+		long stalledSince = System.nanoTime();
+		while (completed.get() < processes) {
+			try {Thread.sleep(100);} catch (InterruptedException e) {e.printStackTrace();}
+			long now = completed.get();
+			if (now != lastCompleted) {
+				lastCompleted = now;
+				stalledSince = System.nanoTime();
+			} else if (System.nanoTime() - stalledSince > 10_000_000_000L) {
+				System.out.println("\nLOAD DRIVER STALLED - no process completed in 10 s (" + now + " of " + processes + " done)");
+				System.out.println("carrier threads may be pinned - rerun with -Djdk.tracePinnedThreads=short");
+				return;
+			}
+		}
+		long elapsed = System.nanoTime() - timeBefore;
+
+		long calls = (long) processes * (schedules + 2);
+		System.out.println("elapsed = " + elapsed / 1_000_000 + " ms");
+		System.out.println("processes per second = " + (long) (processes * 1e9 / elapsed));
+		System.out.println("start/schedule/terminate calls per second = " + (long) (calls * 1e9 / elapsed));
+		System.out.println("peak threads (platform) = " + ManagementFactory.getThreadMXBean().getPeakThreadCount());
+		System.out.println("\nLOAD DRIVER COMPLETED");
+	}
+
+}
@@ -11,6 +11,24 @@ public class Main {
 			exampleTests.ur4_example_test();
 			exampleTests.ur5_example_test();
 			exampleTests.ur6_example_test();
+			exampleTests.simultaneous_release_test();
+			exampleTests.many_processes_stress_test();
+			exampleTests.fifo_order_stress_test();
+			exampleTests.sharded_stress_test();
+			exampleTests.metrics_test();
+			exampleTests.batch_registration_test();
+			exampleTests.virtual_clock_test();
+			exampleTests.trace_test();
+			exampleTests.workload_replay_test();
+			exampleTests.processor_hot_plug_test();
+			exampleTests.async_test();
+			exampleTests.scheduling_policies_test();
+			exampleTests.cancellable_wait_test();
+			exampleTests.gang_scheduling_test();
+			exampleTests.renice_test();
+			exampleTests.federation_test();
+			exampleTests.checkpoint_restore_test();
+			exampleTests.admission_control_test();
 		}
 
 	}
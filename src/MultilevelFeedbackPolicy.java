@@ -0,0 +1,130 @@
+import java.util.Arrays;
+
+// Multilevel feedback queue: a process starts on the level of its priority, drops one level
+// (down to 'levels' below its priority) each time it holds a processor for a whole quantum
+// before calling schedule, and is raised back to its own priority by a boost every
+// 'boostInterval' dispatches, so CPU-heavy processes give way to short ones without starving.
+//
+// The levels are a ReadyQueues keyed by effective priority (priority + drops), so dispatch is
+// O(1). A boost is applied lazily - a process picks it up the next time it joins the line - so
+// it costs O(1) rather than a pass over every process.
+//
+// NOT thread safe - see SchedulingPolicy.
+
+public class MultilevelFeedbackPolicy implements SchedulingPolicy {
+    private final long quantumNanos;
+    private final int levels;
+    private final long boostInterval;
+    private final ReadyQueues queues = new ReadyQueues();
+    private int[] priorities = new int[16]; // Registered priority, by slot
+    private int[] drops = new int[16]; // Levels dropped since the last boost, by slot
+    private long[] boostEpochs = new long[16]; // Boost the drops were counted in, by slot
+    private int[] queuedLevels = new int[16]; // Level handle each slot is queued (or last was) on
+    private long dispatches = 0;
+
+    public MultilevelFeedbackPolicy(long quantumNanos, int levels, int boostInterval) {
+        this.quantumNanos = quantumNanos;
+        this.levels = Math.max(0, levels);
+        this.boostInterval = Math.max(1, boostInterval);
+    }
+
+    @Override
+    public void ensureCapacity(int capacity) {
+        if (capacity > priorities.length) {
+            priorities = Arrays.copyOf(priorities, capacity);
+            drops = Arrays.copyOf(drops, capacity);
+            boostEpochs = Arrays.copyOf(boostEpochs, capacity);
+            queuedLevels = Arrays.copyOf(queuedLevels, capacity);
+        }
+        queues.ensureNodeCapacity(capacity);
+    }
+
+    @Override
+    public void register(int slot, int priority) {
+        priorities[slot] = priority;
+        drops[slot] = 0;
+        boostEpochs[slot] = dispatches / boostInterval;
+        queuedLevels[slot] = queues.acquireLevel(priority);
+    }
+
+    @Override
+    public void unregister(int slot) {
+        queues.releaseLevel(queuedLevels[slot]);
+    }
+
+    @Override
+    public void setPriority(int slot, int priority, boolean inLine) {
+        priorities[slot] = priority;
+        int level = queues.acquireLevel(priority + drops[slot]); // Keeping the levels it has dropped
+        if (inLine) queues.remove(queuedLevels[slot], slot);
+        queues.releaseLevel(queuedLevels[slot]);
+        queuedLevels[slot] = level;
+        if (inLine) queues.enqueue(level, slot);
+    }
+
+    @Override
+    public void enqueue(int slot) {
+        long epoch = dispatches / boostInterval;
+        if (boostEpochs[slot] != epoch) { // Boosted since it last joined the line
+            boostEpochs[slot] = epoch;
+            drops[slot] = 0;
+        }
+        int priority = priorities[slot] + drops[slot];
+        if (queues.priorityOf(queuedLevels[slot]) != priority) { // Move the process's registration to its new level
+            int level = queues.acquireLevel(priority);
+            queues.releaseLevel(queuedLevels[slot]);
+            queuedLevels[slot] = level;
+        }
+        queues.enqueue(queuedLevels[slot], slot);
+    }
+
+    @Override
+    public int peek() {
+        int level = queues.bestLevel();
+        return level == ReadyQueues.NONE ? NONE : queues.peek(level);
+    }
+
+    @Override
+    public int last() {
+        int level = queues.worstLevel();
+        return level == ReadyQueues.NONE ? NONE : queues.peekLast(level);
+    }
+
+    @Override
+    public int poll() {
+        int level = queues.bestLevel();
+        if (level == ReadyQueues.NONE) return NONE;
+        dispatches++;
+        return queues.poll(level);
+    }
+
+    @Override
+    public void remove(int slot) {
+        queues.remove(queuedLevels[slot], slot);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queues.isEmpty();
+    }
+
+    @Override
+    public int line(int[] into) {
+        return queues.line(into);
+    }
+
+    @Override
+    public int priorityOf(int slot) {
+        return priorities[slot];
+    }
+
+    @Override
+    public boolean usesRunTimes() {
+        return true;
+    }
+
+    @Override
+    public void ran(int slot, long nanos) {
+        if (nanos >= quantumNanos && drops[slot] < levels) drops[slot]++;
+    }
+}
@@ -1,6 +1,9 @@
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.Condition; //Note that the 'notifyAll' method or similar polling mechanism MUST not be used
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
 // IMPORTANT:
 //
@@ -11,83 +14,355 @@ import java.util.HashMap;
 
 //However, you may import non-tread safe classes e.g.:
 
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
-import java.util.TreeMap;
+// ReadyQueues, PidTable, GangTable, SchedulerMetrics, TraceRing, Checkpoint, AdmissionControl and DispatchHandle (see their .java files) are such classes,
+// as are the SchedulingPolicy implementations.
+// CallbackExecutor is built from ReentrantLock and Condition too.
 
 //Your OS class must handle exceptions locally i.e. it must not explicitly 'throw' exceptions 
 //otherwise the compilation with the Test classes will fail!!!
 
-public class OS implements OS_sim_interface {
+public class OS implements OS_batch_interface, AutoCloseable {
+    // Process states
+    private static final byte REGISTERED = 0; // Registered but not in a ready queue or running
+    private static final byte READY = 1; // Waiting in a ready queue for a processor
+    private static final byte RUNNING = 2; // Has been handed a processor
+    private static final byte FREE = 3; // Slot not in use - its process terminated
+    private static final byte ADMITTING = 4; // Started, but waiting out of line for room in it - see AdmissionControl
+    // The first three are saved in checkpoints as they are - see Checkpoint
+
     private final ReentrantLock lock = new ReentrantLock();
-    private final TreeMap<Integer, Queue<Integer>> priorityQueues = new TreeMap<>();
-    private final Map<Integer, Condition> conditions = new HashMap<>();
-    private final Map<Integer, Integer> processPriorities = new HashMap<>();
+    // Process table - indexed by slot. Each live pid maps to a slot, and a terminated process's slot
+    // (and Condition) is recycled for the next process registered, so the table only grows with the
+    // number of live processes.
+    private final PidTable processSlots = new PidTable();
+    private int[] processIds = new int[16]; // Pid of the process in each slot
+    private Condition[] conditions = new Condition[16];
+    private byte[] states = new byte[16];
+    private DispatchHandle[] handles = new DispatchHandle[16]; // Handle to complete on dispatch, for a process queued by startAsync or scheduleAsync
+    private int[] gangs = new int[16]; // Gang of the process in each slot, GangTable.NONE if it isn't in one
+    private boolean[] shed = new boolean[16]; // Whether the process in each slot was last taken out of line to make room for another
+    // Whether the process in each slot has a thread waiting in an untimed start or schedule, which can only
+    // return with a processor - so admission control may not shed it
+    private boolean[] mustWait = new boolean[16];
+    private final GangTable gangTable = new GangTable();
+    // The line of processes waiting for a processor, in the order the policy hands them out
+    private final SchedulingPolicy policy;
+    private long[] dispatchedAt = null; // When each running process was handed its processor - only if the policy uses run times
+    private int totalProcessors = 0; // Processors in the system, free or running a process
+    // Free processors - negative after the number of processors is cut below the number running,
+    // until enough running processes have given theirs up at their next schedule or terminate
     private int availableProcessors = 0;
     private int lastPid = -1;
+    // Metrics - null unless enabled, so that when disabled each call costs one null check
+    private SchedulerMetrics metrics = null;
+    private Consumer<SchedulerMetrics.Snapshot> metricsSink = null; // Receives the periodic dumps
+    private SchedulerListener listener = null; // Told of every dispatch and wait, e.g. by VirtualClockSimulation
+    private TraceRing trace = null; // Binary event trace - null unless enabled
+    private CallbackExecutor callbackExecutor = null; // Runs DispatchHandle callbacks - created on first use, unless set
+    private boolean ownsCallbackExecutor = false; // Whether the OS created callbackExecutor, and so must shut it down
+    private AdmissionControl admission = null; // Limits on the line - null unless set, so unlimited costs one null check
+
+    // Strict priority, first come first served within a priority
+    public OS() {
+        this(new StrictPriorityPolicy());
+    }
+
+    // Schedule by the given policy, which must not be shared with another OS
+    public OS(SchedulingPolicy policy) {
+        this.policy = policy != null ? policy : new StrictPriorityPolicy();
+        this.policy.ensureCapacity(conditions.length);
+        if (this.policy.usesRunTimes()) dispatchedAt = new long[conditions.length];
+    }
 
     @Override
     public void set_number_of_processors(int nProcessors) {
-        lock.lock();
+        SchedulerMetrics m = lockOS();
         try {
-            availableProcessors = nProcessors; // Set number of processor's to the entered value 
+            nProcessors = Math.max(0, nProcessors);
+            availableProcessors += nProcessors - totalProcessors; // Add or remove the difference, leaving running processes their processors
+            totalProcessors = nProcessors;
+            if (trace != null) trace.record(TraceRing.PROCESSORS, -1, 0, availableProcessors);
+            if (gangTable.size() > 0) rejoinParkedGangs(); // Gangs set aside after an earlier cut may fit again
+            dispatchProcesses(); // Hand any added processors straight to the processes in line
         } finally {
-            lock.unlock();
+            unlockOS(m);
         }
     }
 
     @Override
     public int reg(int priority) {
-        lock.lock();
+        SchedulerMetrics m = lockOS();
         try {
             int pid = ++lastPid; // Assign a unique process ID
-            priorityQueues.putIfAbsent(priority, new LinkedList<>()); // Create a queue for the priority if it doesn't exist
-            conditions.put(pid, lock.newCondition()); // Create a condition object for the process
-            processPriorities.put(pid, priority); // Store the process's priority
+            int slot = processSlots.add(pid); // Give it a free slot in the process table
+            if (slot == conditions.length) growProcessTable();
+            if (conditions[slot] == null) conditions[slot] = lock.newCondition(); // Create a condition object for the process (recycled slots keep theirs)
+            processIds[slot] = pid;
+            policy.register(slot, priority);
+            gangs[slot] = GangTable.NONE;
+            states[slot] = REGISTERED;
+            if (trace != null) trace.record(TraceRing.REG, pid, priority, availableProcessors);
             return pid; // Return the assigned process ID
         } finally {
-            lock.unlock();
+            unlockOS(m);
+        }
+    }
+
+    @Override
+    public int regBatch(int[] priorities) {
+        if (priorities == null || priorities.length == 0) return -1;
+        SchedulerMetrics m = lockOS();
+        try {
+            int firstPid = lastPid + 1;
+            for (int i = 0; i < priorities.length; i++) {
+                int slot = processSlots.add(++lastPid);
+                if (slot == conditions.length) growProcessTable();
+                if (conditions[slot] == null) conditions[slot] = lock.newCondition();
+                processIds[slot] = lastPid;
+                policy.register(slot, priorities[i]); // Runs of the same priority are cheap - see StrictPriorityPolicy
+                gangs[slot] = GangTable.NONE;
+                states[slot] = REGISTERED;
+                if (trace != null) trace.record(TraceRing.REG, lastPid, priorities[i], availableProcessors);
+            }
+            return firstPid;
+        } finally {
+            unlockOS(m);
+        }
+    }
+
+    // Register a gang of 'size' processes of one priority, and get the pid of the first - the members are
+    // that pid and the size-1 after it. Each member starts, schedules and terminates as usual, but the
+    // gang only joins the line once every member that hasn't terminated is waiting for a processor, and
+    // is then dispatched, every waiting member at once, when that many processors are free - until then
+    // it holds its place at the head of the line. Returns -1 if the size is not positive or is more than
+    // the number of processors, as the gang could never be dispatched. If the processors are later cut
+    // below the number of members waiting, the gang is set aside, out of line, instead of holding up the
+    // processes behind it for good, and goes back in line (behind its priority) once there are enough.
+    public int regGang(int size, int priority) {
+        if (size <= 0) return -1;
+        SchedulerMetrics m = lockOS();
+        try {
+            if (size > totalProcessors) return -1;
+            int firstPid = lastPid + 1;
+            int gang = gangTable.add(firstPid, size);
+            for (int i = 0; i < size; i++) {
+                int slot = processSlots.add(++lastPid);
+                if (slot == conditions.length) growProcessTable();
+                if (conditions[slot] == null) conditions[slot] = lock.newCondition();
+                processIds[slot] = lastPid;
+                policy.register(slot, priority);
+                gangs[slot] = gang;
+                states[slot] = REGISTERED;
+                if (trace != null) trace.record(TraceRing.REG, lastPid, priority, availableProcessors);
+            }
+            return firstPid;
+        } finally {
+            unlockOS(m);
+        }
+    }
+
+    @Override
+    public void admitBatch(int firstPid, int count) {
+        SchedulerMetrics m = lockOS();
+        try {
+            for (int pid = firstPid; pid >= 0 && pid - firstPid < count; pid++) {
+                int slot = processSlots.slotOf(pid);
+                if (slot != PidTable.NONE && states[slot] == REGISTERED) admit(slot, true); // Rejected processes stay registered, and wait for room when started
+            }
+            dispatchProcesses(); // Hand out the free processors once the whole batch is in line
+        } finally {
+            unlockOS(m);
         }
     }
 
     @Override
     public void start(int ID) {
-        lock.lock();
+        start(ID, -1, false);
+    }
+
+    // Start, waiting as start(ID, timeoutNanos) does, and get the outcome: AdmissionControl.DISPATCHED once
+    // the process has a processor, REJECTED or SHED if admission control turned it away (see
+    // setAdmissionControl), WITHDRAWN if its wait timed out, was interrupted or cancelled, or
+    // UNKNOWN_PROCESS. On anything but DISPATCHED the process stays registered and may start again.
+    public int startStatus(int ID, long timeoutNanos) {
+        return start(ID, timeoutNanos, true);
+    }
+
+    // Start, but wait at most timeoutNanos for a processor (as long as it takes if negative), and stop
+    // waiting if the thread is interrupted (the interrupt stays set) or another thread cancels the wait.
+    // Returns true once the process has a processor. On false the process has been taken out of line -
+    // it holds no processor, stays registered, and may start again or terminate.
+    public boolean start(int ID, long timeoutNanos) {
+        return start(ID, timeoutNanos, true) == AdmissionControl.DISPATCHED;
+    }
+
+    private int start(int ID, long timeoutNanos, boolean interruptible) {
+        SchedulerMetrics m = lockOS();
+        try {
+            int slot = processSlots.slotOf(ID);
+            if (slot == PidTable.NONE) return AdmissionControl.UNKNOWN_PROCESS; // Not registered
+            if (states[slot] == READY || states[slot] == ADMITTING) return awaitStart(slot, m, timeoutNanos, interruptible); // Admitted by admitBatch - just wait for its turn
+            if (states[slot] != REGISTERED) return AdmissionControl.DISPATCHED; // Already started
+            if (takeFreeProcessor(slot, m)) return AdmissionControl.DISPATCHED; // Fast path - nobody is in line, so take a free processor directly
+            long queuedAt = m != null ? System.nanoTime() : 0;
+            if (!admit(slot, interruptible)) return AdmissionControl.REJECTED; // Add the process to the queue for its priority, if there is room
+            dispatchProcesses(); // Hand any free processor to the process first in line
+            int outcome = awaitStart(slot, m, timeoutNanos, interruptible); // Wait until this process has been handed a processor
+            if (m != null && outcome == AdmissionControl.DISPATCHED) m.startWaited(System.nanoTime() - queuedAt);
+            return outcome;
+        } finally {
+            unlockOS(m);
+        }
+    }
+
+    @Override
+    public void schedule(int ID) {
+        schedule(ID, -1, false);
+    }
+
+    // Schedule, but wait at most timeoutNanos for a processor again (as long as it takes if negative), and
+    // stop waiting if the thread is interrupted (the interrupt stays set) or another thread cancels the
+    // wait. Returns true once the process has a processor again. On false the process has given up its
+    // processor and been taken out of line - it stays registered, and may start again or terminate.
+    public boolean schedule(int ID, long timeoutNanos) {
+        return schedule(ID, timeoutNanos, true);
+    }
+
+    private boolean schedule(int ID, long timeoutNanos, boolean interruptible) {
+        SchedulerMetrics m = lockOS();
+        try {
+            int slot = processSlots.slotOf(ID);
+            if (slot == PidTable.NONE || states[slot] != RUNNING) return false; // Only a running process can give up its processor
+            long queuedAt = m != null ? System.nanoTime() : 0;
+            if (trace != null) trace.record(TraceRing.SCHEDULE, ID, policy.priorityOf(slot), availableProcessors);
+            releaseProcessor(slot); // Release the process's processor
+            enqueue(slot); // Add the process to the back of the queue for its priority
+            dispatchProcesses(); // Hand it to the process first in line (possibly this one)
+            if (m != null) m.scheduled(states[slot] == RUNNING);
+            boolean dispatched = awaitDispatch(slot, m, timeoutNanos, interruptible); // Wait until this process has been handed a processor again
+            if (m != null && dispatched) m.scheduleWaited(System.nanoTime() - queuedAt);
+            return dispatched;
+        } finally {
+            unlockOS(m);
+        }
+    }
+
+    // Change the priority of a process. If it is waiting in line it moves to the back of the queue for
+    // its new priority straight away (O(log n) - a search of the priority levels), and is dispatched if
+    // that puts it first in line with a processor free; a running process is placed by its new priority
+    // at its next schedule. A gang is placed by the priority of the member standing in line for it, so
+    // change every member's. Returns false if the process isn't registered.
+    public boolean setPriority(int ID, int priority) {
+        SchedulerMetrics m = lockOS();
+        try {
+            int slot = processSlots.slotOf(ID);
+            if (slot == PidTable.NONE) return false;
+            int gang = gangs[slot];
+            boolean inLine = states[slot] == READY && (gang == GangTable.NONE || gangTable.entry(gang) == slot);
+            if (m != null) m.reniced(policy.priorityOf(slot), priority, states[slot] == READY);
+            if (admission != null && states[slot] == READY && gang == GangTable.NONE) { // A gang stays counted at the priority it joined at
+                admission.left(policy.priorityOf(slot));
+                admission.joined(priority);
+            }
+            policy.setPriority(slot, priority, inLine);
+            if (trace != null) trace.record(TraceRing.RENICE, ID, priority, availableProcessors);
+            if (inLine || admission != null) dispatchProcesses(); // It may now be ahead of a gang holding the head of the line, or have made room
+            return true;
+        } finally {
+            unlockOS(m);
+        }
+    }
+
+    // Take a process waiting in line for a processor (or for room in line) back out of line: its thread
+    // returns false from the timed start or schedule (or startStatus), or its DispatchHandle is cancelled.
+    // The process stays registered and may start again or terminate. Returns false if it wasn't waiting,
+    // or if its thread is in the untimed start(pid) or schedule(pid), which can only return with a processor.
+    public boolean cancel(int ID) {
+        SchedulerMetrics m = lockOS();
+        try {
+            int slot = processSlots.slotOf(ID);
+            if (slot == PidTable.NONE || (states[slot] != READY && states[slot] != ADMITTING) || mustWait[slot]) return false;
+            withdraw(slot);
+            conditions[slot].signal(); // Wake its thread, if it has one waiting
+            if (admission != null) dispatchProcesses(); // Let in a start waiting for room
+            return true;
+        } finally {
+            unlockOS(m);
+        }
+    }
+
+    // Non-blocking start: queue the process just as start would, and return a handle that completes
+    // when the process is handed a processor (already complete if it took a free one). Returns null,
+    // doing nothing, if the process isn't registered or has already been started.
+    public DispatchHandle startAsync(int ID) {
+        SchedulerMetrics m = lockOS();
         try {
-            int priority = processPriorities.get(ID); // Get the priority of the process
-            Queue<Integer> queue = priorityQueues.get(priority); // Get the queue for the process's priority
-            queue.add(ID); // Add the process to the queue
-            // Wait if it's not the process's turn, there are no available processors, or it's not the highest priority process
-            while ((queue.peek() == null || queue.peek() != ID) || availableProcessors <= 0 || !isHighestPriorityProcess(ID)) {
-                conditions.get(ID).await();
+            int slot = processSlots.slotOf(ID);
+            if (slot == PidTable.NONE || states[slot] != REGISTERED) return null;
+            DispatchHandle handle = new DispatchHandle(ID, this, lock);
+            if (takeFreeProcessor(slot, m)) {
+                handle.complete();
+                return handle;
             }
-            queue.remove(ID); // Remove the process from the queue
-            availableProcessors--; // Decrement the available processors count
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            handles[slot] = handle;
+            if (!admit(slot, true)) { // Turned away by admission control - the handle reports it
+                handles[slot] = null;
+                handle.cancel();
+                return handle;
+            }
+            dispatchProcesses(); // Joined the same ready queues as blocking starts, so the same order applies
+            return handle;
+        } finally {
+            unlockOS(m);
+        }
+    }
+
+    // Non-blocking schedule: give up the processor just as schedule would, and return a handle that
+    // completes when the process is handed a processor again. Returns null, doing nothing, if the
+    // process isn't running.
+    public DispatchHandle scheduleAsync(int ID) {
+        SchedulerMetrics m = lockOS();
+        try {
+            int slot = processSlots.slotOf(ID);
+            if (slot == PidTable.NONE || states[slot] != RUNNING) return null;
+            DispatchHandle handle = new DispatchHandle(ID, this, lock);
+            handles[slot] = handle;
+            if (trace != null) trace.record(TraceRing.SCHEDULE, ID, policy.priorityOf(slot), availableProcessors);
+            releaseProcessor(slot);
+            enqueue(slot);
+            dispatchProcesses(); // May hand the processor straight back, completing the handle
+            if (m != null) m.scheduled(states[slot] == RUNNING);
+            return handle;
+        } finally {
+            unlockOS(m);
+        }
+    }
+
+    // Use the given executor for DispatchHandle callbacks, including those of handles already returned (by
+    // default the OS creates one with 2 daemon threads, shutting it down when it is replaced or the OS is
+    // closed). An executor passed in is left running - it may be shared, so it is the caller's to shut down.
+    public void setCallbackExecutor(CallbackExecutor executor) {
+        lock.lock();
+        try {
+            if (ownsCallbackExecutor && executor != callbackExecutor) callbackExecutor.shutdown(); // Its queued callbacks still run
+            callbackExecutor = executor;
+            ownsCallbackExecutor = false;
         } finally {
             lock.unlock();
         }
     }
 
+    // Stop the callback threads the OS created, once the callbacks already queued have run. The OS stays
+    // usable: a later callback starts new threads.
     @Override
-    public void schedule(int ID) {
+    public void close() {
         lock.lock();
         try {
-            int priority = processPriorities.get(ID); // Get the priority of the process
-            Queue<Integer> queue = priorityQueues.get(priority); // Get the queue for the process's priority
-            queue.add(ID); // Add the process to the queue
-            availableProcessors++; // Increment the available processors count
-            notifyNextProcess(); // Notify the next proccess in line
-            // Wait if it's not the process's turn or it's not the highest priority process
-            while (queue.peek() == null || queue.peek() != ID || !isHighestPriorityProcess(ID)) {
-                conditions.get(ID).await();
+            if (ownsCallbackExecutor) {
+                callbackExecutor.shutdown();
+                callbackExecutor = null;
+                ownsCallbackExecutor = false;
             }
-            queue.remove(ID); // Remove the process from the queue
-            availableProcessors--; // Decrement the available processors count
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
         } finally {
             lock.unlock();
         }
@@ -95,34 +370,588 @@ public class OS implements OS_sim_interface {
 
     @Override
     public void terminate(int ID) {
+        SchedulerMetrics m = lockOS();
+        try {
+            int slot = processSlots.slotOf(ID);
+            if (slot == PidTable.NONE || states[slot] == READY || states[slot] == ADMITTING) return; // Not registered, or its thread is still waiting for a processor
+            if (m != null) m.terminated();
+            if (trace != null) trace.record(TraceRing.TERMINATE, ID, policy.priorityOf(slot), availableProcessors);
+            boolean released = states[slot] == RUNNING;
+            if (released) releaseProcessor(slot); // Release the process's processor
+            // Reclaim the process's state - its slot goes back on the free-list, and the policy forgets it
+            policy.unregister(slot);
+            processSlots.remove(ID);
+            states[slot] = FREE;
+            // The rest of its gang may have been waiting only for this process
+            boolean gangReady = gangs[slot] != GangTable.NONE && gangTable.memberTerminated(gangs[slot]);
+            if (gangReady) joinLine(gangs[slot]);
+            if (released || gangReady) dispatchProcesses(); // Hand the processor to the process first in line
+        } finally {
+            unlockOS(m);
+        }
+    }
+
+    // Take a consistent point-in-time copy of the scheduler state (see Checkpoint). The OS is locked only
+    // while the state is copied into flat arrays - one pass over the process table and one over the line
+    // (O(n log n) for the heap-based policies) - and a checkpoint is written to a file after it is unlocked.
+    public Checkpoint checkpoint() {
         lock.lock();
         try {
-            availableProcessors++; // Increment the available processors count
-            notifyNextProcess(); // Notify the next process in line
+            Checkpoint checkpoint = new Checkpoint(lastPid, totalProcessors, availableProcessors, processSlots.size(), gangTable.size());
+            int[] gangIndexes = null; // Index in the checkpoint of each gang id seen so far
+            if (gangTable.size() > 0) {
+                gangIndexes = new int[gangTable.ids()];
+                Arrays.fill(gangIndexes, Checkpoint.NONE);
+            }
+            int p = 0;
+            for (int slot = 0, slots = processSlots.slotCount(); slot < slots; slot++) {
+                if (states[slot] == FREE) continue;
+                checkpoint.pids[p] = processIds[slot];
+                checkpoint.priorities[p] = policy.priorityOf(slot);
+                checkpoint.states[p] = states[slot] == ADMITTING ? REGISTERED : states[slot]; // Its start is retried after a restore
+                int gang = gangs[slot];
+                if (gang == GangTable.NONE) checkpoint.gangs[p] = Checkpoint.NONE;
+                else {
+                    if (gangIndexes[gang] == Checkpoint.NONE) {
+                        int entry = gangTable.entry(gang);
+                        gangIndexes[gang] = checkpoint.addGang(gangTable.firstPid(gang), gangTable.span(gang), gangTable.live(gang),
+                                gangTable.waiting(gang), entry == GangTable.NONE ? Checkpoint.NONE : processIds[entry]);
+                    }
+                    checkpoint.gangs[p] = gangIndexes[gang];
+                }
+                p++;
+            }
+            int[] line = checkpoint.line;
+            checkpoint.lineLength = policy.line(line);
+            for (int i = 0; i < checkpoint.lineLength; i++) line[i] = processIds[line[i]]; // Slots to pids
+            return checkpoint;
         } finally {
             lock.unlock();
         }
     }
 
-    // Helper Function - Notify the next process in line to start execution
-    private void notifyNextProcess() {
-        for (Map.Entry<Integer, Queue<Integer>> entry : priorityQueues.entrySet()) {
-            Queue<Integer> currentQueue = entry.getValue(); // Get the queue for the current priority level
-            if (!currentQueue.isEmpty()) {
-                Integer currentProcessId = currentQueue.peek(); // Get the ID of the next process in line
-                Condition currentCondition = conditions.get(currentProcessId); // Get the condition object for the process
-                if (currentCondition != null) {
-                    currentCondition.signal(); // Signal the process to start execution
-                    break;
+    // Take a checkpoint and write it to a file. Returns false if it couldn't be written.
+    public boolean checkpoint(String path) {
+        return checkpoint().write(path);
+    }
+
+    // Rebuild an OS from a checkpoint file, scheduling by the given policy (strict priority if null), in
+    // time proportional to the number of live processes. Processes keep their pids, priorities, gangs and
+    // places in line, running processes keep their processors, and the next pid registered follows on.
+    // The threads are gone, so each process carries on from a new one: a process that was waiting for a
+    // processor (in start or schedule) calls start, which waits for its turn as after admitBatch; a running
+    // one calls schedule or terminate as usual. Returns null if the file isn't a whole, valid checkpoint
+    // (see Checkpoint.read), printing why.
+    public static OS restore(String path, SchedulingPolicy policy) {
+        Checkpoint checkpoint;
+        try {
+            checkpoint = Checkpoint.read(path);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return null;
+        }
+        OS os = new OS(policy);
+        os.restore(checkpoint);
+        return os;
+    }
+
+    public static OS restore(String path) {
+        return restore(path, null);
+    }
+
+    // Limit how many processes may wait in line, and choose what a start that finds it full does (see
+    // AdmissionControl), or with null lift the limits. The control counts the processes already in line
+    // (a gang once); starts waiting for room under a control being replaced join the line. The control
+    // must not be shared with another OS.
+    public void setAdmissionControl(AdmissionControl control) {
+        lock.lock();
+        try {
+            AdmissionControl previous = admission;
+            admission = control;
+            if (control != null) {
+                control.ensureCapacity(conditions.length);
+                control.clearDepths();
+                for (int slot = 0, slots = processSlots.slotCount(); slot < slots; slot++) {
+                    if (states[slot] == READY && gangs[slot] == GangTable.NONE) control.joined(policy.priorityOf(slot));
+                }
+                for (int gang = 0, ids = gangTable.ids(); gang < ids; gang++) {
+                    if (gangTable.live(gang) > 0 && gangTable.waiting(gang) > 0) control.joined(gangTable.linePriority(gang)); // Once per gang
                 }
             }
+            if (previous != null && previous != control) {
+                for (int slot = previous.firstBlocked(); slot != AdmissionControl.NONE; slot = previous.nextBlocked(slot)) enqueue(slot);
+            }
+            dispatchProcesses();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Get a copy of the admission control depths and counters, or null if there is no admission control
+    public AdmissionControl.Stats admissionStats() {
+        lock.lock();
+        try {
+            return admission == null ? null : admission.stats();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Start collecting metrics (discarding any collected so far). If dumpIntervalMillis is positive,
+    // a snapshot is passed to the sink at most that often - by the first OS call to finish after the
+    // interval has passed, once it has released the lock - so no extra thread is needed.
+    public void enableMetrics(long dumpIntervalMillis, Consumer<SchedulerMetrics.Snapshot> sink) {
+        lock.lock();
+        try {
+            metrics = new SchedulerMetrics(sink == null ? 0 : Math.max(0, dumpIntervalMillis));
+            metricsSink = sink;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void enableMetrics() {
+        enableMetrics(0, null);
+    }
+
+    public void disableMetrics() {
+        lock.lock();
+        try {
+            metrics = null;
+            metricsSink = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Get a copy of the metrics collected since they were enabled, or null if they are disabled
+    public SchedulerMetrics.Snapshot metricsSnapshot() {
+        lock.lock();
+        try {
+            return metrics == null ? null : metrics.snapshot(availableProcessors, processSlots.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Start tracing every reg, enqueue, dispatch, schedule and terminate to a ring of binary records in a
+    // memory-mapped file (see TraceRing; TraceDecoder reads it). Returns false if the file can't be mapped.
+    public boolean enableTrace(String path, int capacityRecords) {
+        TraceRing ring;
+        try {
+            ring = TraceRing.create(Paths.get(path), capacityRecords); // Map the file before taking the lock
+        } catch (RuntimeException e) { // An invalid path
+            e.printStackTrace();
+            return false;
+        }
+        if (ring == null) return false;
+        lock.lock();
+        try {
+            if (trace != null) trace.flush();
+            trace = ring;
+            trace.record(TraceRing.PROCESSORS, -1, 0, availableProcessors);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stop tracing and write the trace back to its file
+    public void disableTrace() {
+        TraceRing ring;
+        lock.lock();
+        try {
+            ring = trace;
+            trace = null;
+        } finally {
+            lock.unlock();
+        }
+        if (ring != null) ring.flush();
+    }
+
+    // Set (or with null, clear) the listener told of every dispatch and wait
+    public void setListener(SchedulerListener listener) {
+        lock.lock();
+        try {
+            this.listener = listener;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Helper Function - Lock the OS, and get the metrics to record this call in (null if disabled)
+    private SchedulerMetrics lockOS() {
+        lock.lock();
+        SchedulerMetrics m = metrics;
+        if (m != null) m.lockAcquired();
+        return m;
+    }
+
+    // Helper Function - Unlock the OS, recording the lock hold and passing on any periodic dump that is due.
+    // The sink is called after unlocking, so a slow sink only delays its own caller.
+    private void unlockOS(SchedulerMetrics m) {
+        if (m == null) {
+            lock.unlock();
+            return;
+        }
+        long now = m.lockReleased();
+        SchedulerMetrics.Snapshot dump = m == metrics ? m.dueDump(now, availableProcessors, processSlots.size()) : null;
+        Consumer<SchedulerMetrics.Snapshot> sink = metricsSink;
+        lock.unlock();
+        if (dump != null) {
+            try {
+                sink.accept(dump);
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // A failing sink must not break the OS call that happened to run it
+            }
+        }
+    }
+
+    // Helper Function - Give a starting process a free processor straight away if nobody is in line
+    private boolean takeFreeProcessor(int slot, SchedulerMetrics m) {
+        if (availableProcessors <= 0 || !policy.isEmpty() || gangs[slot] != GangTable.NONE) return false; // Gang members only go together
+        availableProcessors--;
+        states[slot] = RUNNING;
+        if (dispatchedAt != null) dispatchedAt[slot] = System.nanoTime();
+        if (m != null) m.fastPathStart();
+        if (trace != null) trace.record(TraceRing.DISPATCH, processIds[slot], policy.priorityOf(slot), availableProcessors);
+        return true;
+    }
+
+    // Helper Function - The executor for DispatchHandle callbacks, created on first use (lock held)
+    CallbackExecutor callbackExecutor() {
+        if (callbackExecutor == null) {
+            callbackExecutor = new CallbackExecutor(2);
+            ownsCallbackExecutor = true;
+        }
+        return callbackExecutor;
+    }
+
+    // Helper Function - Give up a running process's processor, telling the policy how long it held it
+    private void releaseProcessor(int slot) {
+        availableProcessors++;
+        if (dispatchedAt != null) policy.ran(slot, System.nanoTime() - dispatchedAt[slot]);
+    }
+
+    // Helper Function - Put a process in line for a processor. A gang member only waits for the rest of
+    // its gang, unless it is the last to arrive, when it stands in line for the whole gang. Admission
+    // control counts a gang once, from its first member in until it is dispatched or leaves the line.
+    private void enqueue(int slot) {
+        int gang = gangs[slot];
+        boolean counted = true; // Whether the process takes up a place in line of its own
+        if (gang == GangTable.NONE) policy.enqueue(slot);
+        else {
+            counted = gangTable.waiting(gang) == 0;
+            if (counted) gangTable.setLinePriority(gang, policy.priorityOf(slot));
+            if (gangTable.joined(gang)) {
+                policy.enqueue(slot);
+                gangTable.setEntry(gang, slot);
+            }
+        }
+        states[slot] = READY;
+        if (admission != null && counted) admission.joined(policy.priorityOf(slot));
+        if (metrics != null) metrics.enqueued(policy.priorityOf(slot));
+        if (trace != null) trace.record(TraceRing.ENQUEUE, processIds[slot], policy.priorityOf(slot), availableProcessors);
+    }
+
+    // Helper Function - Take a process out of line without a processor, leaving it registered. Nothing is
+    // handed to it, so no wakeup is lost: the processors go on to the processes behind it.
+    private void withdraw(int slot) {
+        int gang = gangs[slot];
+        boolean inLine = states[slot] == READY; // Otherwise it is still waiting for room in line
+        if (!inLine) admission.unblock(slot);
+        else if (gang == GangTable.NONE) {
+            if (admission != null) admission.left(policy.priorityOf(slot));
+            policy.remove(slot); // O(1) for the level-based policies, O(log n) for the heap-based ones
+        } else {
+            if (gangTable.entry(gang) != GangTable.NONE) { // The gang is no longer complete, so it leaves the line
+                policy.remove(gangTable.entry(gang));
+                gangTable.setEntry(gang, GangTable.NONE);
+            }
+            gangTable.left(gang);
+            if (admission != null && gangTable.waiting(gang) == 0) admission.left(gangTable.linePriority(gang)); // Its last member in line
+        }
+        states[slot] = REGISTERED;
+        if (metrics != null && inLine) metrics.cancelled(policy.priorityOf(slot));
+        if (trace != null) trace.record(TraceRing.CANCEL, processIds[slot], policy.priorityOf(slot), availableProcessors);
+        if (handles[slot] != null) {
+            handles[slot].cancel();
+            handles[slot] = null;
+        }
+    }
+
+    // Helper Function - Hand the free processors directly to the processes first in line by the policy.
+    // The releasing thread dequeues each winner, takes the processor on its behalf and signals only
+    // that process's condition, so a woken process never has to re-check the queues.
+    private void dispatchProcesses() {
+        dispatchLine();
+        while (admission != null && admitWaiting()) dispatchLine(); // Starts let in by the room made may find processors free too
+    }
+
+    private void dispatchLine() {
+        while (availableProcessors > 0) {
+            if (gangTable.size() > 0) { // A gang first in line goes all at once, or holds the line until it can
+                int first = policy.peek();
+                if (first != SchedulingPolicy.NONE && gangs[first] != GangTable.NONE) {
+                    int gang = gangs[first];
+                    if (gangTable.waiting(gang) > totalProcessors) { // Can't fit since the processors were cut - set it aside
+                        policy.poll();
+                        gangTable.setEntry(gang, GangTable.NONE); // Parked until rejoinParkedGangs
+                        continue;
+                    }
+                    if (availableProcessors < gangTable.waiting(gang)) return;
+                    policy.poll();
+                    dispatchGang(gang);
+                    continue;
+                }
+            }
+            int slot = policy.poll(); // Remove the winner from the line
+            if (slot == SchedulingPolicy.NONE) return;
+            dispatch(slot);
+        }
+    }
+
+    // Helper Function - Put a starting process in line, subject to admission control. Returns false if it
+    // was turned away; a start that has to wait for room is left ADMITTING, out of line, until admitWaiting.
+    // A start that can't report being turned away (canRefuse false - an untimed start) always waits for room.
+    private boolean admit(int slot, boolean canRefuse) {
+        shed[slot] = false;
+        AdmissionControl control = admission;
+        if (control == null) {
+            enqueue(slot);
+            return true;
+        }
+        int priority = policy.priorityOf(slot);
+        if (hasRoom(slot)) {
+            control.admitted();
+            enqueue(slot);
+            admitGangPeers(slot);
+            return true;
+        }
+        if (control.mode() == AdmissionControl.BLOCK || !canRefuse) {
+            control.block(slot);
+            states[slot] = ADMITTING;
+            return true;
+        }
+        if (control.mode() == AdmissionControl.SHED_LOWEST && !control.priorityFull(priority)) { // Room can only be made across priorities
+            int victim = sheddable(priority);
+            if (victim != SchedulingPolicy.NONE) {
+                control.shed(policy.priorityOf(victim));
+                if (mustWait[victim]) { // Its untimed start or schedule can't return without a processor, so it waits for room again
+                    policy.remove(victim);
+                    control.left(policy.priorityOf(victim));
+                    if (metrics != null) metrics.cancelled(policy.priorityOf(victim));
+                    control.block(victim);
+                    states[victim] = ADMITTING;
+                } else {
+                    shed[victim] = true;
+                    withdraw(victim); // Cancels its handle, if it has one
+                    conditions[victim].signal(); // Its thread returns without a processor
+                }
+                control.admitted();
+                enqueue(slot);
+                return true;
+            }
+        }
+        control.rejected(priority);
+        if (trace != null) trace.record(TraceRing.REJECT, processIds[slot], priority, availableProcessors);
+        return false;
+    }
+
+    // Helper Function - The process to shed to make room for a start of the given priority, or NONE: the
+    // last in line, if it has a lower priority (higher value). A gang is never shed, so if the last in
+    // line stands for one, the line is walked back from the end for the last lower priority process.
+    private int sheddable(int priority) {
+        int last = policy.last();
+        if (last == SchedulingPolicy.NONE) return SchedulingPolicy.NONE;
+        if (gangs[last] == GangTable.NONE) return policy.priorityOf(last) > priority ? last : SchedulingPolicy.NONE;
+        int[] order = new int[processSlots.slotCount()]; // Only when a gang is last, so nothing is kept for it
+        for (int i = policy.line(order) - 1; i >= 0; i--) {
+            if (gangs[order[i]] == GangTable.NONE && policy.priorityOf(order[i]) > priority) return order[i];
+        }
+        return SchedulingPolicy.NONE;
+    }
+
+    // Helper Function - Let the starts waiting for room into the line, first come first served among those
+    // whose priority has room, and return whether any went in. O(starts waiting) when only priority limits bind.
+    private boolean admitWaiting() {
+        boolean any = false;
+        int slot = admission.firstBlocked();
+        while (slot != AdmissionControl.NONE && !admission.lineFull()) {
+            int after = admission.nextBlocked(slot);
+            if (hasRoom(slot)) {
+                admission.unblock(slot);
+                admission.admitted();
+                enqueue(slot); // Its thread, if it has one, keeps waiting for the dispatch itself - no wakeup needed
+                admitGangPeers(slot);
+                any = true;
+                if (after != AdmissionControl.NONE && states[after] != ADMITTING) after = admission.firstBlocked(); // A peer let in was next
+            }
+            slot = after;
+        }
+        return any;
+    }
+
+    // Helper Function - Whether a start may join the line. A gang takes up one place, from its first
+    // member in, so the rest of its members always may - admitting them one place each could leave a
+    // gang bigger than the limits waiting for room that only its own dispatch would make.
+    private boolean hasRoom(int slot) {
+        int gang = gangs[slot];
+        return (gang != GangTable.NONE && gangTable.waiting(gang) > 0) || admission.hasRoom(policy.priorityOf(slot));
+    }
+
+    // Helper Function - Let into the line the members of a gang that were waiting for room, once one of
+    // them is in (and has taken up the gang's place)
+    private void admitGangPeers(int slot) {
+        int gang = gangs[slot];
+        if (gang == GangTable.NONE || admission.blocked() == 0) return;
+        int firstPid = gangTable.firstPid(gang);
+        for (int pid = firstPid; pid < firstPid + gangTable.span(gang); pid++) {
+            int peer = processSlots.slotOf(pid);
+            if (peer != PidTable.NONE && states[peer] == ADMITTING) {
+                admission.unblock(peer);
+                admission.admitted();
+                enqueue(peer);
+            }
+        }
+    }
+
+    // Helper Function - Hand every waiting member of a gang a processor
+    private void dispatchGang(int gang) {
+        gangTable.setEntry(gang, GangTable.NONE);
+        int firstPid = gangTable.firstPid(gang);
+        for (int pid = firstPid; pid < firstPid + gangTable.span(gang); pid++) {
+            int slot = processSlots.slotOf(pid);
+            if (slot != PidTable.NONE && states[slot] == READY) dispatch(slot);
+        }
+        gangTable.dispatched(gang);
+        if (admission != null) admission.left(gangTable.linePriority(gang));
+    }
+
+    // Helper Function - Put a gang whose live members are all waiting in line, with a waiting member standing for it
+    private void joinLine(int gang) {
+        int firstPid = gangTable.firstPid(gang);
+        for (int pid = firstPid; pid < firstPid + gangTable.span(gang); pid++) {
+            int slot = processSlots.slotOf(pid);
+            if (slot != PidTable.NONE && states[slot] == READY) {
+                policy.enqueue(slot);
+                gangTable.setEntry(gang, slot);
+                return;
+            }
+        }
+    }
+
+    // Helper Function - Put back in line the gangs set aside by dispatchLine that the processors now fit
+    private void rejoinParkedGangs() {
+        for (int gang = 0, ids = gangTable.ids(); gang < ids; gang++) {
+            if (gangTable.isParked(gang) && gangTable.waiting(gang) <= totalProcessors) joinLine(gang);
+        }
+    }
+
+    // Helper Function - Hand a process taken out of line a processor and wake it (or complete its handle)
+    private void dispatch(int slot) {
+        availableProcessors--; // Take the processor on behalf of the winner
+        states[slot] = RUNNING;
+        if (dispatchedAt != null) dispatchedAt[slot] = System.nanoTime();
+        if (admission != null && gangs[slot] == GangTable.NONE) admission.left(policy.priorityOf(slot)); // A gang leaves once, in dispatchGang
+        if (metrics != null) metrics.dispatched(policy.priorityOf(slot));
+        if (listener != null) listener.dispatched(processIds[slot]);
+        if (trace != null) trace.record(TraceRing.DISPATCH, processIds[slot], policy.priorityOf(slot), availableProcessors);
+        conditions[slot].signal(); // Wake exactly the winner
+        if (handles[slot] != null) { // Queued by startAsync or scheduleAsync - there may be no thread to wake
+            handles[slot].complete();
+            handles[slot] = null;
+        }
+    }
+
+    // Helper Function - awaitDispatch for a start, returning its outcome (see startStatus)
+    private int awaitStart(int slot, SchedulerMetrics m, long timeoutNanos, boolean interruptible) {
+        if (awaitDispatch(slot, m, timeoutNanos, interruptible)) return AdmissionControl.DISPATCHED;
+        return shed[slot] ? AdmissionControl.SHED : AdmissionControl.WITHDRAWN;
+    }
+
+    // Helper Function - Wait until the process has been handed a processor by dispatchProcesses, or taken
+    // out of line by cancel or admission control; a start waiting for room in line waits the same way. A
+    // timed (timeoutNanos >= 0) or interruptible wait also ends when the timeout passes or the thread is
+    // interrupted, taking the process out of line itself and leaving the interrupt set. Returns whether
+    // the process has a processor - if it was handed one just as its wait ended, it keeps it.
+    private boolean awaitDispatch(int slot, SchedulerMetrics m, long timeoutNanos, boolean interruptible) {
+        long remaining = timeoutNanos;
+        boolean interrupted = false;
+        mustWait[slot] = !interruptible; // Untimed and uninterruptible - the caller has no way to hear it was turned away
+        while (states[slot] == READY || states[slot] == ADMITTING) {
+            if (interrupted || (timeoutNanos >= 0 && remaining <= 0)) {
+                withdraw(slot);
+                if (admission != null) dispatchProcesses(); // Let in a start waiting for room
+                break;
+            }
+            if (m != null) m.lockReleased(); // The lock is not held while waiting
+            if (listener != null) listener.waiting(processIds[slot]);
+            try {
+                if (timeoutNanos >= 0) remaining = conditions[slot].awaitNanos(remaining);
+                else if (interruptible) conditions[slot].await();
+                else conditions[slot].awaitUninterruptibly(); // Any interrupt is re-asserted on return
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            if (m != null) {
+                m.lockAcquired();
+                if ((states[slot] == READY || states[slot] == ADMITTING) && !interrupted && (timeoutNanos < 0 || remaining > 0)) m.spuriousWakeup();
+            }
+        }
+        mustWait[slot] = false;
+        if (interrupted) Thread.currentThread().interrupt();
+        return states[slot] == RUNNING;
+    }
+
+    // Helper Function - Load a checkpoint into this (new) OS
+    private void restore(Checkpoint checkpoint) {
+        lock.lock();
+        try {
+            lastPid = checkpoint.lastPid;
+            totalProcessors = checkpoint.totalProcessors;
+            availableProcessors = checkpoint.availableProcessors;
+            int[] gangIds = new int[checkpoint.gangCount];
+            int[] rows = checkpoint.gangRows;
+            for (int g = 0; g < checkpoint.gangCount; g++) gangIds[g] = gangTable.restore(rows[g * 5], rows[g * 5 + 1], rows[g * 5 + 2], rows[g * 5 + 3]);
+            long now = System.nanoTime();
+            for (int p = 0; p < checkpoint.processes; p++) {
+                int slot = processSlots.add(checkpoint.pids[p]);
+                if (slot == conditions.length) growProcessTable();
+                conditions[slot] = lock.newCondition();
+                processIds[slot] = checkpoint.pids[p];
+                policy.register(slot, checkpoint.priorities[p]); // Runs of one priority are cheap, as for regBatch
+                gangs[slot] = checkpoint.gangs[p] == Checkpoint.NONE ? GangTable.NONE : gangIds[checkpoint.gangs[p]];
+                states[slot] = checkpoint.states[p];
+                if (gangs[slot] != GangTable.NONE && states[slot] == READY) gangTable.setLinePriority(gangs[slot], checkpoint.priorities[p]);
+                if (dispatchedAt != null && states[slot] == RUNNING) dispatchedAt[slot] = now;
+            }
+            for (int i = 0; i < checkpoint.lineLength; i++) {
+                int slot = processSlots.slotOf(checkpoint.line[i]);
+                if (slot != PidTable.NONE && states[slot] == READY) policy.enqueue(slot); // In dispatch order, so the line keeps its order
+            }
+            for (int g = 0; g < checkpoint.gangCount; g++) {
+                int entry = processSlots.slotOf(rows[g * 5 + 4]);
+                if (entry != PidTable.NONE) gangTable.setEntry(gangIds[g], entry);
+            }
+            if (checkpoint.gangCount > 0) rejoinParkedGangs();
+        } finally {
+            lock.unlock();
         }
     }
 
-    // Helper Function - Check if the process with the given ID is the highest priority process among all ready processes
-    private boolean isHighestPriorityProcess(int ID) {
-        int priority = processPriorities.get(ID); // Get the priority of the process
-        // Check if all queues with higher priorities are empty
-        return priorityQueues.headMap(priority, false).values().stream().allMatch(Queue::isEmpty);
+    // Helper Function - Double the size of the process table
+    private void growProcessTable() {
+        int capacity = conditions.length * 2;
+        processIds = Arrays.copyOf(processIds, capacity);
+        conditions = Arrays.copyOf(conditions, capacity);
+        states = Arrays.copyOf(states, capacity);
+        handles = Arrays.copyOf(handles, capacity);
+        gangs = Arrays.copyOf(gangs, capacity);
+        shed = Arrays.copyOf(shed, capacity);
+        mustWait = Arrays.copyOf(mustWait, capacity);
+        if (admission != null) admission.ensureCapacity(capacity);
+        if (dispatchedAt != null) dispatchedAt = Arrays.copyOf(dispatchedAt, capacity);
+        policy.ensureCapacity(capacity);
     }
-}
\ No newline at end of file
+}
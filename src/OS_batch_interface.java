@@ -0,0 +1,19 @@
+/*
+ * Bulk registration and admission, alongside the frozen OS_sim_interface.
+ * 
+ * A workload that registers thousands of processes at once can do it in one critical
+ * section instead of taking the OS lock once per process.
+ */
+public interface OS_batch_interface extends OS_sim_interface {
+	
+	//Register one process per entry, in order, and return the pid of the first - the others
+	//follow it contiguously (first, first+1, ...). Returns -1, registering nothing, for an empty batch.
+	public int regBatch(int[] priorities);
+	
+	//Put the registered processes firstPid .. firstPid+count-1 in their ready queues, in pid order,
+	//as if each had called start. The thread of an admitted process then calls start as usual, which
+	//returns as soon as the process has been handed a processor (immediately if it already has one).
+	//Pids that are not registered, or already started or admitted, are skipped.
+	public void admitBatch(int firstPid, int count);
+	
+}
@@ -0,0 +1,111 @@
+import java.util.Arrays;
+
+// Maps live pids to the process table slots that hold their state.
+//
+// This class is NOT thread safe - all access must be guarded by the OS lock.
+//
+// Pids are handed out sequentially and never reused, but the slots behind them are: a
+// terminated process's slot goes on a free-list and is given to the next process that
+// registers, so the process table is sized by the number of live processes rather than
+// by the number of processes ever registered. The pid -> slot map is an open addressing
+// (linear probing) table of primitive ints with backward-shift deletion, so lookups and
+// removals neither box nor leave tombstones behind.
+
+public class PidTable {
+    public static final int NONE = -1; // Returned for a pid that is not live
+
+    private int[] keys; // Pid in each hash bucket, NONE if the bucket is empty
+    private int[] values; // Slot of the pid in each hash bucket
+    private int mask;
+    private int shift; // 32 - log2(capacity), so the hash keeps the top bits of the product
+    private int size = 0;
+
+    private int[] freeSlots = new int[16]; // Stack of slots released by remove
+    private int freeCount = 0;
+    private int slotCount = 0; // Number of slots ever handed out (the high-water mark)
+
+    public PidTable() {
+        keys = new int[16];
+        values = new int[16];
+        Arrays.fill(keys, NONE);
+        mask = keys.length - 1;
+        shift = 32 - 4;
+    }
+
+    // Number of live pids
+    public int size() {
+        return size;
+    }
+
+    // Number of slots ever handed out - the process table must be at least this big
+    public int slotCount() {
+        return slotCount;
+    }
+
+    // Get the slot of a live pid, or NONE
+    public int slotOf(int pid) {
+        if (pid < 0) return NONE;
+        for (int i = hash(pid); ; i = (i + 1) & mask) {
+            int key = keys[i];
+            if (key == pid) return values[i];
+            if (key == NONE) return NONE;
+        }
+    }
+
+    // Give a new pid a slot, recycling a released slot if there is one
+    public int add(int pid) {
+        if ((size + 1) * 2 > keys.length) rehash(keys.length * 2); // Keep the load factor at or below 1/2
+        int slot = freeCount > 0 ? freeSlots[--freeCount] : slotCount++;
+        int i = hash(pid);
+        while (keys[i] != NONE) i = (i + 1) & mask;
+        keys[i] = pid;
+        values[i] = slot;
+        size++;
+        return slot;
+    }
+
+    // Remove a live pid and put its slot on the free-list
+    public void remove(int pid) {
+        int i = hash(pid);
+        while (keys[i] != pid) {
+            if (keys[i] == NONE) return;
+            i = (i + 1) & mask;
+        }
+        if (freeCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        freeSlots[freeCount++] = values[i];
+        size--;
+        // Backward-shift deletion: move later entries of the probe run into the gap
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != NONE; j = (j + 1) & mask) {
+            int home = hash(keys[j]);
+            if (((j - home) & mask) >= ((j - gap) & mask)) { // The entry at j may legally sit in the gap
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = NONE;
+        if (keys.length > 16 && size * 8 < keys.length) rehash(keys.length / 2); // Shrink once mostly empty
+    }
+
+    private int hash(int pid) {
+        return (pid * 0x9E3779B9) >>> shift; // Fibonacci hashing spreads sequential pids
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, NONE);
+        mask = capacity - 1;
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == NONE) continue;
+            int j = hash(oldKeys[i]);
+            while (keys[j] != NONE) j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import java.util.Arrays;
+
+// The OS ready queues: one FIFO queue per priority level plus a bitmap of the non-empty
+// levels, in the style of the Linux O(1) scheduler's priority array.
+//
+// This class is NOT thread safe - all access must be guarded by the OS lock.
+//
+// The queues are intrusive doubly linked lists threaded through next/prev arrays indexed
+// by node (the OS process table slot), so a process's slot is its handle into the queue:
+// enqueue, poll and removal of an arbitrary waiter are all O(1) and allocate nothing,
+// whatever the queue depth. A node can be in at most one queue at a time.
+//
+// Levels are identified by a stable handle returned from acquireLevel(priority). A level's
+// rank (its position in priority order, lower value = higher priority) shifts when a
+// level is inserted or removed in front of it. The bitmap is indexed by rank so that
+// finding the best ready level is a find-first-set: one summary word covers 64 bitmap
+// words, i.e. 4096 levels, before the summary scan grows.
+//
+// Each level counts the processes registered on it and is removed, and its handle
+// recycled, when the last of them is released, so priorities that are no longer in use
+// don't keep their queues forever.
+
+public class ReadyQueues {
+    public static final int NONE = -1; // Returned when there is no ready process
+
+    private int levelCount = 0; // Number of live levels (ranks 0 .. levelCount-1)
+    private int handleCount = 0; // Number of handles ever handed out
+    private int[] freeHandles = new int[8]; // Stack of handles of removed levels
+    private int freeCount = 0;
+    private int[] processCounts = new int[8]; // Number of processes registered on each level, by handle
+    private int[] priorities = new int[8]; // Priority of each level, by handle
+    private int[] heads = new int[8]; // First node in the queue of each level, by handle
+    private int[] tails = new int[8]; // Last node in the queue of each level, by handle
+    private int[] sizes = new int[8]; // Length of the queue of each level, by handle
+    private int[] rankOf = new int[8]; // Position of each level in priority order, by handle
+    private int[] sortedPriorities = new int[8]; // Level priorities, by rank
+    private int[] handleAt = new int[8]; // Level handle, by rank
+    private long[] readyBits = new long[1]; // Bit set for each rank with a non-empty queue
+    private long[] summaryBits = new long[1]; // Bit set for each non-zero word of readyBits
+    private int[] next = new int[16]; // Next node in the same queue, by node
+    private int[] prev = new int[16]; // Previous node in the same queue, by node
+
+    // Make room for nodes 0 .. capacity-1
+    public void ensureNodeCapacity(int capacity) {
+        if (capacity > next.length) {
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+        }
+    }
+
+    // Register a process on the level for a priority, creating the level if it doesn't exist, and get its handle
+    public int acquireLevel(int priority) {
+        int rank = Arrays.binarySearch(sortedPriorities, 0, levelCount, priority);
+        int level = rank >= 0 ? handleAt[rank] : insertLevel(priority, -rank - 1);
+        processCounts[level]++;
+        return level;
+    }
+
+    // Register one more process on a level already acquired
+    public void retainLevel(int level) {
+        processCounts[level]++;
+    }
+
+    // Unregister a process from its level, removing the level once no process is registered on it.
+    // The process must not be in the level's queue.
+    public void releaseLevel(int level) {
+        if (--processCounts[level] == 0) removeLevel(level);
+    }
+
+    // Number of priority levels currently in use
+    public int levelCount() {
+        return levelCount;
+    }
+
+    public int priorityOf(int level) {
+        return priorities[level];
+    }
+
+    public int size(int level) {
+        return sizes[level];
+    }
+
+    public boolean isEmpty() {
+        return firstReadyRank() == NONE;
+    }
+
+    // Add a node to the back of its level's queue
+    public void enqueue(int level, int node) {
+        int tail = tails[level];
+        next[node] = NONE;
+        prev[node] = tail;
+        if (tail == NONE) {
+            heads[level] = node;
+            setReady(rankOf[level]);
+        } else {
+            next[tail] = node;
+        }
+        tails[level] = node;
+        sizes[level]++;
+    }
+
+    // Peek at the head of the queue of a level, or NONE if it is empty
+    public int peek(int level) {
+        return heads[level];
+    }
+
+    // Peek at the back of the queue of a level, or NONE if it is empty
+    public int peekLast(int level) {
+        return tails[level];
+    }
+
+    // Remove the head of the queue of a level, or return NONE if it is empty
+    public int poll(int level) {
+        int node = heads[level];
+        if (node != NONE) remove(level, node);
+        return node;
+    }
+
+    // Remove a node from anywhere in its level's queue
+    public void remove(int level, int node) {
+        int before = prev[node];
+        int after = next[node];
+        if (before == NONE) heads[level] = after; else next[before] = after;
+        if (after == NONE) tails[level] = before; else prev[after] = before;
+        if (--sizes[level] == 0) clearReady(rankOf[level]);
+    }
+
+    // Write every queued node to 'into', highest priority level first and in queue order within a
+    // level, and return how many there are
+    public int line(int[] into) {
+        int count = 0;
+        for (int rank = 0; rank < levelCount; rank++) {
+            for (int node = heads[handleAt[rank]]; node != NONE; node = next[node]) into[count++] = node;
+        }
+        return count;
+    }
+
+    // Get the handle of the highest priority level with a ready process, or NONE
+    public int bestLevel() {
+        int rank = firstReadyRank();
+        return rank == NONE ? NONE : handleAt[rank];
+    }
+
+    // Get the handle of the lowest priority level with a ready process, or NONE
+    public int worstLevel() {
+        int rank = lastReadyRank();
+        return rank == NONE ? NONE : handleAt[rank];
+    }
+
+    // Helper Function - Find-first-set over the summary word(s) then the bitmap word
+    private int firstReadyRank() {
+        for (int s = 0; s < summaryBits.length; s++) {
+            long summary = summaryBits[s];
+            if (summary != 0) {
+                int word = (s << 6) + Long.numberOfTrailingZeros(summary);
+                return (word << 6) + Long.numberOfTrailingZeros(readyBits[word]);
+            }
+        }
+        return NONE;
+    }
+
+    // Helper Function - Find-last-set, the mirror of firstReadyRank
+    private int lastReadyRank() {
+        for (int s = summaryBits.length - 1; s >= 0; s--) {
+            long summary = summaryBits[s];
+            if (summary != 0) {
+                int word = (s << 6) + 63 - Long.numberOfLeadingZeros(summary);
+                return (word << 6) + 63 - Long.numberOfLeadingZeros(readyBits[word]);
+            }
+        }
+        return NONE;
+    }
+
+    private void setReady(int rank) {
+        int word = rank >>> 6;
+        readyBits[word] |= 1L << rank;
+        summaryBits[word >>> 6] |= 1L << word;
+    }
+
+    private void clearReady(int rank) {
+        int word = rank >>> 6;
+        readyBits[word] &= ~(1L << rank);
+        if (readyBits[word] == 0) summaryBits[word >>> 6] &= ~(1L << word);
+    }
+
+    // Helper Function - Insert a new level at the given rank, then re-rank the levels behind it and rebuild the bitmap
+    private int insertLevel(int priority, int rank) {
+        int level;
+        if (freeCount > 0) {
+            level = freeHandles[--freeCount];
+        } else {
+            if (handleCount == priorities.length) {
+                int capacity = handleCount * 2;
+                processCounts = Arrays.copyOf(processCounts, capacity);
+                priorities = Arrays.copyOf(priorities, capacity);
+                heads = Arrays.copyOf(heads, capacity);
+                tails = Arrays.copyOf(tails, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                rankOf = Arrays.copyOf(rankOf, capacity);
+                sortedPriorities = Arrays.copyOf(sortedPriorities, capacity);
+                handleAt = Arrays.copyOf(handleAt, capacity);
+            }
+            level = handleCount++;
+        }
+        priorities[level] = priority;
+        heads[level] = NONE;
+        tails[level] = NONE;
+        sizes[level] = 0;
+        System.arraycopy(sortedPriorities, rank, sortedPriorities, rank + 1, levelCount - rank);
+        System.arraycopy(handleAt, rank, handleAt, rank + 1, levelCount - rank);
+        sortedPriorities[rank] = priority;
+        handleAt[rank] = level;
+        levelCount++;
+        for (int r = rank; r < levelCount; r++) rankOf[handleAt[r]] = r;
+        rebuildBitmap();
+        return level;
+    }
+
+    // Helper Function - Remove an empty level, then re-rank the levels behind it and rebuild the bitmap
+    private void removeLevel(int level) {
+        int rank = rankOf[level];
+        levelCount--;
+        System.arraycopy(sortedPriorities, rank + 1, sortedPriorities, rank, levelCount - rank);
+        System.arraycopy(handleAt, rank + 1, handleAt, rank, levelCount - rank);
+        for (int r = rank; r < levelCount; r++) rankOf[handleAt[r]] = r;
+        if (freeCount == freeHandles.length) freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+        freeHandles[freeCount++] = level;
+        rebuildBitmap();
+    }
+
+    private void rebuildBitmap() {
+        int words = (levelCount + 63) >>> 6;
+        if (readyBits.length < words) {
+            readyBits = new long[words];
+            summaryBits = new long[(words + 63) >>> 6];
+        } else {
+            Arrays.fill(readyBits, 0L);
+            Arrays.fill(summaryBits, 0L);
+        }
+        for (int r = 0; r < levelCount; r++) {
+            if (sizes[handleAt[r]] != 0) setReady(r);
+        }
+    }
+}
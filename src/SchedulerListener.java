@@ -0,0 +1,14 @@
+// Callbacks from the OS as processes wait for and are handed processors - used by
+// VirtualClockSimulation to know when every process thread has settled.
+//
+// Both methods are called with the OS lock held, so they see each process's transitions in
+// the order the OS made them. They must be quick, must not throw and must not call back into
+// the OS.
+
+public interface SchedulerListener {
+    // A waiting process has been taken off its ready queue and handed a processor
+    void dispatched(int pid);
+
+    // A process's thread is about to block until it is handed a processor
+    void waiting(int pid);
+}
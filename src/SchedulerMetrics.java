@@ -0,0 +1,296 @@
+import java.util.Arrays;
+
+// Opt-in instrumentation for the OS scheduler: per-priority ready queue depths, wait-latency
+// and lock-hold histograms, dispatch counts and spurious wakeup counts.
+//
+// This class is NOT thread safe - all recording must be guarded by the OS lock. Snapshots
+// are immutable copies, so they can be read and printed anywhere once taken.
+//
+// The OS holds a reference to a SchedulerMetrics only while metrics are enabled, and every
+// recording call sits behind a null check of that reference, so disabled metrics cost one
+// field read per call and no clock reads.
+
+public class SchedulerMetrics {
+    private final long createdAt = System.nanoTime();
+    private long heldSince; // When the current holder of the OS lock acquired (or re-acquired) it
+
+    // Per-priority counters, kept in priority order and looked up by binary search
+    private int priorityCount = 0;
+    private int[] priorities = new int[8];
+    private int[] depths = new int[8]; // Processes currently in the ready queue
+    private int[] peakDepths = new int[8];
+    private long[] enqueues = new long[8];
+    private long[] dispatches = new long[8];
+
+    private long fastPathStarts = 0; // Starts that took a free processor without queueing
+    private long schedules = 0;
+    private long selfDispatches = 0; // Schedules that handed the processor straight back to the same process
+    private long terminates = 0;
+    private long spuriousWakeups = 0; // Returns from await without having been handed a processor
+    private long cancellations = 0; // Processes taken out of line by a timeout, interrupt or cancel
+    private long renices = 0; // Priority changes
+
+    private final LatencyHistogram startWaits = new LatencyHistogram();
+    private final LatencyHistogram scheduleWaits = new LatencyHistogram();
+    private final LatencyHistogram lockHolds = new LatencyHistogram();
+
+    // Periodic dump - the snapshot is taken by whichever OS call first finds the interval has passed
+    private final long dumpInterval; // Nanoseconds, 0 for no periodic dump
+    private long nextDumpAt;
+
+    public SchedulerMetrics(long dumpIntervalMillis) {
+        dumpInterval = dumpIntervalMillis * 1_000_000L;
+        nextDumpAt = createdAt + dumpInterval;
+    }
+
+    public void lockAcquired() {
+        heldSince = System.nanoTime();
+    }
+
+    // Record the end of a stretch of holding the OS lock (on unlock or before an await), and get the time
+    public long lockReleased() {
+        long now = System.nanoTime();
+        lockHolds.record(now - heldSince);
+        return now;
+    }
+
+    public void enqueued(int priority) {
+        int index = indexOf(priority);
+        enqueues[index]++;
+        if (++depths[index] > peakDepths[index]) peakDepths[index] = depths[index];
+    }
+
+    public void dispatched(int priority) {
+        int index = indexOf(priority);
+        dispatches[index]++;
+        if (depths[index] > 0) depths[index]--; // Processes queued before metrics were enabled weren't counted in
+    }
+
+    public void cancelled(int priority) {
+        int index = indexOf(priority);
+        if (depths[index] > 0) depths[index]--;
+        cancellations++;
+    }
+
+    public void reniced(int from, int to, boolean inLine) {
+        renices++;
+        if (!inLine) return;
+        int index = indexOf(from);
+        if (depths[index] > 0) depths[index]--;
+        index = indexOf(to);
+        if (++depths[index] > peakDepths[index]) peakDepths[index] = depths[index];
+    }
+
+    public void fastPathStart() {
+        fastPathStarts++;
+    }
+
+    public void scheduled(boolean sameProcess) {
+        schedules++;
+        if (sameProcess) selfDispatches++;
+    }
+
+    public void terminated() {
+        terminates++;
+    }
+
+    public void spuriousWakeup() {
+        spuriousWakeups++;
+    }
+
+    public void startWaited(long nanos) {
+        startWaits.record(nanos);
+    }
+
+    public void scheduleWaited(long nanos) {
+        scheduleWaits.record(nanos);
+    }
+
+    // Take a snapshot if the dump interval has passed since the last one, otherwise return null
+    public Snapshot dueDump(long now, int freeProcessors, int liveProcesses) {
+        if (dumpInterval == 0 || now - nextDumpAt < 0) return null;
+        nextDumpAt = now + dumpInterval;
+        return snapshot(freeProcessors, liveProcesses);
+    }
+
+    public Snapshot snapshot(int freeProcessors, int liveProcesses) {
+        return new Snapshot(this, freeProcessors, liveProcesses);
+    }
+
+    // Helper Function - Find the counters for a priority, adding them if this is the first time it is seen
+    private int indexOf(int priority) {
+        int index = Arrays.binarySearch(priorities, 0, priorityCount, priority);
+        if (index >= 0) return index;
+        index = -index - 1;
+        if (priorityCount == priorities.length) {
+            int capacity = priorityCount * 2;
+            priorities = Arrays.copyOf(priorities, capacity);
+            depths = Arrays.copyOf(depths, capacity);
+            peakDepths = Arrays.copyOf(peakDepths, capacity);
+            enqueues = Arrays.copyOf(enqueues, capacity);
+            dispatches = Arrays.copyOf(dispatches, capacity);
+        }
+        int behind = priorityCount - index;
+        System.arraycopy(priorities, index, priorities, index + 1, behind);
+        System.arraycopy(depths, index, depths, index + 1, behind);
+        System.arraycopy(peakDepths, index, peakDepths, index + 1, behind);
+        System.arraycopy(enqueues, index, enqueues, index + 1, behind);
+        System.arraycopy(dispatches, index, dispatches, index + 1, behind);
+        priorities[index] = priority;
+        depths[index] = 0;
+        peakDepths[index] = 0;
+        enqueues[index] = 0;
+        dispatches[index] = 0;
+        priorityCount++;
+        return index;
+    }
+
+    // An HDR-style log-linear histogram of nanosecond durations: values below 32 are counted
+    // exactly, and above that each power of two is split into 32 buckets, so any recorded value
+    // is reported to within about 3%.
+    public static class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final long[] counts;
+        private long count = 0;
+        private long total = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = 0;
+
+        public LatencyHistogram() {
+            counts = new long[bucketOf(Long.MAX_VALUE) + 1];
+        }
+
+        private LatencyHistogram(LatencyHistogram other) {
+            counts = other.counts.clone();
+            count = other.count;
+            total = other.total;
+            min = other.min;
+            max = other.max;
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0; // nanoTime is monotonic, but be safe
+            counts[bucketOf(nanos)]++;
+            count++;
+            total += nanos;
+            if (nanos < min) min = nanos;
+            if (nanos > max) max = nanos;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long min() {
+            return count == 0 ? 0 : min;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        // Get the value at a percentile (0-100): the lowest value of the bucket that holds it, capped at the maximum
+        public long percentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) return Math.min(Math.max(lowestValueOf(bucket), min), max);
+            }
+            return max;
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BITS
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+        }
+
+        private static long lowestValueOf(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int exponent = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+            return (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << (exponent - SUB_BITS);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.0f min=%d p50=%d p90=%d p99=%d p99.9=%d max=%d (ns)",
+                    count, mean(), min(), percentile(50), percentile(90), percentile(99), percentile(99.9), max);
+        }
+    }
+
+    // An immutable copy of the metrics at one point in time
+    public static class Snapshot {
+        public final long uptimeNanos;
+        public final int freeProcessors;
+        public final int liveProcesses;
+        public final int[] priorities; // The priorities seen so far, highest priority (lowest value) first
+        public final int[] depths; // Ready queue depth of each priority
+        public final int[] peakDepths;
+        public final long[] enqueues;
+        public final long[] dispatches; // Processes of each priority handed a processor from the ready queue
+        public final long fastPathStarts;
+        public final long schedules;
+        public final long selfDispatches;
+        public final long terminates;
+        public final long spuriousWakeups;
+        public final long cancellations;
+        public final long renices;
+        public final LatencyHistogram startWaits; // From queueing in start to being handed a processor
+        public final LatencyHistogram scheduleWaits; // From queueing in schedule to being handed a processor
+        public final LatencyHistogram lockHolds;
+
+        private Snapshot(SchedulerMetrics metrics, int freeProcessors, int liveProcesses) {
+            uptimeNanos = System.nanoTime() - metrics.createdAt;
+            this.freeProcessors = freeProcessors;
+            this.liveProcesses = liveProcesses;
+            int n = metrics.priorityCount;
+            priorities = Arrays.copyOf(metrics.priorities, n);
+            depths = Arrays.copyOf(metrics.depths, n);
+            peakDepths = Arrays.copyOf(metrics.peakDepths, n);
+            enqueues = Arrays.copyOf(metrics.enqueues, n);
+            dispatches = Arrays.copyOf(metrics.dispatches, n);
+            fastPathStarts = metrics.fastPathStarts;
+            schedules = metrics.schedules;
+            selfDispatches = metrics.selfDispatches;
+            terminates = metrics.terminates;
+            spuriousWakeups = metrics.spuriousWakeups;
+            cancellations = metrics.cancellations;
+            renices = metrics.renices;
+            startWaits = new LatencyHistogram(metrics.startWaits);
+            scheduleWaits = new LatencyHistogram(metrics.scheduleWaits);
+            lockHolds = new LatencyHistogram(metrics.lockHolds);
+        }
+
+        public long totalDispatches() {
+            long total = 0;
+            for (long d : dispatches) total += d;
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(String.format("OS metrics after %.3f s: free processors=%d, live processes=%d%n",
+                    uptimeNanos / 1e9, freeProcessors, liveProcesses));
+            report.append(String.format("  dispatches=%d fast path starts=%d schedules=%d (%d back to the same process) terminates=%d spurious wakeups=%d cancellations=%d renices=%d%n",
+                    totalDispatches(), fastPathStarts, schedules, selfDispatches, terminates, spuriousWakeups, cancellations, renices));
+            for (int i = 0; i < priorities.length; i++) {
+                report.append(String.format("  priority %d: depth=%d peak depth=%d enqueues=%d dispatches=%d%n",
+                        priorities[i], depths[i], peakDepths[i], enqueues[i], dispatches[i]));
+            }
+            report.append("  start wait:    ").append(startWaits).append(System.lineSeparator());
+            report.append("  schedule wait: ").append(scheduleWaits).append(System.lineSeparator());
+            report.append("  lock hold:     ").append(lockHolds).append(System.lineSeparator());
+            return report.toString();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+// The order in which the OS hands processors to the processes in line.
+//
+// A policy is NOT thread safe - the OS calls it only with its lock held, and each OS needs its
+// own policy instance. Processes are identified by their OS process table slot.
+//
+// Built in:
+//   StrictPriorityPolicy      - strict priority, FIFO within a priority (the default, and the UR behaviour)
+//   AgingPolicy               - strict priority, but a process waiting long enough climbs a priority level
+//   MultilevelFeedbackPolicy  - a process that uses its whole quantum drops a level, with periodic boosts
+//   FairSharePolicy           - least virtual run time first, weighted by priority
+// Each dispatches, and removes a process from anywhere in the line, in O(1) or O(log n).
+
+public interface SchedulingPolicy {
+    int NONE = -1; // Returned by poll when no process is in line
+
+    // Make room for slots 0 .. capacity-1
+    void ensureCapacity(int capacity);
+
+    // A process has registered in a slot
+    void register(int slot, int priority);
+
+    // The process in a slot has terminated. It is not in line.
+    void unregister(int slot);
+
+    // The process in a slot has a new priority (OS.setPriority). If it is in line it moves to its
+    // new place straight away, otherwise the new priority applies from the next time it joins.
+    void setPriority(int slot, int priority, boolean inLine);
+
+    // The process in a slot has joined the line (from start or schedule)
+    void enqueue(int slot);
+
+    // Get the slot of the next process to dispatch, leaving it in line, or NONE
+    int peek();
+
+    // Get the slot of the process that would be dispatched last, leaving it in line, or NONE - the one
+    // to shed under admission control (see AdmissionControl.SHED_LOWEST). O(n) for the heap-based policies.
+    int last();
+
+    // Take the next process to dispatch out of the line, and return its slot or NONE
+    int poll();
+
+    // Take a process out of the line without dispatching it (its wait timed out or was cancelled)
+    void remove(int slot);
+
+    boolean isEmpty();
+
+    // Write the slots in line to 'into' (which has room for every registered process) in the order
+    // they would be dispatched, leaving the line as it is, and return how many there are - for OS.checkpoint
+    int line(int[] into);
+
+    // The priority the process registered with
+    int priorityOf(int slot);
+
+    // Whether the OS should time each spell on a processor and report it through ran
+    default boolean usesRunTimes() {
+        return false;
+    }
+
+    // The process in a slot has given up its processor (in schedule or terminate) after holding it for the given time
+    default void ran(int slot, long nanos) {
+    }
+}
@@ -0,0 +1,445 @@
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.Condition; //Note that the 'notifyAll' method or similar polling mechanism MUST not be used
+import java.util.Arrays;
+
+// IMPORTANT:
+//
+// The same rules apply here as in OS.java: ReentrantLock and Condition are the only thread safe
+// mechanisms used, there is no 'synchronized', busy waiting or delay, and exceptions are handled locally.
+
+// A sharded OS simulation for many processors. Instead of one lock around one set of ready
+// queues, the processes and processors are split across shards:
+//
+//  - each shard has its own lock, process table and priority ready queues; a process lives on
+//    shard (pid % shards) and waits on a condition of that shard's lock
+//  - each shard owns some of the processors (one each when shards == processors); a free
+//    processor is handed to the best process in line on its own shard, or stolen by it from
+//    another shard that has a better process in line (or any process in line when it has none)
+//  - a small summary, under its own lock, records each shard's best process in line and whether
+//    it has a free processor, so that shards can decide without taking each other's locks. A
+//    thread never holds two shard locks at once, and takes the summary lock only inside a shard lock.
+//
+// Ordering: every process in line carries the time it joined its queue. With an inversion window
+// of 0 (strict mode) a shard checks the summary before every dispatch, so once the processes in
+// line have all been published, each processor freed goes to the best of them by priority, then
+// by arrival time, across all shards - the same order as OS. While threads race, priority across
+// shards is best-effort: a process is stamped and queued under its shard's lock but published a
+// moment later, and a steal drops the thief's lock before taking the victim's, so a process
+// joining one shard while another shard dispatches can be passed over by a worse one that shard
+// can already see, and processors freed at once on two shards can be handed out from views that
+// are each missing the other's change. Within a shard the order is always exact.
+// With an inversion window of N a shard may make N dispatches on its last view of the other
+// shards before looking again, bounding how far behind a better process elsewhere can fall in
+// exchange for far less traffic on the summary lock.
+
+public class ShardedOS implements OS_sim_interface {
+    // Process states
+    private static final byte REGISTERED = 0; // Registered but not in a ready queue or running
+    private static final byte READY = 1; // Waiting in a ready queue for a processor
+    private static final byte RUNNING = 2; // Has been handed a processor
+    private static final int NONE = -1;
+
+    private static final class Shard {
+        final int index;
+        final ReentrantLock lock = new ReentrantLock();
+        // Process table - indexed by slot, as in OS
+        final PidTable processSlots = new PidTable();
+        int[] processLevels = new int[16];
+        Condition[] conditions = new Condition[16];
+        byte[] states = new byte[16];
+        int[] processorShards = new int[16]; // Shard whose processor a running process holds
+        long[] arrivalTimes = new long[16]; // When a ready process joined its queue
+        final ReadyQueues priorityQueues = new ReadyQueues();
+        int totalProcessors = 0; // Processors owned by this shard, free or running a process
+        int availableProcessors = 0; // Free processors owned by this shard - negative while over capacity, as in OS
+        // What this shard last wrote to the summary
+        boolean publishedWaiting;
+        boolean publishedIdle;
+        int publishedPriority;
+        long publishedArrival;
+        // The best process in line on the other shards, as of the last summary read
+        int bestElsewhere = NONE; // Its shard, or NONE
+        int bestElsewherePriority;
+        long bestElsewhereArrival;
+        int viewUses = 0; // Dispatches left before the view must be refreshed
+
+        Shard(int index) {
+            this.index = index;
+        }
+    }
+
+    private final Shard[] shards;
+    private final int inversionWindow;
+    private final ReentrantLock pidLock = new ReentrantLock();
+    private final ReentrantLock capacityLock = new ReentrantLock(); // Serialises changes to the number of processors
+    private int totalProcessors = 0; // Guarded by capacityLock
+    private int lastPid = -1;
+    // Summary of every shard, by shard index
+    private final ReentrantLock summaryLock = new ReentrantLock();
+    private final boolean[] summaryWaiting; // Has a process in line
+    private final int[] summaryPriority; // Priority of its best process in line
+    private final long[] summaryArrival; // Arrival time of its best process in line
+    private final boolean[] summaryIdle; // Has a free processor
+
+    public ShardedOS(int shardCount) {
+        this(shardCount, 0);
+    }
+
+    public ShardedOS(int shardCount, int inversionWindow) {
+        int count = Math.max(1, shardCount);
+        this.inversionWindow = Math.max(0, inversionWindow);
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) shards[i] = new Shard(i);
+        summaryWaiting = new boolean[count];
+        summaryPriority = new int[count];
+        summaryArrival = new long[count];
+        summaryIdle = new boolean[count];
+    }
+
+    @Override
+    public void set_number_of_processors(int nProcessors) {
+        capacityLock.lock();
+        try {
+            int change = Math.max(0, nProcessors) - totalProcessors;
+            totalProcessors += change;
+            // Hand added processors out one at a time to the shard with the fewest
+            for (; change > 0; change--) {
+                Shard fewest = shards[0];
+                for (Shard shard : shards) {
+                    if (shard.totalProcessors < fewest.totalProcessors) fewest = shard;
+                }
+                addProcessors(fewest, 1);
+            }
+            // Take removed processors from the free ones first, then from those running processes - a
+            // shard takes those back (its availableProcessors goes negative) as the processes give them up
+            for (Shard shard : shards) {
+                int free = Math.min(-change, freeProcessors(shard));
+                addProcessors(shard, -free);
+                change += free;
+            }
+            for (; change < 0; change++) {
+                Shard most = shards[0];
+                for (Shard shard : shards) {
+                    if (shard.totalProcessors > most.totalProcessors) most = shard;
+                }
+                addProcessors(most, -1);
+            }
+        } finally {
+            capacityLock.unlock();
+        }
+        for (Shard shard : shards) balance(shard); // Let the shards use any processors they have gained
+    }
+
+    // Helper Function - Add (or with a negative count, remove) processors owned by a shard
+    private void addProcessors(Shard shard, int count) {
+        shard.lock.lock();
+        try {
+            shard.totalProcessors += count;
+            shard.availableProcessors += count;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    private int freeProcessors(Shard shard) {
+        shard.lock.lock();
+        try {
+            return Math.max(0, shard.availableProcessors);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    @Override
+    public int reg(int priority) {
+        int pid;
+        pidLock.lock();
+        try {
+            pid = ++lastPid; // Assign a unique process ID
+        } finally {
+            pidLock.unlock();
+        }
+        Shard home = shards[pid % shards.length];
+        home.lock.lock();
+        try {
+            int slot = home.processSlots.add(pid); // Give it a free slot in its shard's process table
+            if (slot == home.conditions.length) growProcessTable(home);
+            if (home.conditions[slot] == null) home.conditions[slot] = home.lock.newCondition();
+            home.processLevels[slot] = home.priorityQueues.acquireLevel(priority);
+            home.states[slot] = REGISTERED;
+        } finally {
+            home.lock.unlock();
+        }
+        return pid; // Return the assigned process ID
+    }
+
+    @Override
+    public void start(int ID) {
+        Shard home = shardOf(ID);
+        if (home == null) return;
+        int slot;
+        int next;
+        home.lock.lock();
+        try {
+            slot = home.processSlots.slotOf(ID);
+            if (slot == PidTable.NONE || home.states[slot] != REGISTERED) return; // Not registered, or already started
+            enqueue(home, slot); // Add the process to the queue for its priority
+            dispatchProcesses(home); // Hand any free processor on this shard to the best process in line
+            next = publish(home);
+        } finally {
+            home.lock.unlock();
+        }
+        if (next != NONE) balance(shards[next]); // A free processor elsewhere can take a process from this shard
+        awaitDispatch(home, slot); // Wait until this process has been handed a processor
+    }
+
+    @Override
+    public void schedule(int ID) {
+        Shard home = shardOf(ID);
+        if (home == null) return;
+        int slot;
+        int processorShard;
+        int next;
+        home.lock.lock();
+        try {
+            slot = home.processSlots.slotOf(ID);
+            if (slot == PidTable.NONE || home.states[slot] != RUNNING) return; // Only a running process can give up its processor
+            processorShard = home.processorShards[slot];
+            enqueue(home, slot); // Add the process to the back of the queue for its priority
+            if (processorShard == home.index) {
+                home.availableProcessors++; // Release the process's processor
+                dispatchProcesses(home); // Hand it to the best process in line (possibly this one)
+            }
+            next = publish(home);
+        } finally {
+            home.lock.unlock();
+        }
+        if (processorShard != home.index) releaseProcessor(shards[processorShard]); // The processor was stolen from another shard - give it back there
+        if (next != NONE) balance(shards[next]);
+        awaitDispatch(home, slot); // Wait until this process has been handed a processor again
+    }
+
+    @Override
+    public void terminate(int ID) {
+        Shard home = shardOf(ID);
+        if (home == null) return;
+        int processorShard = NONE;
+        int next = NONE;
+        home.lock.lock();
+        try {
+            int slot = home.processSlots.slotOf(ID);
+            if (slot == PidTable.NONE || home.states[slot] == READY) return; // Not registered, or its thread is still waiting for a processor
+            if (home.states[slot] == RUNNING) processorShard = home.processorShards[slot];
+            // Reclaim the process's state, as in OS
+            home.priorityQueues.releaseLevel(home.processLevels[slot]);
+            home.processSlots.remove(ID);
+            if (processorShard == home.index) {
+                home.availableProcessors++; // Release the process's processor
+                dispatchProcesses(home); // Hand it to the best process in line
+                next = publish(home);
+            }
+        } finally {
+            home.lock.unlock();
+        }
+        if (processorShard != NONE && processorShard != home.index) releaseProcessor(shards[processorShard]);
+        if (next != NONE) balance(shards[next]);
+    }
+
+    // Helper Function - Get the shard a process lives on
+    private Shard shardOf(int ID) {
+        return ID < 0 ? null : shards[ID % shards.length];
+    }
+
+    // Helper Function - Add a process to the back of the ready queue for its priority (shard lock held)
+    private void enqueue(Shard shard, int slot) {
+        shard.priorityQueues.enqueue(shard.processLevels[slot], slot);
+        shard.states[slot] = READY;
+        shard.arrivalTimes[slot] = System.nanoTime();
+    }
+
+    // Helper Function - Hand a shard's free processors to its own processes in line, for as long as
+    // no better process is in line on another shard (shard lock held)
+    private void dispatchProcesses(Shard shard) {
+        while (shard.availableProcessors > 0) {
+            int level = shard.priorityQueues.bestLevel();
+            if (level == ReadyQueues.NONE) return;
+            int slot = shard.priorityQueues.peek(level);
+            if (!isBestInLine(shard, shard.priorityQueues.priorityOf(level), shard.arrivalTimes[slot])) return; // Leave the processor for balance to move
+            shard.priorityQueues.poll(level);
+            shard.availableProcessors--;
+            grant(shard, slot, shard.index);
+        }
+    }
+
+    // Helper Function - Mark a process as running on a processor of the given shard and wake exactly it (home shard lock held)
+    private void grant(Shard home, int slot, int processorShard) {
+        home.states[slot] = RUNNING;
+        home.processorShards[slot] = processorShard;
+        home.conditions[slot].signal();
+    }
+
+    // Helper Function - Wait until the process has been handed a processor
+    private void awaitDispatch(Shard home, int slot) {
+        home.lock.lock();
+        try {
+            while (home.states[slot] != RUNNING) {
+                home.conditions[slot].awaitUninterruptibly(); // Any interrupt is re-asserted on return
+            }
+        } finally {
+            home.lock.unlock();
+        }
+    }
+
+    // Helper Function - Give a processor back to the shard that owns it, and let that shard use it
+    private void releaseProcessor(Shard owner) {
+        owner.lock.lock();
+        try {
+            owner.availableProcessors++;
+        } finally {
+            owner.lock.unlock();
+        }
+        balance(owner);
+    }
+
+    // Helper Function - Put a shard's free processors to work: first on its own processes in line,
+    // then by stealing the best process in line on another shard. Called with no lock held.
+    private void balance(Shard shard) {
+        while (shard != null) {
+            Shard victim = null;
+            int next;
+            shard.lock.lock();
+            try {
+                dispatchProcesses(shard);
+                if (shard.availableProcessors > 0 && shards.length > 1) {
+                    summaryLock.lock();
+                    try {
+                        refreshView(shard);
+                    } finally {
+                        summaryLock.unlock();
+                    }
+                    int level = shard.priorityQueues.bestLevel();
+                    boolean localFirst = level != ReadyQueues.NONE && (shard.bestElsewhere == NONE
+                            || comesFirst(shard.priorityQueues.priorityOf(level), shard.arrivalTimes[shard.priorityQueues.peek(level)],
+                                    shard.bestElsewherePriority, shard.bestElsewhereArrival));
+                    if (localFirst) continue; // The view was stale - dispatch locally with the fresh one
+                    if (shard.bestElsewhere != NONE) {
+                        victim = shards[shard.bestElsewhere];
+                        shard.availableProcessors--; // Reserve a processor for the process being stolen
+                    }
+                }
+                next = publish(shard);
+            } finally {
+                shard.lock.unlock();
+            }
+            if (victim != null) {
+                if (!steal(victim, shard)) {
+                    shard.lock.lock(); // The process was dispatched by someone else in the meantime - take the processor back
+                    try {
+                        shard.availableProcessors++;
+                    } finally {
+                        shard.lock.unlock();
+                    }
+                }
+                continue; // The shard may have more free processors
+            }
+            shard = next == NONE || next == shard.index ? null : shards[next];
+        }
+    }
+
+    // Helper Function - Dispatch the best process in line on the victim shard onto a (reserved) processor of the thief shard
+    private boolean steal(Shard victim, Shard thief) {
+        victim.lock.lock();
+        try {
+            int level = victim.priorityQueues.bestLevel();
+            if (level == ReadyQueues.NONE) return false;
+            grant(victim, victim.priorityQueues.poll(level), thief.index);
+            publish(victim);
+            return true;
+        } finally {
+            victim.lock.unlock();
+        }
+    }
+
+    // Helper Function - Check that no process in line on another shard should be dispatched before the given one (shard lock held)
+    private boolean isBestInLine(Shard shard, int priority, long arrival) {
+        if (shards.length == 1) return true;
+        if (shard.viewUses <= 0) {
+            summaryLock.lock();
+            try {
+                refreshView(shard);
+            } finally {
+                summaryLock.unlock();
+            }
+        }
+        shard.viewUses--;
+        return shard.bestElsewhere == NONE || comesFirst(priority, arrival, shard.bestElsewherePriority, shard.bestElsewhereArrival);
+    }
+
+    // Helper Function - Read the best process in line on the other shards from the summary (shard and summary locks held)
+    private void refreshView(Shard shard) {
+        int best = NONE;
+        for (int i = 0; i < shards.length; i++) {
+            if (i == shard.index || !summaryWaiting[i]) continue;
+            if (best == NONE || !comesFirst(summaryPriority[best], summaryArrival[best], summaryPriority[i], summaryArrival[i])) best = i;
+        }
+        shard.bestElsewhere = best;
+        if (best != NONE) {
+            shard.bestElsewherePriority = summaryPriority[best];
+            shard.bestElsewhereArrival = summaryArrival[best];
+        }
+        shard.viewUses = inversionWindow;
+    }
+
+    // Helper Function - Write a shard's state to the summary if it has changed, and get the shard that
+    // should now balance: this one if it has a free processor and a process is in line anywhere, or
+    // another one with a free processor if this one has a process in line (shard lock held)
+    private int publish(Shard shard) {
+        if (shards.length == 1) return NONE;
+        boolean waiting = !shard.priorityQueues.isEmpty();
+        boolean idle = shard.availableProcessors > 0;
+        int priority = 0;
+        long arrival = 0;
+        if (waiting) {
+            int level = shard.priorityQueues.bestLevel();
+            priority = shard.priorityQueues.priorityOf(level);
+            arrival = shard.arrivalTimes[shard.priorityQueues.peek(level)];
+        }
+        boolean headChanged = waiting && (priority != shard.publishedPriority || (inversionWindow == 0 && arrival != shard.publishedArrival));
+        if (waiting == shard.publishedWaiting && idle == shard.publishedIdle && !headChanged) return NONE;
+        summaryLock.lock();
+        try {
+            summaryWaiting[shard.index] = shard.publishedWaiting = waiting;
+            summaryIdle[shard.index] = shard.publishedIdle = idle;
+            summaryPriority[shard.index] = shard.publishedPriority = priority;
+            summaryArrival[shard.index] = shard.publishedArrival = arrival;
+            // Reading in the same critical section as writing means that a shard going idle and a shard
+            // getting a process in line can't both miss each other
+            refreshView(shard);
+            if (idle) return waiting || shard.bestElsewhere != NONE ? shard.index : NONE;
+            if (waiting) {
+                for (int i = 0; i < shards.length; i++) {
+                    if (summaryIdle[i] && i != shard.index) return i;
+                }
+            }
+            return NONE;
+        } finally {
+            summaryLock.unlock();
+        }
+    }
+
+    // Helper Function - Strict priority, then first come first served
+    private static boolean comesFirst(int priority, long arrival, int otherPriority, long otherArrival) {
+        return priority < otherPriority || (priority == otherPriority && arrival <= otherArrival);
+    }
+
+    // Helper Function - Double the size of a shard's process table
+    private static void growProcessTable(Shard shard) {
+        int capacity = shard.conditions.length * 2;
+        shard.processLevels = Arrays.copyOf(shard.processLevels, capacity);
+        shard.conditions = Arrays.copyOf(shard.conditions, capacity);
+        shard.states = Arrays.copyOf(shard.states, capacity);
+        shard.processorShards = Arrays.copyOf(shard.processorShards, capacity);
+        shard.arrivalTimes = Arrays.copyOf(shard.arrivalTimes, capacity);
+        shard.priorityQueues.ensureNodeCapacity(capacity);
+    }
+}
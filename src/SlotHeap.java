@@ -0,0 +1,149 @@
+import java.util.Arrays;
+
+// A binary min-heap of process table slots ordered by a long key, then by insertion order - the
+// ready queue for policies that don't order by fixed priority levels.
+//
+// This class is NOT thread safe - all access must be guarded by the OS lock.
+//
+// Every slot remembers its position in the heap, so any slot can be removed in O(log n), and
+// ties on the key go first come first served, so equal keys keep FIFO order.
+
+public class SlotHeap {
+    public static final int NONE = -1;
+
+    private int[] heap = new int[16]; // Slots in heap order
+    private int size = 0;
+    private int[] positions = new int[16]; // Index of each slot in heap, NONE if it isn't in the heap
+    private long[] keys = new long[16]; // By slot
+    private long[] sequences = new long[16]; // Insertion order, by slot
+    private long nextSequence = 0;
+
+    public SlotHeap() {
+        Arrays.fill(positions, NONE);
+    }
+
+    // A copy to poll from - polling never writes keys or sequences, so the copy shares them
+    private SlotHeap(SlotHeap other) {
+        heap = Arrays.copyOf(other.heap, Math.max(1, other.size));
+        size = other.size;
+        positions = other.positions.clone();
+        keys = other.keys;
+        sequences = other.sequences;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > positions.length) {
+            int old = positions.length;
+            positions = Arrays.copyOf(positions, capacity);
+            Arrays.fill(positions, old, capacity, NONE);
+            keys = Arrays.copyOf(keys, capacity);
+            sequences = Arrays.copyOf(sequences, capacity);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int slot) {
+        return positions[slot] != NONE;
+    }
+
+    public void add(int slot, long key) {
+        if (size == heap.length) heap = Arrays.copyOf(heap, size * 2);
+        keys[slot] = key;
+        sequences[slot] = nextSequence++;
+        heap[size] = slot;
+        positions[slot] = size;
+        siftUp(size++);
+    }
+
+    // The slot with the smallest key, or NONE
+    public int peek() {
+        return size == 0 ? NONE : heap[0];
+    }
+
+    public long keyOf(int slot) {
+        return keys[slot];
+    }
+
+    // Change the key of a slot in the heap, keeping its place among equal keys
+    public void changeKey(int slot, long key) {
+        keys[slot] = key;
+        siftDown(positions[slot]);
+        siftUp(positions[slot]);
+    }
+
+    // The slot poll would return last, or NONE - O(n), as it can be any leaf
+    public int last() {
+        int last = NONE;
+        for (int index = size >>> 1; index < size; index++) {
+            if (last == NONE || before(last, heap[index])) last = heap[index];
+        }
+        return last;
+    }
+
+    public int poll() {
+        if (size == 0) return NONE;
+        int slot = heap[0];
+        remove(slot);
+        return slot;
+    }
+
+    // Write the slots to 'into' in the order poll would return them, leaving the heap as it is, and
+    // return how many there are - O(n log n), polling a copy
+    public int inOrder(int[] into) {
+        SlotHeap copy = new SlotHeap(this);
+        int count = 0;
+        while (copy.size > 0) into[count++] = copy.poll();
+        return count;
+    }
+
+    public void remove(int slot) {
+        int index = positions[slot];
+        if (index == NONE) return;
+        positions[slot] = NONE;
+        int last = heap[--size];
+        if (index == size) return;
+        heap[index] = last;
+        positions[last] = index;
+        siftDown(index);
+        siftUp(positions[last]);
+    }
+
+    private boolean before(int a, int b) {
+        return keys[a] < keys[b] || (keys[a] == keys[b] && sequences[a] < sequences[b]);
+    }
+
+    private void siftUp(int index) {
+        int slot = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!before(slot, heap[parent])) break;
+            heap[index] = heap[parent];
+            positions[heap[index]] = index;
+            index = parent;
+        }
+        heap[index] = slot;
+        positions[slot] = index;
+    }
+
+    private void siftDown(int index) {
+        int slot = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) break;
+            if (child + 1 < size && before(heap[child + 1], heap[child])) child++;
+            if (!before(heap[child], slot)) break;
+            heap[index] = heap[child];
+            positions[heap[index]] = index;
+            index = child;
+        }
+        heap[index] = slot;
+        positions[slot] = index;
+    }
+}
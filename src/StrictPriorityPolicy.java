@@ -0,0 +1,87 @@
+import java.util.Arrays;
+
+// Strict priority (lower value = higher priority), first come first served within a priority -
+// the behaviour the UR tests require. Backed by ReadyQueues, so every operation is O(1) apart
+// from finding a new priority's level on registration.
+//
+// NOT thread safe - see SchedulingPolicy.
+
+public class StrictPriorityPolicy implements SchedulingPolicy {
+    private final ReadyQueues priorityQueues = new ReadyQueues();
+    private int[] processLevels = new int[16]; // Ready queue level handle of each process's priority
+    // The level of the last priority registered, so runs of registrations at one priority (e.g. from
+    // regBatch) skip the level search. Forgotten whenever a process unregisters, as its level may go.
+    private int lastLevel = ReadyQueues.NONE;
+
+    @Override
+    public void ensureCapacity(int capacity) {
+        if (capacity > processLevels.length) processLevels = Arrays.copyOf(processLevels, capacity);
+        priorityQueues.ensureNodeCapacity(capacity);
+    }
+
+    @Override
+    public void register(int slot, int priority) {
+        if (lastLevel != ReadyQueues.NONE && priorityQueues.priorityOf(lastLevel) == priority) priorityQueues.retainLevel(lastLevel);
+        else lastLevel = priorityQueues.acquireLevel(priority); // Creating the level if it doesn't exist
+        processLevels[slot] = lastLevel;
+    }
+
+    @Override
+    public void unregister(int slot) {
+        priorityQueues.releaseLevel(processLevels[slot]); // Removing the level if no other process is registered on it
+        lastLevel = ReadyQueues.NONE;
+    }
+
+    @Override
+    public void setPriority(int slot, int priority, boolean inLine) {
+        int level = priorityQueues.acquireLevel(priority); // Binary search over the live levels
+        if (inLine) priorityQueues.remove(processLevels[slot], slot);
+        priorityQueues.releaseLevel(processLevels[slot]);
+        lastLevel = ReadyQueues.NONE;
+        processLevels[slot] = level;
+        if (inLine) priorityQueues.enqueue(level, slot); // The back of its new priority's queue
+    }
+
+    @Override
+    public void enqueue(int slot) {
+        priorityQueues.enqueue(processLevels[slot], slot);
+    }
+
+    @Override
+    public int peek() {
+        int level = priorityQueues.bestLevel();
+        return level == ReadyQueues.NONE ? NONE : priorityQueues.peek(level);
+    }
+
+    @Override
+    public int last() {
+        int level = priorityQueues.worstLevel();
+        return level == ReadyQueues.NONE ? NONE : priorityQueues.peekLast(level);
+    }
+
+    @Override
+    public int poll() {
+        int level = priorityQueues.bestLevel(); // Find-first-set on the bitmap of non-empty levels
+        return level == ReadyQueues.NONE ? NONE : priorityQueues.poll(level);
+    }
+
+    @Override
+    public void remove(int slot) {
+        priorityQueues.remove(processLevels[slot], slot); // Unlinked from its intrusive list in O(1)
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return priorityQueues.isEmpty();
+    }
+
+    @Override
+    public int line(int[] into) {
+        return priorityQueues.line(into);
+    }
+
+    @Override
+    public int priorityOf(int slot) {
+        return priorityQueues.priorityOf(processLevels[slot]);
+    }
+}
@@ -5,10 +5,26 @@
 
 //Note that you may use *any* classes in this Tests class that are available in SE 17. 
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
 
 public class Tests {
 
@@ -409,5 +425,1590 @@ public class Tests {
 
 	    System.out.println("\n" + testResult);
 	}
+	
+	public void simultaneous_release_test() {
+		/*********************
+		 * 
+		 * Two processors are freed back to back while two processes are waiting.
+		 * 
+		 * p0 and p1 hold both processors; p2 and p3 queue behind them in start.
+		 * p0 and p1 then terminate one straight after the other, so both waiters must be
+		 * dispatched at once - a wakeup aimed at the head of the queue twice would leave p3
+		 * parked, with a free processor, until p2 terminates.
+		 * 
+		 * p3 reports its dispatch 40 ms after p2 reports its own, so that the two events (dispatched
+		 * together) come in a fixed order; a stranded p3 would report it after p2's session 1.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Simultaneous release *************");
+		events = new ConcurrentLinkedQueue<String>(); //List of process events
+		
+		OS os = new OS();
+		os.set_number_of_processors(2);
+		int priority1 = 1;
+		
+		int pid0 = os.reg(priority1);
+		int pid1 = os.reg(priority1);
+		os.start(pid0); //Test thread takes both processors on behalf of p0 and p1
+		os.start(pid1);
+		
+		Thread[] waiters = new Thread[2];
+		for (int i = 0; i < 2; i++) {
+			int pid = os.reg(priority1);
+			int stagger = 40 * i;
+			String[] sessions = {"pid=" + pid + ", session=0", "pid=" + pid + ", session=1"}; //Built here, so the reports take no time
+			waiters[i] = new Thread(() -> {
+				os.start(pid);
+				sleep(stagger); //Order the reports of two dispatches made at the same time
+				events.add(sessions[0]);
+				sleep(100); //Keep the processor so that a stranded waiter can't be rescued by this terminate
+				events.add(sessions[1]);
+				os.terminate(pid);
+			});
+			waiters[i].start();
+			sleep(20); //Make sure the waiters queue in pid order
+		}
+		
+		os.terminate(pid0);
+		os.terminate(pid1);
+		
+		sleep(test_timeout);
+		
+		String[] expected = {"pid=2, session=0", "pid=3, session=0", "pid=2, session=1", "pid=3, session=1"};
+		
+		System.out.println("\nSimultaneous release - NOW CHECKING");
+		String test_status = "SIMULTANEOUS RELEASE PASSED";
+		if (events.size() == expected.length) {
+			 Iterator <String> iterator = events.iterator(); 
+			 int index=0;
+			 while (iterator.hasNext()) {
+				 String event = iterator.next();
+				 if (event.equals(expected[index])) System.out.println("Expected event = "+ expected[index] + ", actual event = " + event + " --- MATCH");
+				 else {
+					 test_status = "SIMULTANEOUS RELEASE FAILED";	
+					 System.out.println("Expected event = "+ expected[index] + ", actual event = " + event + " --- ERROR");
+				 }
+				 index++;
+			 }
+		} else {
+			System.out.println("Number of events expected = " + expected.length + ", number of events reported = " + events.size());
+			test_status = "SIMULTANEOUS RELEASE FAILED";			
+		}		
 
-}
\ No newline at end of file
+		System.out.println("\n" + test_status);	
+	}
+	
+	public void many_processes_stress_test() {
+		many_processes_stress("Many processes stress", new OS());
+	}
+	
+	void many_processes_stress(String name, OS_sim_interface os) {
+		/*********************
+		 * 
+		 * 102,400 processes on four processors, three priorities.
+		 * 
+		 * 32 threads each run 3,200 short processes back to back (reg, start, two schedules, terminate),
+		 * so pids run far past the -128..127 Integer cache. Every thread must finish, every pid must be
+		 * unique and sequential, and no more than four processes may ever be running at once.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** " + name + " *************");
+		
+		int processors = 4;
+		os.set_number_of_processors(processors);
+		int threads = 32;
+		int processesPerThread = 3200;
+		int total = threads * processesPerThread;
+		
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		AtomicIntegerArray pidSeen = new AtomicIntegerArray(total);
+		AtomicInteger duplicatePids = new AtomicInteger();
+		
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread(() -> {
+				for (int i = 0; i < processesPerThread; i++) {
+					int pid = os.reg(i % 3);
+					if (pid < 0 || pid >= total) { duplicatePids.incrementAndGet(); continue; }
+					if (pidSeen.getAndSet(pid, 1) != 0) duplicatePids.incrementAndGet();
+					for (int session = 0; session < 3; session++) {
+						if (session == 0) os.start(pid); else os.schedule(pid);
+						maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+						running.decrementAndGet();
+					}
+					os.terminate(pid);
+				}
+			});
+		}
+		long timeBefore = System.nanoTime();
+		for (Thread worker : workers) worker.start();
+		boolean allFinished = true;
+		for (Thread worker : workers) {
+			try {worker.join(60_000);} catch (InterruptedException e) {e.printStackTrace();}
+			if (worker.isAlive()) allFinished = false;
+		}
+		long elapsed = System.nanoTime() - timeBefore;
+		
+		int pidsSeen = 0;
+		for (int pid = 0; pid < total; pid++) pidsSeen += pidSeen.get(pid);
+		
+		System.out.println("\n" + name + " - NOW CHECKING");
+		System.out.println("processes = " + total + ", elapsed ms = " + elapsed / 1_000_000);
+		System.out.println("all threads finished = " + allFinished);
+		System.out.println("distinct pids = " + pidsSeen + ", duplicate or out of range pids = " + duplicatePids.get());
+		System.out.println("max running at once = " + maxRunning.get() + " (processors = " + processors + ")");
+		String test_status = name.toUpperCase() + " PASSED";
+		if (!allFinished || pidsSeen != total || duplicatePids.get() != 0 || maxRunning.get() > processors) test_status = name.toUpperCase() + " FAILED";
+		System.out.println("\n" + test_status);
+	}
+	
+	public void fifo_order_stress_test() {
+		fifo_order_stress("FIFO order stress", new OS());
+	}
+	
+	void fifo_order_stress(String name, OS_sim_interface os) {
+		/*********************
+		 * 
+		 * FIFO within each priority for 1,500 queued processes, single processor.
+		 * 
+		 * The test thread holds the only processor while 1,500 processes (priorities 1-3, pids well past
+		 * the Integer cache) queue up one at a time, each one parked in start before the next is created.
+		 * Once the processor is released they must run strictly by priority, and in arrival order
+		 * within a priority.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** " + name + " *************");
+		events = new ConcurrentLinkedQueue<String>(); //List of process events
+		
+		os.set_number_of_processors(1);
+		int holder = os.reg(0);
+		os.start(holder); //Test thread takes the processor
+		
+		int waiters = 1500;
+		int priorities = 3;
+		ArrayList<ArrayList<String>> expectedByPriority = new ArrayList<ArrayList<String>>();
+		for (int priority = 0; priority < priorities; priority++) expectedByPriority.add(new ArrayList<String>());
+		Thread[] processes = new Thread[waiters];
+		for (int i = 0; i < waiters; i++) {
+			int priority = (i * 7) % priorities; //Interleave the priorities
+			int pid = os.reg(priority + 1);
+			expectedByPriority.get(priority).add("pid=" + pid + ", session=0");
+			processes[i] = new Thread(() -> {
+				os.start(pid);
+				events.add("pid=" + pid + ", session=0");
+				os.terminate(pid);
+			});
+			processes[i].start();
+			//Wait until the process is parked in start (no one else can hold the OS lock) before the next one arrives
+			while (processes[i].getState() != Thread.State.WAITING) Thread.yield();
+		}
+		
+		os.terminate(holder);
+		for (Thread process : processes) {
+			try {process.join(10_000);} catch (InterruptedException e) {e.printStackTrace();}
+		}
+		
+		ArrayList<String> expected = new ArrayList<String>();
+		for (ArrayList<String> sameLevel : expectedByPriority) expected.addAll(sameLevel);
+		
+		System.out.println("\n" + name + " - NOW CHECKING");
+		String test_status = name.toUpperCase() + " PASSED";
+		if (events.size() == expected.size()) {
+			 Iterator <String> iterator = events.iterator(); 
+			 int index=0;
+			 int mismatches=0;
+			 while (iterator.hasNext()) {
+				 String event = iterator.next();
+				 if (!event.equals(expected.get(index)) && mismatches++ < 10) {
+					 test_status = name.toUpperCase() + " FAILED";	
+					 System.out.println("Expected event = "+ expected.get(index) + ", actual event = " + event + " --- ERROR");
+				 }
+				 index++;
+			 }
+			 System.out.println("Events checked = " + index + ", mismatches = " + mismatches);
+		} else {
+			System.out.println("Number of events expected = " + expected.size() + ", number of events reported = " + events.size());
+			test_status = name.toUpperCase() + " FAILED";			
+		}		
+
+		System.out.println("\n" + test_status);	
+	}
+	
+	public void sharded_stress_test() {
+		//Four shards on four processors, strict and with a bounded inversion window
+		many_processes_stress("Sharded strict stress", new ShardedOS(4));
+		many_processes_stress("Sharded bounded stress", new ShardedOS(4, 16));
+		//Four shards sharing one processor: every dispatch off shard 0 is a steal. The processes
+		//queue one at a time before the processor is freed, so every one has been published and
+		//strict mode must give global priority then arrival order (not guaranteed for racing arrivals)
+		fifo_order_stress("Sharded FIFO order stress", new ShardedOS(4));
+	}
+	
+	public void metrics_test() {
+		/*********************
+		 * 
+		 * Scheduler metrics account for every start, schedule and terminate.
+		 * 
+		 * 8 threads each run 25 processes (reg, start, four schedules, terminate) on two processors,
+		 * three priorities, with metrics on and a 1 ms periodic dump. Every start is either a fast
+		 * path start or a dispatch from a ready queue, and every schedule ends in a dispatch, so the
+		 * counters must add up exactly. The queues must be empty at the end, the periodic dump must
+		 * have run, and disabling metrics must drop them.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Metrics *************");
+		
+		OS os = new OS();
+		os.set_number_of_processors(2);
+		ConcurrentLinkedQueue<SchedulerMetrics.Snapshot> dumps = new ConcurrentLinkedQueue<SchedulerMetrics.Snapshot>();
+		os.enableMetrics(1, dumps::add);
+		int threads = 8;
+		int processesPerThread = 25;
+		int schedules = 4;
+		
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread(() -> {
+				for (int i = 0; i < processesPerThread; i++) {
+					int pid = os.reg(i % 3);
+					os.start(pid);
+					for (int session = 0; session < schedules; session++) os.schedule(pid);
+					sleep(1); //Let the periodic dump come due
+					os.terminate(pid);
+				}
+			});
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			try {worker.join(60_000);} catch (InterruptedException e) {e.printStackTrace();}
+		}
+		
+		SchedulerMetrics.Snapshot snapshot = os.metricsSnapshot();
+		System.out.println("\nMetrics - NOW CHECKING");
+		System.out.print(snapshot);
+		int processes = threads * processesPerThread;
+		int queued = 0;
+		for (int depth : snapshot.depths) queued += depth;
+		String test_status = "METRICS PASSED";
+		if (snapshot.schedules != processes * schedules || snapshot.terminates != processes) test_status = "METRICS FAILED";
+		if (snapshot.totalDispatches() + snapshot.fastPathStarts != processes * (schedules + 1)) test_status = "METRICS FAILED";
+		if (snapshot.startWaits.count() != processes - snapshot.fastPathStarts || snapshot.scheduleWaits.count() != processes * schedules) test_status = "METRICS FAILED";
+		if (queued != 0 || snapshot.priorities.length != 3 || snapshot.liveProcesses != 0 || snapshot.freeProcessors != 2) test_status = "METRICS FAILED";
+		System.out.println("periodic dumps = " + dumps.size());
+		if (dumps.isEmpty()) test_status = "METRICS FAILED";
+		os.disableMetrics();
+		if (os.metricsSnapshot() != null) test_status = "METRICS FAILED";
+		System.out.println("\n" + test_status);
+	}
+	
+	public void batch_registration_test() {
+		/*********************
+		 * 
+		 * regBatch hands out contiguous pids that carry on the sequence of reg, and admitBatch
+		 * queues a whole batch in pid order.
+		 * 
+		 * p0 takes the only processor. A batch of five processes of priority 1 is registered and
+		 * admitted, then their threads call start in reverse pid order. When p0 terminates the
+		 * batch must run in pid order (admission order), not in the order start was called.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Batch registration *************");
+		events = new ConcurrentLinkedQueue<String>(); //List of process events
+		
+		OS os = new OS();
+		os.set_number_of_processors(1);
+		int pid0 = os.reg(0);
+		os.start(pid0);
+		int first = os.regBatch(new int[] {1, 1, 1, 1, 1});
+		int next = os.reg(2);
+		boolean sequential = pid0 == 0 && first == 1 && next == 6 && os.regBatch(new int[0]) == -1;
+		os.admitBatch(first, 5);
+		
+		for (int pid = first + 4; pid >= first; pid--) {
+			int ID = pid;
+			new Thread(() -> {
+				os.start(ID);
+				events.add("pid=" + ID + ", session=0");
+				os.terminate(ID);
+			}).start();
+			sleep(20); //Make sure the threads call start in reverse pid order
+		}
+		os.terminate(pid0);
+		
+		sleep(test_timeout);
+		
+		String[] expected = {"pid=1, session=0", "pid=2, session=0", "pid=3, session=0", "pid=4, session=0", "pid=5, session=0"};
+		
+		System.out.println("\nBatch registration - NOW CHECKING");
+		System.out.println("pids sequential = " + sequential);
+		String test_status = sequential ? "BATCH REGISTRATION PASSED" : "BATCH REGISTRATION FAILED";
+		if (events.size() == expected.length) {
+			 Iterator<String> QueueIterator = events.iterator();
+			 for (String expected_event : expected) {
+				 String actual_event = QueueIterator.next();
+				 if (expected_event.equals(actual_event)) System.out.println("Expected event = "+ expected_event + ", actual event = " + actual_event + " --- MATCH");
+				 else {
+					 test_status = "BATCH REGISTRATION FAILED";
+					 System.out.println("Expected event = "+ expected_event + ", actual event = " + actual_event + " --- ERROR");
+				 }
+			 }
+		} else {
+			System.out.println("Number of events expected = " + expected.length + ", number of events reported = " + events.size());
+			test_status = "BATCH REGISTRATION FAILED";
+		}
+		
+		System.out.println("\n" + test_status);
+	}
+	
+	public void virtual_clock_test() {
+		/*********************
+		 * 
+		 * Deterministic virtual clock runs (see VirtualClockSimulation).
+		 * 
+		 * First the UR3 scenario - p0 with a 150 tick start session, p1 and p2 arriving at 50 and
+		 * 100 on a single processor - must give UR3's events at the right virtual times. Then
+		 * thousands of random scenarios, 1-3 processors, are each run on the OS and checked
+		 * against the model of the scheduling rules. A failure reports the seed to reproduce it.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Virtual clock *************");
+		String test_status = "VIRTUAL CLOCK PASSED";
+		
+		List<String> ur3 = new VirtualClockSimulation(1,
+				new VirtualClockSimulation.Process(0, 1, 150, 0, 0),
+				new VirtualClockSimulation.Process(50, 1, 0, 0, 0),
+				new VirtualClockSimulation.Process(100, 1, 0, 0, 0)).run();
+		List<String> expected = Arrays.asList("t=0: pid=0, session=0", "t=150: pid=1, session=0", "t=150: pid=2, session=0", "t=150: pid=0, session=1",
+				"t=150: pid=1, session=1", "t=150: pid=2, session=1", "t=150: pid=0, session=2", "t=150: pid=1, session=2", "t=150: pid=2, session=2");
+		System.out.println("UR3 scenario events = " + ur3);
+		if (!expected.equals(ur3)) test_status = "VIRTUAL CLOCK FAILED";
+		
+		int scenarios = 2000;
+		long firstSeed = 12345;
+		int mismatches = 0;
+		long timeBefore = System.nanoTime();
+		for (long seed = firstSeed; seed < firstSeed + scenarios; seed++) {
+			VirtualClockSimulation simulation = new VirtualClockSimulation(1 + (int) (seed % 3), VirtualClockSimulation.randomScenario(seed));
+			List<String> actual = simulation.run();
+			if (!simulation.expectedEvents().equals(actual)) {
+				if (mismatches++ == 0) System.out.println("seed " + seed + " - expected " + simulation.expectedEvents() + ", actual " + actual);
+			}
+		}
+		long elapsed = System.nanoTime() - timeBefore;
+		
+		System.out.println("\nVirtual clock - NOW CHECKING");
+		System.out.println("random scenarios = " + scenarios + ", mismatches = " + mismatches + ", scenarios per second = " + (long) (scenarios * 1e9 / elapsed));
+		if (mismatches != 0) test_status = "VIRTUAL CLOCK FAILED";
+		System.out.println("\n" + test_status);
+	}
+	
+	public void trace_test() {
+		/*********************
+		 * 
+		 * Binary event trace (see TraceRing and TraceDecoder).
+		 * 
+		 * On two processors, single threaded: p0 and p1 start (both take a free processor), p0
+		 * schedules (and gets its processor straight back), then both terminate. The decoded
+		 * records must be exactly those events in order, and the timeline must show p0 twice on
+		 * processor 0 and p1 once on processor 1. A 4 record ring must keep only the last 4.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Trace *************");
+		String test_status = "TRACE PASSED";
+		try {
+			Path file = Files.createTempFile("os-trace", ".bin");
+			OS os = new OS();
+			os.set_number_of_processors(2);
+			if (!os.enableTrace(file.toString(), 1024)) test_status = "TRACE FAILED";
+			int pid0 = os.reg(1);
+			int pid1 = os.reg(2);
+			os.start(pid0);
+			os.start(pid1);
+			os.schedule(pid0);
+			os.terminate(pid0);
+			os.terminate(pid1);
+			os.disableTrace();
+			os.reg(1); //Not traced
+			
+			List<TraceDecoder.Record> records = TraceDecoder.read(file);
+			ArrayList<String> actual = new ArrayList<String>();
+			for (TraceDecoder.Record record : records) actual.add(record.typeName() + " " + record.pid);
+			List<String> expected = Arrays.asList("PROCESSORS -1", "REG 0", "REG 1", "DISPATCH 0", "DISPATCH 1",
+					"SCHEDULE 0", "ENQUEUE 0", "DISPATCH 0", "TERMINATE 0", "TERMINATE 1");
+			System.out.println("records = " + actual);
+			if (!expected.equals(actual)) test_status = "TRACE FAILED";
+			
+			List<TraceDecoder.Slice> timeline = TraceDecoder.timeline(records);
+			TraceDecoder.printTimeline(timeline);
+			String slices = "";
+			for (TraceDecoder.Slice slice : timeline) slices += "cpu" + slice.processor + ":p" + slice.pid + " ";
+			if (!slices.equals("cpu0:p0 cpu0:p0 cpu1:p1 ")) test_status = "TRACE FAILED";
+			
+			os.enableTrace(file.toString(), 4);
+			for (int i = 0; i < 3; i++) os.reg(1);
+			os.disableTrace();
+			records = TraceDecoder.read(file);
+			System.out.println("4 record ring after 4 events = " + records);
+			if (records.size() != 4 || records.get(0).type != TraceRing.PROCESSORS || records.get(3).pid != 5) test_status = "TRACE FAILED";
+			os.enableTrace(file.toString(), 4);
+			for (int i = 0; i < 6; i++) os.reg(1);
+			os.disableTrace();
+			records = TraceDecoder.read(file);
+			System.out.println("4 record ring after 7 events = " + records);
+			if (records.size() != 4 || records.get(0).sequence != 3 || records.get(0).pid != 8 || records.get(3).pid != 11) test_status = "TRACE FAILED";
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+			test_status = "TRACE FAILED";
+		}
+		System.out.println("\n" + test_status);
+	}
+	
+	public void workload_replay_test() {
+		/*********************
+		 * 
+		 * Workload replay (see WorkloadReplay).
+		 * 
+		 * A generated 5,000 process workload is replayed at full speed on OS and ShardedOS, with at
+		 * most 200 processes live at once so the reader has to wait for processes to finish. Every
+		 * process must run: the report must count every process and call, and have one start wait
+		 * per process and one schedule wait per schedule in the file.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Workload replay *************");
+		String test_status = "WORKLOAD REPLAY PASSED";
+		try {
+			Path file = Files.createTempFile("workload", ".txt");
+			int processes = 5000;
+			WorkloadReplay.generate(file, processes, 42);
+			long schedules = 0;
+			for (String line : Files.readAllLines(file)) {
+				if (!line.startsWith("#")) schedules += Integer.parseInt(line.split(" ")[2]);
+			}
+			for (OS_sim_interface os : new OS_sim_interface[] {new OS(), new ShardedOS(2)}) {
+				WorkloadReplay.Report report = new WorkloadReplay(os, 2, false, 200).replay(file);
+				System.out.println(os.getClass().getName() + ":\n" + report);
+				long startWaits = 0, scheduleWaits = 0;
+				for (SchedulerMetrics.LatencyHistogram histogram : report.startWaits.values()) startWaits += histogram.count();
+				for (SchedulerMetrics.LatencyHistogram histogram : report.scheduleWaits.values()) scheduleWaits += histogram.count();
+				if (report.processes != processes || report.calls != schedules + 2L * processes) test_status = "WORKLOAD REPLAY FAILED";
+				if (startWaits != processes || scheduleWaits != schedules) test_status = "WORKLOAD REPLAY FAILED";
+			}
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+			test_status = "WORKLOAD REPLAY FAILED";
+		}
+		System.out.println("\n" + test_status);
+	}
+	
+	public void processor_hot_plug_test() {
+		processor_hot_plug("Processor hot plug", new OS());
+		processor_hot_plug("Sharded processor hot plug", new ShardedOS(2));
+	}
+	
+	void processor_hot_plug(String name, OS_sim_interface os) {
+		/*********************
+		 * 
+		 * Processors added while processes wait, and removed while processes run.
+		 * 
+		 * Add: p0 holds the only processor and p1-p3 wait in start. Raising the number of
+		 * processors to 4 must dispatch all three at once, without p0 giving anything up.
+		 * Remove: p0 and p4-p6 run on all 4 processors, the number is cut to 1 and p7 starts.
+		 * p7 must wait until all four running processes have given up their processors.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** " + name + " *************");
+		events = new ConcurrentLinkedQueue<String>(); //List of process events
+		os.set_number_of_processors(1);
+		int pid0 = os.reg(1);
+		os.start(pid0);
+		for (int i = 0; i < 3; i++) {
+			int pid = os.reg(1);
+			new Thread(() -> {
+				os.start(pid);
+				events.add("pid=" + pid + ", session=0");
+			}).start();
+		}
+		sleep(50);
+		int beforeAdd = events.size();
+		os.set_number_of_processors(4);
+		sleep(50);
+		int afterAdd = events.size();
+		for (int pid = 1; pid <= 3; pid++) os.terminate(pid);
+		
+		int[] running = {os.reg(1), os.reg(1), os.reg(1)}; //p4-p6 take the three free processors
+		for (int pid : running) os.start(pid);
+		os.set_number_of_processors(1);
+		int pid7 = os.reg(1);
+		new Thread(() -> {
+			os.start(pid7);
+			events.add("pid=" + pid7 + ", session=0");
+			os.terminate(pid7);
+		}).start();
+		os.terminate(pid0);
+		for (int i = 0; i < 2; i++) os.terminate(running[i]);
+		sleep(50);
+		int beforeLastRelease = events.size();
+		os.terminate(running[2]);
+		sleep(50);
+		int afterLastRelease = events.size();
+		
+		System.out.println("\n" + name + " - NOW CHECKING");
+		System.out.println("dispatched before add = " + beforeAdd + " (expected 0), after add = " + afterAdd + " (expected 3)");
+		System.out.println("p7 dispatched with 1 of 4 processes left over capacity = " + (beforeLastRelease - afterAdd) + " (expected 0), after the last release = " + (afterLastRelease - afterAdd) + " (expected 1)");
+		String test_status = name.toUpperCase() + " PASSED";
+		if (beforeAdd != 0 || afterAdd != 3 || beforeLastRelease != 3 || afterLastRelease != 4) test_status = name.toUpperCase() + " FAILED";
+		System.out.println("\n" + test_status);
+	}
+	
+	public void async_test() {
+		/*********************
+		 * 
+		 * Non-blocking startAsync/scheduleAsync with callbacks (see DispatchHandle).
+		 * 
+		 * First UR3 with no process threads at all: p0-p2 on a single processor, each session a
+		 * callback that records its event and calls scheduleAsync (or terminate after session 2).
+		 * The order must be UR3's. Then 100,000 processes, each with two schedules, are driven by
+		 * the 2 callback threads alone on 8 processors: all must finish, never more than 8 at once.
+		 * Finally the OS's own callback threads must stop when another executor is set, a callback
+		 * still due on a handle returned before that must run on the new one, and closing the OSs
+		 * must stop the rest.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Async *************");
+		events = new ConcurrentLinkedQueue<String>(); //List of process events
+		String test_status = "ASYNC PASSED";
+		int callbackThreads = callback_threads(); //Left by earlier tests
+		
+		OS os = new OS();
+		CountDownLatch ur3Done = new CountDownLatch(3);
+		int[] pids = {os.reg(1), os.reg(1), os.reg(1)};
+		for (int pid : pids) async_process(os, pid, 0, 2, events, null, ur3Done);
+		os.set_number_of_processors(1); //Only once all three are in line, so p0's callbacks can't finish it before p1 and p2 start
+		try {ur3Done.await(10, TimeUnit.SECONDS);} catch (InterruptedException e) {e.printStackTrace();}
+		List<String> expected = Arrays.asList("pid=0, session=0", "pid=1, session=0", "pid=2, session=0", "pid=0, session=1",
+				"pid=1, session=1", "pid=2, session=1", "pid=0, session=2", "pid=1, session=2", "pid=2, session=2");
+		System.out.println("UR3 events = " + events);
+		if (!expected.equals(new ArrayList<String>(events))) test_status = "ASYNC FAILED";
+		
+		OS manyOs = new OS();
+		int processors = 8;
+		manyOs.set_number_of_processors(processors);
+		int processes = 100_000;
+		CountDownLatch done = new CountDownLatch(processes);
+		AtomicInteger[] running = {new AtomicInteger(), new AtomicInteger()}; //Running now, most at once
+		long timeBefore = System.nanoTime();
+		for (int p = 0; p < processes; p++) async_process(manyOs, manyOs.reg(p % 3), 0, 2, null, running, done); //Too many events to record
+		boolean finished = false;
+		try {finished = done.await(60, TimeUnit.SECONDS);} catch (InterruptedException e) {e.printStackTrace();}
+		long elapsed = System.nanoTime() - timeBefore;
+		
+		System.out.println("\nAsync - NOW CHECKING");
+		System.out.println("processes = " + processes + ", finished = " + finished + ", elapsed ms = " + elapsed / 1_000_000 + ", max running at once = " + running[1].get());
+		if (!finished || running[1].get() > processors) test_status = "ASYNC FAILED";
+		
+		OS swapOs = new OS();
+		swapOs.set_number_of_processors(1);
+		int holder = swapOs.reg(0), waiter = swapOs.reg(0);
+		swapOs.startAsync(holder).onDispatch(() -> {}); //Starts the OS's own 2 threads
+		CountDownLatch ran = new CountDownLatch(1);
+		swapOs.startAsync(waiter).onDispatch(ran::countDown);
+		CallbackExecutor replacement = new CallbackExecutor(1);
+		swapOs.setCallbackExecutor(replacement);
+		boolean ownStopped = await_callback_threads(callbackThreads + 4 + 1); //os and manyOs's, and the replacement
+		swapOs.terminate(holder);
+		boolean ranOnReplacement = false;
+		try {ranOnReplacement = ran.await(5, TimeUnit.SECONDS);} catch (InterruptedException e) {e.printStackTrace();}
+		swapOs.terminate(waiter);
+		replacement.shutdown();
+		os.close();
+		manyOs.close();
+		boolean allStopped = await_callback_threads(callbackThreads);
+		System.out.println("own callback threads stopped when replaced = " + ownStopped + ", pending callback ran on the replacement = " + ranOnReplacement
+				+ ", all stopped after close = " + allStopped);
+		if (!ownStopped || !ranOnReplacement || !allStopped) test_status = "ASYNC FAILED";
+		System.out.println("\n" + test_status);
+	}
+	
+	//The number of live CallbackExecutor threads
+	int callback_threads() {
+		int threads = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("os-callback-")) threads++;
+		}
+		return threads;
+	}
+	
+	//Wait up to 5 s for the number of live CallbackExecutor threads to come to count, and return whether it did
+	boolean await_callback_threads(int count) {
+		for (int i = 0; i < 500 && callback_threads() != count; i++) sleep(10);
+		return callback_threads() == count;
+	}
+	
+	//One process as a chain of callbacks: each session records its event, then schedules (or terminates after the last)
+	void async_process(OS os, int pid, int session, int lastSession, ConcurrentLinkedQueue<String> log, AtomicInteger[] running, CountDownLatch done) {
+		DispatchHandle handle = session == 0 ? os.startAsync(pid) : os.scheduleAsync(pid);
+		handle.onDispatch(() -> {
+			if (log != null) log.add("pid=" + pid + ", session=" + session);
+			if (running != null) {
+				running[1].accumulateAndGet(running[0].incrementAndGet(), Math::max);
+				running[0].decrementAndGet();
+			}
+			if (session == lastSession) {
+				os.terminate(pid);
+				done.countDown();
+			} else {
+				async_process(os, pid, session + 1, lastSession, log, running, done);
+			}
+		});
+	}
+	
+	public void scheduling_policies_test() {
+		/*********************
+		 * 
+		 * Scheduling policies (see SchedulingPolicy).
+		 * 
+		 * First each policy on its own, driven one call at a time so the order is exact:
+		 *   strict - by priority, FIFO within a priority
+		 *   aging - a priority 3 process behind two priority 0 processes that keep rejoining the line
+		 *           is dispatched within 3 x aging step + 2 dispatches (strict never dispatches it)
+		 *   multilevel feedback - a process that used its whole quantum goes behind one that didn't,
+		 *           and is back on its own level after a boost
+		 *   fair share - two processes that always run for the same time share the dispatches in the
+		 *           ratio of their weights, 1.25^3 = 1.95 for priorities 0 and 3
+		 * Then each policy on an OS: 2,000 processes of priorities 0-3, each scheduling 3 times on
+		 * 4 processors, must all finish with never more than 4 running at once, and on an OS with
+		 * aging a priority 5 process started behind two priority 0 processes that schedule forever
+		 * must still be dispatched.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Scheduling policies *************");
+		String test_status = "SCHEDULING POLICIES PASSED";
+		
+		SchedulingPolicy strict = new StrictPriorityPolicy();
+		strict.ensureCapacity(6);
+		int[] priorities = {2, 0, 1, 0, 2, 1};
+		for (int slot = 0; slot < 6; slot++) {
+			strict.register(slot, priorities[slot]);
+			strict.enqueue(slot);
+		}
+		List<Integer> order = new ArrayList<Integer>();
+		while (!strict.isEmpty()) order.add(strict.poll());
+		System.out.println("strict order = " + order);
+		if (!order.equals(Arrays.asList(1, 3, 2, 5, 0, 4))) test_status = "SCHEDULING POLICIES FAILED";
+		
+		int agingStep = 4;
+		int agedAfter = dispatches_until_low_priority(new AgingPolicy(agingStep));
+		int strictAfter = dispatches_until_low_priority(new StrictPriorityPolicy());
+		System.out.println("priority 3 process dispatched after " + agedAfter + " dispatches with aging, " + strictAfter + " (of 1000) with strict");
+		if (agedAfter > 3 * agingStep + 2 || strictAfter != -1) test_status = "SCHEDULING POLICIES FAILED";
+		
+		SchedulingPolicy mlfq = new MultilevelFeedbackPolicy(1000, 2, 100);
+		mlfq.ensureCapacity(2);
+		mlfq.register(0, 0);
+		mlfq.register(1, 0);
+		mlfq.enqueue(0);
+		mlfq.enqueue(1);
+		order.clear();
+		order.add(mlfq.poll()); //0, which then uses its whole quantum
+		mlfq.ran(0, 5000);
+		mlfq.enqueue(0);
+		order.add(mlfq.poll()); //1, which gives up its processor early
+		mlfq.ran(1, 10);
+		mlfq.enqueue(1);
+		order.add(mlfq.poll()); //1 again, ahead of the demoted 0
+		mlfq.ran(1, 10);
+		order.add(mlfq.poll()); //0
+		mlfq.ran(0, 5000);
+		for (int d = 0; d < 100; d++) { //Run 1 alone past the boost
+			mlfq.enqueue(1);
+			mlfq.poll();
+			mlfq.ran(1, 10);
+		}
+		mlfq.enqueue(0);
+		mlfq.enqueue(1);
+		order.add(mlfq.poll()); //0, boosted back to level 0 and first in line
+		System.out.println("multilevel feedback order = " + order);
+		if (!order.equals(Arrays.asList(0, 1, 1, 0, 0))) test_status = "SCHEDULING POLICIES FAILED";
+		
+		SchedulingPolicy fair = new FairSharePolicy();
+		fair.ensureCapacity(2);
+		fair.register(0, 0);
+		fair.register(1, 3);
+		fair.enqueue(0);
+		fair.enqueue(1);
+		int[] dispatched = new int[2];
+		for (int d = 0; d < 10_000; d++) {
+			int slot = fair.poll();
+			dispatched[slot]++;
+			fair.ran(slot, 1000);
+			fair.enqueue(slot);
+		}
+		double ratio = (double) dispatched[0] / dispatched[1];
+		System.out.println("fair share dispatches = " + Arrays.toString(dispatched) + ", ratio = " + String.format("%.2f", ratio));
+		if (ratio < 1.85 || ratio > 2.05) test_status = "SCHEDULING POLICIES FAILED";
+		
+		SchedulingPolicy[] policies = {new StrictPriorityPolicy(), new AgingPolicy(16), new MultilevelFeedbackPolicy(10_000, 3, 500), new FairSharePolicy()};
+		for (SchedulingPolicy policy : policies) {
+			OS os = new OS(policy);
+			int processors = 4;
+			os.set_number_of_processors(processors);
+			int processes = 2000;
+			AtomicInteger[] running = {new AtomicInteger(), new AtomicInteger()}; //Running now, most at once
+			CountDownLatch done = new CountDownLatch(processes);
+			for (int p = 0; p < processes; p++) {
+				int pid = os.reg(p % 4);
+				new Thread(() -> {
+					for (int session = 0; session <= 3; session++) {
+						if (session == 0) os.start(pid); else os.schedule(pid);
+						running[1].accumulateAndGet(running[0].incrementAndGet(), Math::max);
+						running[0].decrementAndGet();
+					}
+					os.terminate(pid);
+					done.countDown();
+				}).start();
+			}
+			boolean finished = false;
+			try {finished = done.await(60, TimeUnit.SECONDS);} catch (InterruptedException e) {e.printStackTrace();}
+			System.out.println(policy.getClass().getName() + ": finished = " + finished + ", max running at once = " + running[1].get());
+			if (!finished || running[1].get() > processors) test_status = "SCHEDULING POLICIES FAILED";
+		}
+		
+		OS os = new OS(new AgingPolicy(8));
+		os.set_number_of_processors(1);
+		AtomicInteger lowDispatched = new AtomicInteger();
+		CountDownLatch highsDone = new CountDownLatch(2);
+		for (int h = 0; h < 2; h++) {
+			int pid = os.reg(0);
+			new Thread(() -> {
+				os.start(pid);
+				while (lowDispatched.get() == 0) os.schedule(pid); //Strict priority would never let the priority 5 process in
+				os.terminate(pid);
+				highsDone.countDown();
+			}).start();
+		}
+		int lowPid = os.reg(5);
+		Thread low = new Thread(() -> {
+			os.start(lowPid);
+			lowDispatched.set(1);
+			os.terminate(lowPid);
+		});
+		low.start();
+		boolean finished = false;
+		try {
+			low.join(10_000);
+			finished = highsDone.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		System.out.println("aging OS: priority 5 process dispatched = " + (lowDispatched.get() == 1) + ", finished = " + finished);
+		if (lowDispatched.get() != 1 || !finished) test_status = "SCHEDULING POLICIES FAILED";
+		System.out.println("\n" + test_status);
+	}
+	
+	//Slots 1 and 2 (priority 0) keep rejoining the line after slot 0 (priority 3) has joined it: return the
+	//number of dispatches until slot 0 is dispatched, or -1 if it isn't within 1000
+	int dispatches_until_low_priority(SchedulingPolicy policy) {
+		policy.ensureCapacity(3);
+		policy.register(0, 3);
+		policy.register(1, 0);
+		policy.register(2, 0);
+		policy.enqueue(1);
+		policy.enqueue(0);
+		policy.enqueue(2);
+		for (int d = 1; d <= 1000; d++) {
+			int slot = policy.poll();
+			if (slot == 0) return d;
+			policy.enqueue(slot);
+		}
+		return -1;
+	}
+	
+	public void cancellable_wait_test() {
+		/*********************
+		 * 
+		 * Timed and cancellable waits (OS.start/schedule with a timeout, and OS.cancel).
+		 * 
+		 * On 1 processor held by p0: p1's start with a 20 ms timeout returns false, p2's is cancelled
+		 * by another thread and p3's is interrupted (returning false with the interrupt still set).
+		 * None of them may be left in line - p4 (lowest priority), started behind them all, must get
+		 * the processor when p0 terminates - and p1 can then start again. A cancel of p5, waiting behind
+		 * p1 in the untimed start, which can only return with a processor, returns false and leaves p5
+		 * waiting until p1 terminates.
+		 * 
+		 * Then 400 threads on 8 processors each make 100 start/schedule calls, holding the processor
+		 * 10 us after each, with random timeouts (0-2 ms, or none) while another thread cancels random
+		 * waits and interrupts random threads every 100 us. A process whose wait fails starts again.
+		 * Every thread must finish, never more than 8 processes may run at once, a snapshot of the OS
+		 * taken every millisecond must never find a processor free while a process waits in line, every
+		 * process whose last wait failed must start again once the cancellations stop, and every
+		 * processor must be free at the end. The dispatch rate is printed beside that of the same run
+		 * without timeouts or cancellations, but not compared: a failed wait is a session without a
+		 * dispatch, and about two waits in three fail, so the rate with them is a third to a half as high.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Cancellable waits *************");
+		String test_status = "CANCELLABLE WAITS PASSED";
+		
+		OS os = new OS();
+		os.set_number_of_processors(1);
+		int p0 = os.reg(0), p1 = os.reg(0), p2 = os.reg(0), p3 = os.reg(0), p4 = os.reg(9), p5 = os.reg(0);
+		os.start(p0);
+		long timeBefore = System.nanoTime();
+		boolean timedOut = !os.start(p1, 20_000_000);
+		long waited = System.nanoTime() - timeBefore;
+		boolean[] results = new boolean[4]; //p2 started, p3 started, p3 still interrupted, p4 started
+		Thread t2 = new Thread(() -> results[0] = os.start(p2, -1));
+		Thread t3 = new Thread(() -> {
+			results[1] = os.start(p3, -1);
+			results[2] = Thread.currentThread().isInterrupted();
+		});
+		Thread t4 = new Thread(() -> results[3] = os.start(p4, -1));
+		t2.start();
+		t3.start();
+		sleep(50);
+		t4.start();
+		sleep(50);
+		boolean cancelled = os.cancel(p2);
+		t3.interrupt();
+		try {
+			t2.join(5000);
+			t3.join(5000);
+			os.terminate(p0);
+			t4.join(5000);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		System.out.println("p1 timed out = " + timedOut + " after " + waited / 1_000_000 + " ms, p2 cancelled = " + cancelled + ", p2 started = " + results[0]
+				+ ", p3 started = " + results[1] + ", p3 interrupted = " + results[2] + ", p4 started = " + results[3]);
+		if (!timedOut || waited < 20_000_000 || !cancelled || results[0] || results[1] || !results[2] || !results[3]) test_status = "CANCELLABLE WAITS FAILED";
+		os.terminate(p4);
+		if (!os.start(p1, 1_000_000_000)) test_status = "CANCELLABLE WAITS FAILED";
+		Thread t5 = new Thread(() -> os.start(p5));
+		t5.start();
+		while (t5.getState() != Thread.State.WAITING && t5.isAlive()) LockSupport.parkNanos(100_000); //Waiting in the OS
+		boolean untimedCancelled = os.cancel(p5);
+		sleep(50);
+		boolean untimedWaiting = t5.isAlive();
+		os.terminate(p1);
+		try {
+			t5.join(5000);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		System.out.println("untimed p5 cancelled = " + untimedCancelled + ", still waiting = " + untimedWaiting + ", started after p1 = " + !t5.isAlive());
+		if (untimedCancelled || !untimedWaiting || t5.isAlive()) test_status = "CANCELLABLE WAITS FAILED";
+		os.terminate(p5);
+		
+		long clean = cancellation_stress(false);
+		long chaotic = cancellation_stress(true);
+		System.out.println("dispatches per second: without cancellations = " + clean + ", with cancellations = " + chaotic);
+		if (clean < 0 || chaotic < 0) test_status = "CANCELLABLE WAITS FAILED";
+		System.out.println("\n" + test_status);
+	}
+	
+	//Run the stress part of cancellable_wait_test and return the successful dispatches per second, or -1 if it failed
+	long cancellation_stress(boolean chaos) {
+		OS os = new OS();
+		os.enableMetrics();
+		int processors = 8;
+		os.set_number_of_processors(processors);
+		int threads = 400;
+		int sessions = 100;
+		AtomicInteger[] running = {new AtomicInteger(), new AtomicInteger()}; //Running now, most at once
+		AtomicInteger dispatches = new AtomicInteger();
+		AtomicInteger notRestarted = new AtomicInteger(); //Processes whose last wait failed that couldn't start again
+		CountDownLatch go = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads); //Sessions over
+		CountDownLatch calm = new CountDownLatch(1); //No more cancellations or interrupts
+		CountDownLatch terminated = new CountDownLatch(threads);
+		int[] pids = new int[threads];
+		Thread[] processThreads = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			int pid = pids[t] = os.reg(t % 4);
+			processThreads[t] = new Thread(() -> {
+				Random random = new Random(pid);
+				while (go.getCount() > 0) {
+					try {go.await();} catch (InterruptedException e) {} //Interrupted by the chaos before the start
+				}
+				boolean dispatched = false;
+				for (int session = 0; session < sessions; session++) {
+					long timeout = !chaos || random.nextInt(4) == 0 ? -1 : random.nextInt(2_000_000);
+					dispatched = dispatched ? os.schedule(pid, timeout) : os.start(pid, timeout);
+					Thread.interrupted(); //Clear any interrupt that ended (or missed) the wait
+					if (dispatched) {
+						dispatches.incrementAndGet();
+						running[1].accumulateAndGet(running[0].incrementAndGet(), Math::max);
+						LockSupport.parkNanos(10_000); //The session
+						running[0].decrementAndGet();
+					}
+				}
+				if (dispatched) os.terminate(pid);
+				done.countDown();
+				if (!dispatched) { //Its last wait failed - start again once the chaos has stopped
+					while (calm.getCount() > 0) {
+						try {calm.await();} catch (InterruptedException e) {} //Interrupted by the chaos before it stopped
+					}
+					Thread.interrupted();
+					if (!os.start(pid, 10_000_000_000L)) notRestarted.incrementAndGet();
+					os.terminate(pid);
+				}
+				terminated.countDown();
+			});
+		}
+		for (Thread thread : processThreads) thread.start();
+		long timeBefore = System.nanoTime();
+		go.countDown();
+		Random random = new Random(1);
+		boolean finished = false;
+		int idle = 0; //Snapshots with a processor free while processes waited in line
+		long elapsed = 0;
+		try {
+			for (int tick = 0; !(finished = done.await(100, TimeUnit.MICROSECONDS)) && System.nanoTime() - timeBefore < 60_000_000_000L; tick++) {
+				if (tick % 10 == 0) { //A snapshot copies the histograms, so take one every millisecond or so
+					SchedulerMetrics.Snapshot sample = os.metricsSnapshot();
+					if (sample.freeProcessors > 0 && Arrays.stream(sample.depths).sum() > 0) idle++;
+				}
+				if (!chaos) continue;
+				int victim = random.nextInt(threads);
+				if (random.nextBoolean()) os.cancel(pids[victim]); else processThreads[victim].interrupt();
+			}
+			elapsed = System.nanoTime() - timeBefore;
+			calm.countDown();
+			finished = finished && terminated.await(60, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		SchedulerMetrics.Snapshot snapshot = os.metricsSnapshot();
+		System.out.println((chaos ? "with" : "without") + " cancellations: finished = " + finished + ", dispatches = " + dispatches.get()
+				+ ", cancellations = " + snapshot.cancellations + ", max running at once = " + running[1].get() + ", processor idle with a line = " + idle
+				+ ", not started again = " + notRestarted.get() + ", free processors at the end = " + snapshot.freeProcessors);
+		if (!finished || running[1].get() > processors || idle > 0 || notRestarted.get() > 0 || snapshot.freeProcessors != processors
+				|| (chaos && snapshot.cancellations == 0)) return -1;
+		return (long) (dispatches.get() * 1e9 / elapsed);
+	}
+	
+	public void gang_scheduling_test() {
+		/*********************
+		 * 
+		 * Gang scheduling (OS.regGang).
+		 * 
+		 * Driven through startAsync/scheduleAsync, on 4 processors with a singleton s0 running:
+		 *   - a gang of 5 is refused
+		 *   - a gang of 3 is not dispatched while only some of its members have started, even with 3
+		 *     processors free, and all 3 are dispatched when the last one starts
+		 *   - once all 3 have scheduled with only 2 processors free, the gang holds the head of the
+		 *     line: s2, started behind it, waits too. When s0 terminates all 3 members are dispatched
+		 *     together, and s2 gets the next processor freed
+		 *   - a member that terminates without starting no longer holds up the rest of its gang, and
+		 *     cancelling a waiting member takes the gang out of line
+		 *   - a gang of 2 waiting at the head of the line when the processors are cut to 1 is set
+		 *     aside: the lower priority singleton behind it gets the processor freed, and a start
+		 *     with a timeout, arriving later, the idle processor. Both members are dispatched
+		 *     together once a second processor is added back
+		 * Then 40 gangs of 2-4 and 40 singletons on 4 processors, each running 5 sessions, with every
+		 * gang member waiting at a barrier for the rest of its gang in each session. Without gang
+		 * scheduling this deadlocks once members of different gangs hold every processor; with it
+		 * every barrier must be passed, and never more than 4 processes run at once.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Gang scheduling *************");
+		String test_status = "GANG SCHEDULING PASSED";
+		
+		OS os = new OS();
+		os.set_number_of_processors(4);
+		int s0 = os.reg(1);
+		os.start(s0);
+		boolean refused = os.regGang(5, 1) == -1;
+		int first = os.regGang(3, 1);
+		DispatchHandle[] members = new DispatchHandle[3];
+		boolean[] early = new boolean[2]; //Dispatched before the gang was complete
+		for (int m = 0; m < 3; m++) {
+			members[m] = os.startAsync(first + m);
+			if (m < 2) early[m] = members[0].isDispatched() || members[m].isDispatched();
+		}
+		boolean together = members[0].isDispatched() && members[1].isDispatched() && members[2].isDispatched();
+		System.out.println("gang of 5 refused = " + refused + ", dispatched before complete = " + (early[0] || early[1]) + ", dispatched together = " + together);
+		if (!refused || early[0] || early[1] || !together) test_status = "GANG SCHEDULING FAILED";
+		
+		members[0] = os.scheduleAsync(first);
+		members[1] = os.scheduleAsync(first + 1);
+		int s1 = os.reg(1);
+		os.start(s1); //Takes one of the two processors the gang has given up
+		members[2] = os.scheduleAsync(first + 2);
+		int s2 = os.reg(1);
+		DispatchHandle s2Handle = os.startAsync(s2);
+		boolean held = !members[0].isDispatched() && !members[2].isDispatched() && !s2Handle.isDispatched(); //2 processors free, gang needs 3
+		os.terminate(s0);
+		together = members[0].isDispatched() && members[1].isDispatched() && members[2].isDispatched();
+		boolean s2Waits = !s2Handle.isDispatched();
+		os.terminate(s1);
+		System.out.println("gang and s2 held with 2 free = " + held + ", gang dispatched together on 3 free = " + together + ", s2 behind it = " + (s2Waits && s2Handle.isDispatched()));
+		if (!held || !together || !s2Waits || !s2Handle.isDispatched()) test_status = "GANG SCHEDULING FAILED";
+		for (int m = 0; m < 3; m++) os.terminate(first + m);
+		os.terminate(s2);
+		
+		int pair = os.regGang(2, 1);
+		DispatchHandle waiting = os.startAsync(pair);
+		boolean waitsForPeer = !waiting.isDispatched();
+		os.terminate(pair + 1);
+		boolean goesAlone = waiting.isDispatched();
+		os.terminate(pair);
+		int[] blockers = new int[4];
+		for (int b = 0; b < 4; b++) {
+			blockers[b] = os.reg(0);
+			os.start(blockers[b]);
+		}
+		pair = os.regGang(2, 1);
+		DispatchHandle cancelled = os.startAsync(pair);
+		DispatchHandle peer = os.startAsync(pair + 1); //The gang is now in line
+		boolean cancelledOk = os.cancel(pair);
+		for (int b = 0; b < 4; b++) os.terminate(blockers[b]);
+		boolean peerHeld = !peer.isDispatched(); //Its gang isn't complete any more
+		System.out.println("member waits for peer = " + waitsForPeer + ", goes alone once peer terminates = " + goesAlone
+				+ ", cancelled = " + (cancelledOk && cancelled.isCancelled()) + ", peer held after cancel = " + peerHeld);
+		if (!waitsForPeer || !goesAlone || !cancelledOk || !cancelled.isCancelled() || !peerHeld) test_status = "GANG SCHEDULING FAILED";
+		os.startAsync(pair);
+		if (!peer.isDispatched()) test_status = "GANG SCHEDULING FAILED";
+		
+		OS cutOs = new OS();
+		cutOs.set_number_of_processors(2);
+		int blocker = cutOs.reg(0);
+		cutOs.start(blocker);
+		pair = cutOs.regGang(2, 1);
+		DispatchHandle[] pairHandles = {cutOs.startAsync(pair), cutOs.startAsync(pair + 1)}; //Holds the head of the line - 1 processor free
+		int behind = cutOs.reg(5);
+		DispatchHandle behindHandle = cutOs.startAsync(behind);
+		cutOs.set_number_of_processors(1);
+		cutOs.terminate(blocker);
+		boolean behindRuns = behindHandle.isDispatched() && !pairHandles[0].isDispatched() && !pairHandles[1].isDispatched();
+		cutOs.terminate(behind);
+		int later = cutOs.reg(5);
+		boolean laterRuns = cutOs.start(later, 200_000_000);
+		cutOs.terminate(later);
+		cutOs.set_number_of_processors(2);
+		boolean pairBack = pairHandles[0].isDispatched() && pairHandles[1].isDispatched();
+		System.out.println("after a cut to 1: singleton behind the gang of 2 dispatched = " + behindRuns + ", later timed start dispatched = " + laterRuns
+				+ ", gang dispatched once 2 processors are back = " + pairBack);
+		if (!behindRuns || !laterRuns || !pairBack) test_status = "GANG SCHEDULING FAILED";
+		
+		if (!gang_stress()) test_status = "GANG SCHEDULING FAILED";
+		System.out.println("\n" + test_status);
+	}
+	
+	//The threaded part of gang_scheduling_test - return whether it passed
+	boolean gang_stress() {
+		OS os = new OS();
+		int processors = 4;
+		os.set_number_of_processors(processors);
+		int sessions = 5;
+		AtomicInteger[] running = {new AtomicInteger(), new AtomicInteger()}; //Running now, most at once
+		AtomicInteger stuck = new AtomicInteger(); //Barrier waits that timed out
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		Random random = new Random(3);
+		for (int j = 0; j < 80; j++) {
+			int size = j % 2 == 0 ? 2 + random.nextInt(3) : 1;
+			int first = size == 1 ? os.reg(random.nextInt(3)) : os.regGang(size, random.nextInt(3));
+			CyclicBarrier barrier = new CyclicBarrier(size);
+			for (int m = 0; m < size; m++) {
+				int pid = first + m;
+				threads.add(new Thread(() -> {
+					for (int session = 0; session < sessions; session++) {
+						if (session == 0) os.start(pid); else os.schedule(pid);
+						running[1].accumulateAndGet(running[0].incrementAndGet(), Math::max);
+						try {
+							barrier.await(5, TimeUnit.SECONDS); //Every member of the gang must be running to get past
+						} catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+							stuck.incrementAndGet();
+						}
+						running[0].decrementAndGet();
+					}
+					os.terminate(pid);
+				}));
+			}
+		}
+		for (Thread thread : threads) thread.start();
+		try {
+			for (Thread thread : threads) thread.join(30_000);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		boolean finished = true;
+		for (Thread thread : threads) finished &= !thread.isAlive();
+		System.out.println("gang stress: processes = " + threads.size() + ", finished = " + finished + ", barrier timeouts = " + stuck.get() + ", max running at once = " + running[1].get());
+		return finished && stuck.get() == 0 && running[1].get() <= processors;
+	}
+	
+	public void renice_test() {
+		/*********************
+		 * 
+		 * Priority changes (OS.setPriority), on 1 processor held by p0 with metrics on:
+		 *   - p1, p2 and p3 wait at priority 5; p3 is raised to 1 and is dispatched first when p0
+		 *     terminates, then p1
+		 *   - waiting p2 is lowered to 7 and running p1 to 9, so at p1's next schedule p2 gets the
+		 *     processor instead of p1
+		 *   - on 2 processors, with a gang of 2 holding the head of the line while only 1 is free, q
+		 *     behind it is raised above the gang and is dispatched straight away
+		 *   - every policy moves a waiting process when it is raised: aging and MLFQ dispatch it next,
+		 *     fair share (where the priority weights run time instead) leaves it in place
+		 * Every ready queue depth in the metrics must be back to 0 at the end.
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Renice *************");
+		String test_status = "RENICE PASSED";
+		
+		OS os = new OS();
+		os.enableMetrics();
+		os.set_number_of_processors(1);
+		int p0 = os.reg(5), p1 = os.reg(5), p2 = os.reg(5), p3 = os.reg(5);
+		os.start(p0);
+		DispatchHandle[] handles = {null, os.startAsync(p1), os.startAsync(p2), os.startAsync(p3)};
+		os.setPriority(p3, 1);
+		List<Integer> order = new ArrayList<Integer>();
+		os.terminate(p0);
+		for (int p = 1; p <= 3; p++) if (handles[p].isDispatched()) order.add(p);
+		os.terminate(p3);
+		for (int p = 1; p <= 2; p++) if (handles[p].isDispatched()) order.add(p);
+		System.out.println("dispatch order after raising p3 = " + order);
+		if (!order.equals(Arrays.asList(3, 1))) test_status = "RENICE FAILED";
+		
+		os.setPriority(p2, 7); //Waiting
+		os.setPriority(p1, 9); //Running
+		DispatchHandle p1Handle = os.scheduleAsync(p1);
+		boolean lowered = handles[2].isDispatched() && !p1Handle.isDispatched();
+		System.out.println("running process lowered gives way at its next schedule = " + lowered);
+		if (!lowered) test_status = "RENICE FAILED";
+		os.terminate(p2);
+		os.terminate(p1);
+		
+		os.set_number_of_processors(2);
+		int blocker = os.reg(0);
+		os.start(blocker);
+		int gang = os.regGang(2, 5);
+		os.startAsync(gang);
+		DispatchHandle gangHandle = os.startAsync(gang + 1); //Needs 2, 1 free - holds the head of the line
+		int q = os.reg(5);
+		DispatchHandle qHandle = os.startAsync(q);
+		boolean heldBehind = !qHandle.isDispatched() && !gangHandle.isDispatched();
+		os.setPriority(q, 1);
+		boolean jumped = qHandle.isDispatched() && !gangHandle.isDispatched();
+		System.out.println("held behind a gang = " + heldBehind + ", dispatched once raised above it = " + jumped);
+		if (!heldBehind || !jumped) test_status = "RENICE FAILED";
+		os.terminate(q);
+		os.terminate(blocker);
+		if (!gangHandle.isDispatched()) test_status = "RENICE FAILED";
+		os.terminate(gang);
+		os.terminate(gang + 1);
+		
+		SchedulingPolicy[] policies = {new StrictPriorityPolicy(), new AgingPolicy(4), new MultilevelFeedbackPolicy(1000, 2, 100), new FairSharePolicy()};
+		for (SchedulingPolicy policy : policies) {
+			policy.ensureCapacity(3);
+			for (int slot = 0; slot < 3; slot++) {
+				policy.register(slot, 5);
+				policy.enqueue(slot);
+			}
+			policy.setPriority(2, 0, true);
+			int next = policy.poll();
+			boolean moved = policy.priorityOf(2) == 0 && next == (policy instanceof FairSharePolicy ? 0 : 2);
+			System.out.println(policy.getClass().getName() + ": next after raising slot 2 = " + next + (moved ? "" : " --- ERROR"));
+			if (!moved) test_status = "RENICE FAILED";
+		}
+		
+		SchedulerMetrics.Snapshot snapshot = os.metricsSnapshot();
+		int depth = 0;
+		for (int d : snapshot.depths) depth += d;
+		System.out.println("renices = " + snapshot.renices + ", total ready queue depth at the end = " + depth);
+		if (depth != 0 || snapshot.renices != 4) test_status = "RENICE FAILED";
+		System.out.println("\n" + test_status);
+	}
+	
+	public void federation_test() {
+		/*********************
+		 * 
+		 * Federation of OS nodes over loopback sockets (FederationNode):
+		 *   - in this JVM, node 0 with 1 processor and two peers with 2 each; 40 processes of 3 1 ms
+		 *     sessions arrive at node 0. Some must migrate, every one the peers took in must be counted
+		 *     by node 0 as migrated, and no node may ever run more processes than it has processors.
+		 *   - two nodes of 1 processor: p1 migrates to node 1 while p0 runs on node 0, then node 1 goes
+		 *     away. p1's schedule must not wait on node 1 for ever - p1 comes home, waits in node 0's
+		 *     line, and gets node 0's processor once p0 terminates.
+		 *   - the same through FederationHarness with 2 node JVMs of 1 processor each
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Federation *************");
+		String test_status = "FEDERATION PASSED";
+		
+		FederationNode[] nodes = new FederationNode[3];
+		try {
+			for (int n = 0; n < nodes.length; n++) nodes[n] = new FederationNode(n == 0 ? 1 : 2);
+			int[] ports = {nodes[0].port(), nodes[1].port(), nodes[2].port()};
+			for (FederationNode node : nodes) node.connect(ports);
+			LockSupport.parkNanos(20_000_000); //Let a few load reports go round
+			long[] elapsed = {-1};
+			Thread workload = new Thread(() -> elapsed[0] = nodes[0].runWorkload(40, 3, 1_000_000));
+			workload.start();
+			workload.join(30_000);
+			int hosted = nodes[1].hosted() + nodes[2].hosted();
+			System.out.println("in one JVM: elapsed = " + elapsed[0] / 1_000_000 + " ms, migrated = " + nodes[0].migrations() + ", hosted = " + nodes[1].hosted() + " + " + nodes[2].hosted()
+					+ ", peak running = " + nodes[0].peakRunning() + " " + nodes[1].peakRunning() + " " + nodes[2].peakRunning());
+			if (elapsed[0] < 0 || nodes[0].migrations() == 0 || hosted != nodes[0].migrations()
+					|| nodes[0].peakRunning() > 1 || nodes[1].peakRunning() > 2 || nodes[2].peakRunning() > 2) test_status = "FEDERATION FAILED";
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+			test_status = "FEDERATION FAILED";
+		} finally {
+			for (FederationNode node : nodes) if (node != null) node.close();
+		}
+		
+		FederationNode[] pair = new FederationNode[2];
+		try {
+			for (int n = 0; n < pair.length; n++) pair[n] = new FederationNode(1);
+			for (FederationNode node : pair) node.connect(pair[0].port(), pair[1].port());
+			LockSupport.parkNanos(20_000_000); //Let a few load reports go round
+			int p0 = pair[0].reg(0), p1 = pair[0].reg(0);
+			pair[0].start(p0);
+			pair[0].start(p1);
+			boolean migrated = pair[0].migrations() == 1;
+			pair[1].close();
+			Thread resume = new Thread(() -> pair[0].schedule(p1));
+			resume.start();
+			sleep(50);
+			boolean waitingAtHome = resume.isAlive();
+			pair[0].terminate(p0);
+			resume.join(10_000);
+			System.out.println("peer lost: p1 migrated = " + migrated + ", waited at home = " + waitingAtHome + ", back on node 0 = " + !resume.isAlive() + ", peak running = " + pair[0].peakRunning());
+			if (!migrated || !waitingAtHome || resume.isAlive() || pair[0].peakRunning() > 1) test_status = "FEDERATION FAILED";
+			pair[0].terminate(p1);
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+			test_status = "FEDERATION FAILED";
+		} finally {
+			for (FederationNode node : pair) if (node != null) node.close();
+		}
+		
+		try (FederationHarness harness = new FederationHarness(2, 1)) {
+			FederationHarness.Result result = harness.run(20, 3, 1000);
+			System.out.println("in 2 JVMs: " + result);
+			if (result.migrations == 0 || result.hosted[1] != result.migrations || result.peakRunning[0] > 1 || result.peakRunning[1] > 1) test_status = "FEDERATION FAILED";
+		} catch (IOException e) {
+			e.printStackTrace();
+			test_status = "FEDERATION FAILED";
+		}
+		System.out.println("\n" + test_status);
+	}
+	
+	public void checkpoint_restore_test() {
+		/*********************
+		 * 
+		 * Checkpoint and restore (OS.checkpoint, OS.restore, see Checkpoint), on 2 processors:
+		 *   - p0 and p1 run, p2-p5 of priorities 2, 2, 3 and 1 wait (startAsync), a gang of 2 at
+		 *     priority 0 waits at the head of the line, and p8 is only registered
+		 *   - the OS is checkpointed to a file and restored; terminating the running processes in the
+		 *     same order on both must dispatch the same processes in the same order, and the next pid
+		 *     registered must be the same
+		 *   - a thread resuming waiting p4 on the restored OS with start gets its processor in turn
+		 *   - a checkpoint with a damaged byte or cut short must not restore, nor a header alone that
+		 *     claims 400 million processes (without first allocating room for them)
+		 *   - nor may whole checkpoints that are inconsistent: a pid twice, a gang in line for an unknown
+		 *     pid, or a gang of 2 in line on 1 processor. The same gang set aside (not in line) restores
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Checkpoint and restore *************");
+		String test_status = "CHECKPOINT RESTORE PASSED";
+		try {
+			Path file = Files.createTempFile("os-checkpoint", ".bin");
+			OS os = new OS();
+			os.set_number_of_processors(2);
+			int[] priorities = {1, 3, 2, 2, 3, 1};
+			int[] pids = new int[priorities.length];
+			for (int i = 0; i < pids.length; i++) pids[i] = os.reg(priorities[i]);
+			int gang = os.regGang(2, 0);
+			os.reg(0);
+			os.start(pids[0]);
+			os.start(pids[1]);
+			for (int i = 2; i < pids.length; i++) os.startAsync(pids[i]);
+			os.startAsync(gang);
+			os.startAsync(gang + 1);
+			
+			Checkpoint checkpoint = os.checkpoint();
+			boolean written = checkpoint.write(file.toString());
+			System.out.println("processes = " + checkpoint.processes + ", line = " + checkpoint.lineLength() + ", gangs = " + checkpoint.gangCount() + ", file = " + Files.size(file) + " bytes");
+			OS restored = OS.restore(file.toString());
+			if (!written || restored == null || checkpoint.processes != 9 || checkpoint.lineLength() != 5 || Files.size(file) != checkpoint.fileSize()) {
+				test_status = "CHECKPOINT RESTORE FAILED";
+			} else {
+				boolean[] resumed = {false};
+				Thread resume = new Thread(() -> resumed[0] = restored.start(pids[4], 10_000_000_000L));
+				resume.start();
+				while (resume.getState() != Thread.State.TIMED_WAITING && resume.isAlive()) LockSupport.parkNanos(100_000); //Waiting in the OS
+				int[][] terminations = {{pids[0], pids[1]}, {gang, gang + 1}, {pids[5], pids[2]}};
+				List<Integer> original = dispatches_after(os, terminations);
+				List<Integer> fromCheckpoint = dispatches_after(restored, terminations);
+				resume.join(10_000);
+				int nextPid = os.reg(1), nextRestoredPid = restored.reg(1);
+				System.out.println("dispatch order: original = " + original + ", restored = " + fromCheckpoint + ", next pids = " + nextPid + " " + nextRestoredPid + ", resumed p4 = " + resumed[0]);
+				if (!original.equals(fromCheckpoint) || original.size() != 6 || nextPid != nextRestoredPid || !resumed[0]) test_status = "CHECKPOINT RESTORE FAILED";
+			}
+			
+			byte[] bytes = Files.readAllBytes(file);
+			bytes[bytes.length / 2] ^= 1;
+			Files.write(file, bytes);
+			boolean damagedRestored = OS.restore(file.toString()) != null;
+			Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+			boolean truncatedRestored = OS.restore(file.toString()) != null;
+			byte[] header = Arrays.copyOf(bytes, Checkpoint.HEADER_SIZE);
+			ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).putInt(24, 400_000_000); //Processes
+			Files.write(file, header);
+			boolean hugeRestored = OS.restore(file.toString()) != null;
+			System.out.println("restored with a damaged byte = " + damagedRestored + ", restored when cut short = " + truncatedRestored
+					+ ", restored from a header claiming 400 million processes = " + hugeRestored);
+			if (damagedRestored || truncatedRestored || hugeRestored) test_status = "CHECKPOINT RESTORE FAILED";
+			
+			Checkpoint twice = new Checkpoint(1, 1, 1, 2, 0); //pids 0 and 0, both registered
+			Arrays.fill(twice.gangs, Checkpoint.NONE);
+			Checkpoint unknownEntry = gang_checkpoint(2, 7, false); //In line for pid 7
+			Checkpoint tooBig = gang_checkpoint(1, 1, true);
+			Checkpoint setAside = gang_checkpoint(1, Checkpoint.NONE, false);
+			boolean[] rejected = new boolean[3];
+			Checkpoint[] invalid = {twice, unknownEntry, tooBig};
+			for (int i = 0; i < invalid.length; i++) {
+				invalid[i].write(file.toString());
+				try {
+					Checkpoint.read(file.toString());
+				} catch (IOException e) {
+					System.out.println(e.getMessage());
+					rejected[i] = true;
+				}
+			}
+			setAside.write(file.toString());
+			boolean setAsideRestored = OS.restore(file.toString()) != null;
+			System.out.println("rejected: pid twice = " + rejected[0] + ", gang in line for an unknown pid = " + rejected[1] + ", gang of 2 in line on 1 processor = " + rejected[2]
+					+ ", gang of 2 set aside on 1 processor restored = " + setAsideRestored);
+			if (!rejected[0] || !rejected[1] || !rejected[2] || !setAsideRestored) test_status = "CHECKPOINT RESTORE FAILED";
+			Files.deleteIfExists(file);
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+			test_status = "CHECKPOINT RESTORE FAILED";
+		}
+		System.out.println("\n" + test_status);
+	}
+	
+	//A checkpoint of a gang of 2 (pids 0 and 1), both waiting, on the given processors (all free), in line
+	//for the given pid, or set aside
+	Checkpoint gang_checkpoint(int processors, int entryPid, boolean inLine) {
+		Checkpoint checkpoint = new Checkpoint(1, processors, processors, 2, 1);
+		checkpoint.addGang(0, 2, 2, 2, entryPid);
+		for (int p = 0; p < 2; p++) {
+			checkpoint.pids[p] = p;
+			checkpoint.gangs[p] = 0;
+			checkpoint.states[p] = Checkpoint.READY;
+		}
+		if (inLine) checkpoint.line[checkpoint.lineLength++] = 1;
+		return checkpoint;
+	}
+	
+	//Terminate the given processes, a group at a time, and return the pids the OS dispatched as it did
+	List<Integer> dispatches_after(OS os, int[][] terminations) {
+		ArrayList<Integer> dispatched = new ArrayList<Integer>();
+		os.setListener(new SchedulerListener() {
+			public void dispatched(int pid) {
+				dispatched.add(pid);
+			}
+			
+			public void waiting(int pid) {
+			}
+		});
+		for (int[] group : terminations) {
+			for (int pid : group) os.terminate(pid);
+		}
+		os.setListener(null);
+		return dispatched;
+	}
+	
+	public void admission_control_test() {
+		/*********************
+		 * 
+		 * Admission control (OS.setAdmissionControl, OS.startStatus, see AdmissionControl), on 1 processor:
+		 *   - FAIL_FAST, line limit 3, priority 1 limit 1: a second waiting priority 1 start is rejected
+		 *     while the line has room, a start is rejected once the line is full, and the rejected
+		 *     processes stay registered
+		 *   - SHED_LOWEST, line limit 2: a priority 1 start sheds the waiting priority 3 process, whose
+		 *     startStatus returns SHED, and a priority 5 start is rejected
+		 *   - BLOCK, line limit 1: a start waits out of line until the process ahead of it is dispatched,
+		 *     then joins the line and gets its processor; a timed start waiting for room gives up
+		 *   - gangs take up one place in line under BLOCK: a gang of 3 is dispatched under a line limit of
+		 *     2 (on 4 processors), and a gang of 2 whose members both wait for room joins the line as a
+		 *     whole once there is room for one (on 2 processors, line limit 1)
+		 *   - an untimed start(pid) that finds the line full waits for room under FAIL_FAST rather than
+		 *     being rejected, and a process shed under SHED_LOWEST while waiting in an untimed start goes
+		 *     back to waiting for room, getting its processor after the higher priority start that shed it
+		 *   - SHED_LOWEST with a gang last in line (on 2 processors, line limit 2): a priority 1 start
+		 *     sheds the priority 3 process ahead of the gang, and the gang is dispatched in its turn
+		 *   - every line is empty again once the processes have terminated
+		 * 
+		 ***********************/
+		
+		System.out.println("\n\n\n*********** Admission control *************");
+		String test_status = "ADMISSION CONTROL PASSED";
+		try {
+			OS os = new OS();
+			os.set_number_of_processors(1);
+			os.setAdmissionControl(new AdmissionControl(AdmissionControl.FAIL_FAST, 3).setPriorityLimit(1, 1));
+			int p0 = os.reg(0), p1 = os.reg(2), p2 = os.reg(1), p3 = os.reg(1), p4 = os.reg(0), p5 = os.reg(0);
+			os.start(p0);
+			DispatchHandle h1 = os.startAsync(p1), h2 = os.startAsync(p2), h3 = os.startAsync(p3), h4 = os.startAsync(p4);
+			int fullStatus = os.startStatus(p5, 1_000_000_000L);
+			AdmissionControl.Stats full = os.admissionStats();
+			System.out.print(full);
+			System.out.println("p3 rejected = " + h3.isCancelled() + ", p5 = " + fullStatus);
+			if (h1.isCancelled() || h2.isCancelled() || !h3.isCancelled() || h4.isCancelled() || fullStatus != AdmissionControl.REJECTED
+					|| full.depth != 3 || full.rejected != 2 || full.rejections[Arrays.binarySearch(full.priorities, 1)] != 1) test_status = "ADMISSION CONTROL FAILED";
+			for (int pid : new int[] {p0, p4, p2, p1}) os.terminate(pid);
+			if (!h1.isDispatched() || !h2.isDispatched() || !h4.isDispatched() || os.startStatus(p3, -1) != AdmissionControl.DISPATCHED) test_status = "ADMISSION CONTROL FAILED";
+			os.terminate(p3);
+			os.terminate(p5);
+			if (os.admissionStats().depth != 0) test_status = "ADMISSION CONTROL FAILED";
+			
+			OS shedding = new OS();
+			shedding.set_number_of_processors(1);
+			shedding.setAdmissionControl(new AdmissionControl(AdmissionControl.SHED_LOWEST, 2));
+			int q0 = shedding.reg(0), q1 = shedding.reg(3), q2 = shedding.reg(2), q3 = shedding.reg(1), q4 = shedding.reg(5);
+			shedding.start(q0);
+			int[] shedStatus = {-1};
+			Thread waiter = new Thread(() -> shedStatus[0] = shedding.startStatus(q1, 10_000_000_000L));
+			waiter.start();
+			while (waiter.getState() != Thread.State.TIMED_WAITING && waiter.isAlive()) LockSupport.parkNanos(100_000); //Waiting in the OS
+			DispatchHandle g2 = shedding.startAsync(q2), g3 = shedding.startAsync(q3), g4 = shedding.startAsync(q4);
+			waiter.join(10_000);
+			AdmissionControl.Stats shed = shedding.admissionStats();
+			System.out.print(shed);
+			System.out.println("p1 = " + shedStatus[0] + ", p4 rejected = " + g4.isCancelled());
+			if (shedStatus[0] != AdmissionControl.SHED || g2.isCancelled() || g3.isCancelled() || !g4.isCancelled() || shed.shed != 1 || shed.rejected != 1 || shed.depth != 2) test_status = "ADMISSION CONTROL FAILED";
+			for (int pid : new int[] {q0, q3, q2, q1, q4}) shedding.terminate(pid);
+			if (!g2.isDispatched() || !g3.isDispatched() || shedding.admissionStats().depth != 0) test_status = "ADMISSION CONTROL FAILED";
+			
+			OS blocking = new OS();
+			blocking.set_number_of_processors(1);
+			blocking.setAdmissionControl(new AdmissionControl(AdmissionControl.BLOCK, 1));
+			int r0 = blocking.reg(0), r1 = blocking.reg(0), r2 = blocking.reg(0), r3 = blocking.reg(0);
+			blocking.start(r0);
+			DispatchHandle b1 = blocking.startAsync(r1), b2 = blocking.startAsync(r2);
+			int timedStatus = blocking.startStatus(r3, 1_000_000L);
+			AdmissionControl.Stats blocked = blocking.admissionStats();
+			System.out.print(blocked);
+			System.out.println("p3 = " + timedStatus);
+			if (b2.isDispatched() || b2.isCancelled() || timedStatus != AdmissionControl.WITHDRAWN || blocked.blocked != 1 || blocked.blockedStarts != 2 || blocked.depth != 1) test_status = "ADMISSION CONTROL FAILED";
+			blocking.terminate(r0);
+			AdmissionControl.Stats admitted = blocking.admissionStats();
+			if (!b1.isDispatched() || b2.isDispatched() || admitted.blocked != 0 || admitted.depth != 1) test_status = "ADMISSION CONTROL FAILED";
+			blocking.terminate(r1);
+			if (!b2.isDispatched() || blocking.admissionStats().depth != 0) test_status = "ADMISSION CONTROL FAILED";
+			blocking.terminate(r2);
+			blocking.terminate(r3);
+			
+			OS gangs = new OS();
+			gangs.set_number_of_processors(4);
+			gangs.setAdmissionControl(new AdmissionControl(AdmissionControl.BLOCK, 2));
+			int g = gangs.regGang(3, 0);
+			DispatchHandle[] members = {gangs.startAsync(g), gangs.startAsync(g + 1), gangs.startAsync(g + 2)};
+			AdmissionControl.Stats bigGang = gangs.admissionStats();
+			for (DispatchHandle member : members) {
+				if (!member.isDispatched()) test_status = "ADMISSION CONTROL FAILED";
+			}
+			if (bigGang.blockedStarts != 0 || bigGang.depth != 0) test_status = "ADMISSION CONTROL FAILED";
+			for (int i = 0; i < 3; i++) gangs.terminate(g + i);
+			gangs.set_number_of_processors(2);
+			gangs.setAdmissionControl(new AdmissionControl(AdmissionControl.BLOCK, 1));
+			int s0 = gangs.reg(0), s1 = gangs.reg(0), s2 = gangs.reg(0), pair = gangs.regGang(2, 0);
+			gangs.start(s0);
+			gangs.start(s1);
+			DispatchHandle single = gangs.startAsync(s2), first = gangs.startAsync(pair), second = gangs.startAsync(pair + 1);
+			AdmissionControl.Stats gangBlocked = gangs.admissionStats();
+			gangs.terminate(s0); //s2 is dispatched, making room for the gang
+			AdmissionControl.Stats gangIn = gangs.admissionStats();
+			System.out.println("gang blocked = " + gangBlocked.blocked + ", in line = " + gangIn.depth);
+			if (gangBlocked.blocked != 2 || !single.isDispatched() || gangIn.blocked != 0 || gangIn.depth != 1 || first.isDispatched()) test_status = "ADMISSION CONTROL FAILED";
+			gangs.terminate(s1);
+			gangs.terminate(s2); //Both processors free
+			if (!first.isDispatched() || !second.isDispatched() || gangs.admissionStats().depth != 0) test_status = "ADMISSION CONTROL FAILED";
+			for (int pid : new int[] {pair, pair + 1}) gangs.terminate(pid);
+			
+			OS failing = new OS();
+			failing.set_number_of_processors(1);
+			failing.setAdmissionControl(new AdmissionControl(AdmissionControl.FAIL_FAST, 1));
+			int t0 = failing.reg(0), t1 = failing.reg(0), t2 = failing.reg(0);
+			failing.start(t0);
+			DispatchHandle waiting = failing.startAsync(t1);
+			Thread untimed = new Thread(() -> failing.start(t2));
+			untimed.start();
+			while (untimed.getState() != Thread.State.WAITING && untimed.isAlive()) LockSupport.parkNanos(100_000); //Waiting in the OS
+			AdmissionControl.Stats untimedFull = failing.admissionStats();
+			System.out.println("untimed start waiting = " + untimed.isAlive() + ", rejected = " + untimedFull.rejected);
+			if (!untimed.isAlive() || untimedFull.rejected != 0 || untimedFull.blocked != 1) test_status = "ADMISSION CONTROL FAILED";
+			failing.terminate(t0);
+			failing.terminate(t1);
+			untimed.join(10_000);
+			if (!waiting.isDispatched() || untimed.isAlive() || failing.admissionStats().depth != 0) test_status = "ADMISSION CONTROL FAILED";
+			failing.terminate(t2);
+			
+			OS keeping = new OS();
+			keeping.set_number_of_processors(1);
+			keeping.setAdmissionControl(new AdmissionControl(AdmissionControl.SHED_LOWEST, 1));
+			int u0 = keeping.reg(0), u1 = keeping.reg(3), u2 = keeping.reg(1);
+			keeping.start(u0);
+			Thread low = new Thread(() -> keeping.start(u1));
+			low.start();
+			while (low.getState() != Thread.State.WAITING && low.isAlive()) LockSupport.parkNanos(100_000); //Waiting in the OS
+			DispatchHandle high = keeping.startAsync(u2);
+			sleep(50);
+			AdmissionControl.Stats kept = keeping.admissionStats();
+			System.out.println("p2 rejected = " + high.isCancelled() + ", shed = " + kept.shed + ", p1 waiting for room = " + (low.isAlive() && kept.blocked == 1));
+			if (high.isCancelled() || kept.shed != 1 || kept.depth != 1 || kept.blocked != 1 || !low.isAlive()) test_status = "ADMISSION CONTROL FAILED";
+			keeping.terminate(u0);
+			if (!high.isDispatched() || !low.isAlive() || keeping.admissionStats().depth != 1) test_status = "ADMISSION CONTROL FAILED";
+			keeping.terminate(u2);
+			low.join(10_000);
+			if (low.isAlive()) test_status = "ADMISSION CONTROL FAILED";
+			keeping.terminate(u1);
+			
+			OS behindGang = new OS();
+			behindGang.set_number_of_processors(2);
+			behindGang.setAdmissionControl(new AdmissionControl(AdmissionControl.SHED_LOWEST, 2));
+			int v0 = behindGang.reg(0), v1 = behindGang.reg(0), v2 = behindGang.reg(3), v3 = behindGang.reg(1), lowGang = behindGang.regGang(2, 5);
+			behindGang.start(v0);
+			behindGang.start(v1);
+			DispatchHandle middle = behindGang.startAsync(v2), gangFirst = behindGang.startAsync(lowGang), gangSecond = behindGang.startAsync(lowGang + 1);
+			DispatchHandle urgent = behindGang.startAsync(v3);
+			System.out.println("with a gang last: p2 shed = " + middle.isCancelled() + ", gang shed = " + (gangFirst.isCancelled() || gangSecond.isCancelled()) + ", p3 rejected = " + urgent.isCancelled());
+			if (!middle.isCancelled() || gangFirst.isCancelled() || gangSecond.isCancelled() || urgent.isCancelled()) test_status = "ADMISSION CONTROL FAILED";
+			behindGang.terminate(v0);
+			behindGang.terminate(v1);
+			behindGang.terminate(v3);
+			if (!urgent.isDispatched() || !gangFirst.isDispatched() || !gangSecond.isDispatched() || behindGang.admissionStats().depth != 0) test_status = "ADMISSION CONTROL FAILED";
+			behindGang.terminate(lowGang);
+			behindGang.terminate(lowGang + 1);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			test_status = "ADMISSION CONTROL FAILED";
+		}
+		System.out.println("\n" + test_status);
+	}
+}
@@ -0,0 +1,142 @@
+// Decoder for the binary trace files written by the OS (see TraceRing) - run with
+//   java TraceDecoder trace-file [records|timeline]
+//
+// 'records' lists every record still in the ring, oldest first. 'timeline' (the default) lays
+// the dispatches out per processor: the OS only counts processors, so each dispatch is given
+// the lowest numbered processor not in use, and the processor is freed again when its process
+// schedules or terminates. If the ring has wrapped, processes that were already running when
+// the oldest remaining record was written don't appear in the timeline until their next dispatch.
+
+//Note that you may use *any* classes in this TraceDecoder class that are available in SE 17.
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+public class TraceDecoder {
+
+	static final String[] TYPE_NAMES = {"REG", "ENQUEUE", "DISPATCH", "SCHEDULE", "TERMINATE", "PROCESSORS", "CANCEL", "RENICE", "REJECT"};
+
+	public static class Record {
+		public final long sequence;
+		public final long time; //System.nanoTime when the event happened
+		public final int pid;
+		public final int priority;
+		public final int freeProcessors;
+		public final int type;
+
+		Record(ByteBuffer buffer, int at) {
+			sequence = buffer.getLong(at);
+			time = buffer.getLong(at + 8);
+			pid = buffer.getInt(at + 16);
+			priority = buffer.getInt(at + 20);
+			freeProcessors = buffer.getInt(at + 24);
+			type = buffer.getInt(at + 28);
+		}
+
+		public String typeName() {
+			return type >= 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "UNKNOWN(" + type + ")";
+		}
+
+		@Override
+		public String toString() {
+			return "#" + sequence + " " + typeName() + " pid=" + pid + " priority=" + priority + " free=" + freeProcessors;
+		}
+	}
+
+	//One stretch of a process holding a processor
+	public static class Slice {
+		public final int processor;
+		public final int pid;
+		public final long from, to; //Nanoseconds since the first record; 'to' is -1 if it was still running at the end of the trace
+
+		Slice(int processor, int pid, long from, long to) {
+			this.processor = processor;
+			this.pid = pid;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("usage: java TraceDecoder trace-file [records|timeline]");
+			return;
+		}
+		List<Record> records = read(Paths.get(args[0]));
+		if (args.length > 1 && args[1].equals("records")) {
+			for (Record record : records) System.out.println(record);
+		} else {
+			printTimeline(timeline(records));
+		}
+	}
+
+	//Read the records still in the ring, oldest first
+	public static List<Record> read(Path path) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+		byte[] magic = new byte[8];
+		buffer.get(0, magic);
+		if (!Arrays.equals(magic, TraceRing.magicBytes())) throw new IOException(path + " is not an OS trace file");
+		int recordSize = buffer.getInt(12);
+		long capacity = buffer.getLong(16);
+		long written = buffer.getLong(24);
+		ArrayList<Record> records = new ArrayList<Record>();
+		for (long sequence = Math.max(0, written - capacity); sequence < written; sequence++) {
+			Record record = new Record(buffer, TraceRing.HEADER_SIZE + (int) (sequence % capacity) * recordSize);
+			if (record.sequence == sequence) records.add(record); //Skip a slot the writer hadn't finished when the file was copied
+		}
+		return records;
+	}
+
+	public static List<Slice> timeline(List<Record> records) {
+		ArrayList<Slice> slices = new ArrayList<Slice>();
+		if (records.isEmpty()) return slices;
+		long origin = records.get(0).time;
+		ArrayList<Integer> runningPid = new ArrayList<Integer>(); //By processor, -1 if free
+		ArrayList<Long> runningSince = new ArrayList<Long>();
+		HashMap<Integer, Integer> processorOf = new HashMap<Integer, Integer>();
+		for (Record record : records) {
+			long at = record.time - origin;
+			if (record.type == TraceRing.DISPATCH) {
+				int processor = runningPid.indexOf(-1);
+				if (processor == -1) {
+					processor = runningPid.size();
+					runningPid.add(-1);
+					runningSince.add(0L);
+				}
+				runningPid.set(processor, record.pid);
+				runningSince.set(processor, at);
+				processorOf.put(record.pid, processor);
+			} else if (record.type == TraceRing.SCHEDULE || record.type == TraceRing.TERMINATE) {
+				Integer processor = processorOf.remove(record.pid);
+				if (processor == null) continue; //Running since before the oldest record, or terminated without running
+				slices.add(new Slice(processor, record.pid, runningSince.get(processor), at));
+				runningPid.set(processor, -1);
+			}
+		}
+		for (int processor = 0; processor < runningPid.size(); processor++) {
+			if (runningPid.get(processor) != -1) slices.add(new Slice(processor, runningPid.get(processor), runningSince.get(processor), -1));
+		}
+		return slices;
+	}
+
+	static void printTimeline(List<Slice> slices) {
+		int processors = 0;
+		for (Slice slice : slices) processors = Math.max(processors, slice.processor + 1);
+		for (int processor = 0; processor < processors; processor++) {
+			StringBuilder line = new StringBuilder("processor " + processor + ":");
+			for (Slice slice : slices) {
+				if (slice.processor != processor) continue;
+				line.append(String.format(" pid %d [%.3f - %s us]", slice.pid, slice.from / 1e3, slice.to < 0 ? "end" : String.format("%.3f", slice.to / 1e3)));
+			}
+			System.out.println(line);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A ring of fixed-width binary trace records in a memory-mapped file.
+//
+// This class is NOT thread safe - all writes must be guarded by the OS lock. Every traced
+// event happens under that lock anyway, so one ring written in place needs no per-thread
+// buffers or merging, and the records are in the order the OS made the transitions.
+//
+// Writing a record is a handful of stores into the mapped page cache - no system call, no
+// allocation - and the records survive a crash of the JVM (though not of the machine) since
+// the pages belong to the file. Once the ring is full the oldest records are overwritten.
+//
+// File layout (little-endian):
+//   header, 32 bytes:  magic "OSTRACE1" | int version | int record size | long capacity (records) | long records written
+//   record i at 32 + (i % capacity) * 32:
+//                      long sequence (i) | long nanoTime | int pid | int priority | int free processors | int event type
+// The decoder is TraceDecoder.
+
+public class TraceRing {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 32;
+
+    // Event types
+    public static final int REG = 0;
+    public static final int ENQUEUE = 1; // Joined a ready queue (from start or schedule)
+    public static final int DISPATCH = 2; // Handed a processor
+    public static final int SCHEDULE = 3; // Gave up its processor in schedule
+    public static final int TERMINATE = 4; // Terminated, giving up its processor if it had one
+    public static final int PROCESSORS = 5; // set_number_of_processors, or the trace starting - the free processors field is the number free
+    public static final int CANCEL = 6; // Taken out of line without a processor - its wait timed out, was interrupted or was cancelled
+    public static final int RENICE = 7; // Priority changed by setPriority - the priority field is the new priority
+    public static final int REJECT = 8; // A start turned away by admission control - the line was full
+
+    private final MappedByteBuffer buffer;
+    private final long capacity;
+    private long written = 0;
+
+    private TraceRing(MappedByteBuffer buffer, long capacity) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    // Create (or truncate) a trace file holding the given number of records, or return null if it can't be mapped
+    public static TraceRing create(Path path, int capacity) {
+        if (capacity <= 0 || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE) return null; // A single mapping is limited to 2 GB
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(0, magicBytes());
+            buffer.putInt(8, VERSION);
+            buffer.putInt(12, RECORD_SIZE);
+            buffer.putLong(16, capacity);
+            buffer.putLong(24, 0);
+            return new TraceRing(buffer, capacity); // The mapping stays valid after the channel is closed
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static byte[] magicBytes() {
+        return new byte[] {'O', 'S', 'T', 'R', 'A', 'C', 'E', '1'};
+    }
+
+    public void record(int type, int pid, int priority, int freeProcessors) {
+        long sequence = written++;
+        int at = HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+        buffer.putLong(at, sequence);
+        buffer.putLong(at + 8, System.nanoTime());
+        buffer.putInt(at + 16, pid);
+        buffer.putInt(at + 20, priority);
+        buffer.putInt(at + 24, freeProcessors);
+        buffer.putInt(at + 28, type);
+        buffer.putLong(24, written); // Publish the count last, so the decoder never reads a record that isn't complete
+    }
+
+    public long written() {
+        return written;
+    }
+
+    // Write the mapped pages back to the file
+    public void flush() {
+        buffer.force();
+    }
+}
@@ -0,0 +1,250 @@
+// Deterministic simulation of process scenarios against the OS on a virtual clock.
+//
+// A scenario lists processes, each with an arrival time, a priority and the length of each of
+// its sessions (the time it holds a processor between OS calls). Each process still has its
+// own thread making the real start/schedule/terminate calls on the OS, but the driver passes
+// a baton: it tells one thread to make its next call, then waits until every thread involved
+// has settled - returned from its call, or parked in the OS waiting for a processor - before
+// advancing the clock to the next call due. Session lengths and arrival delays are virtual
+// time, so no thread ever sleeps and a scenario runs as fast as the threads can hand over.
+//
+// The OS reports, under its lock, each process it hands a processor and each thread about to
+// wait (see SchedulerListener). That tells the driver which waiting threads it has to wait
+// for, and gives the order processes were dispatched in, so the event list of a run depends
+// only on the scenario and never on how the threads happen to be scheduled.
+//
+// expectedEvents runs the same scenario against a single-threaded model of the required
+// scheduling (strict priority, FIFO within a priority, non-pre-emptive), so randomly generated
+// scenarios can be checked against it by the thousand - see Tests.virtual_clock_test.
+
+//Note that you may use *any* classes in this VirtualClockSimulation class that are available in SE 17.
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class VirtualClockSimulation implements SchedulerListener {
+
+	static final int START = 0, SCHEDULE = 1, TERMINATE = 2, STOP = 3; //Calls a process thread can be told to make
+
+	//One simulated process
+	public static class Process {
+		final int arrival;
+		final int priority;
+		final int[] sessions; //Length of each session; the process terminates after the last
+
+		public Process(int arrival, int priority, int... sessions) {
+			this.arrival = arrival;
+			this.priority = priority;
+			this.sessions = sessions;
+		}
+	}
+
+	//Generate a random scenario: 2-8 processes, priorities 0-2, arrivals 0-100, 1-4 sessions of 0-50
+	public static Process[] randomScenario(long seed) {
+		Random random = new Random(seed);
+		Process[] processes = new Process[2 + random.nextInt(7)];
+		for (int p = 0; p < processes.length; p++) {
+			int[] sessions = new int[1 + random.nextInt(4)];
+			for (int s = 0; s < sessions.length; s++) sessions[s] = random.nextInt(51);
+			processes[p] = new Process(random.nextInt(101), random.nextInt(3), sessions);
+		}
+		return processes;
+	}
+
+	final int processors;
+	final Process[] processes;
+
+	//Driver state - guarded by baton
+	final ReentrantLock baton = new ReentrantLock();
+	final Condition settled = baton.newCondition();
+	Condition[] commandReady;
+	int[] commands;
+	boolean[] waitingInOS;
+	int inFlight; //Threads that have been told to make a call, or handed a processor, and have not yet settled
+	final ArrayList<Integer> handed = new ArrayList<Integer>(); //Processes handed a processor since the last step, in order
+
+	public VirtualClockSimulation(int processors, Process... processes) {
+		this.processors = processors;
+		this.processes = processes;
+	}
+
+	//Run the scenario on a fresh OS and return its events, or null if the run stalled
+	public List<String> run() {
+		OS os = new OS();
+		int n = processes.length;
+		commandReady = new Condition[n];
+		commands = new int[n];
+		waitingInOS = new boolean[n];
+		inFlight = 0;
+		handed.clear();
+
+		os.set_number_of_processors(processors);
+		os.setListener(this);
+		int[] pids = new int[n];
+		for (int p = 0; p < n; p++) {
+			pids[p] = os.reg(processes[p].priority); //Registered up front, like the UR tests, so pid p is process p on a fresh OS
+			commandReady[p] = baton.newCondition();
+			commands[p] = -1;
+			int index = p;
+			Thread thread = new Thread(() -> processThread(os, index, pids[index]));
+			thread.setDaemon(true); //A stalled run leaves its threads parked in the OS
+			thread.start();
+		}
+		List<String> events = simulate((p, call) -> command(p, call));
+		os.setListener(null);
+		for (int p = 0; p < n; p++) command(p, STOP);
+		return events;
+	}
+
+	//The events the scenario must produce, from a single-threaded model of the scheduling rules
+	public List<String> expectedEvents() {
+		Model model = new Model();
+		return simulate(model::call);
+	}
+
+	interface Step {
+		boolean call(int process, int call); //Make the call and return false if the run stalled
+	}
+
+	//The event loop shared by run and expectedEvents: make each call when it is due, then start the
+	//session of every process handed a processor by it, in the order they were handed one
+	List<String> simulate(Step step) {
+		ArrayList<String> events = new ArrayList<String>();
+		int[] nextSession = new int[processes.length];
+		PriorityQueue<long[]> due = new PriorityQueue<long[]>((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1])); //{time, sequence, process, call}
+		long sequence = 0;
+		for (int p = 0; p < processes.length; p++) due.add(new long[] {processes[p].arrival, sequence++, p, START});
+		while (!due.isEmpty()) {
+			long[] next = due.poll();
+			long now = next[0];
+			if (!step.call((int) next[2], (int) next[3])) return null;
+			for (int p : takeHanded()) {
+				int session = nextSession[p]++;
+				events.add("t=" + now + ": pid=" + p + ", session=" + session);
+				int call = session + 1 < processes[p].sessions.length ? SCHEDULE : TERMINATE;
+				due.add(new long[] {now + processes[p].sessions[session], sequence++, p, call});
+			}
+		}
+		return events;
+	}
+
+	ArrayList<Integer> takeHanded() {
+		baton.lock();
+		try {
+			ArrayList<Integer> taken = new ArrayList<Integer>(handed);
+			handed.clear();
+			return taken;
+		} finally {
+			baton.unlock();
+		}
+	}
+
+	//Pass the baton to a process thread and wait until every thread has settled
+	boolean command(int p, int call) {
+		baton.lock();
+		try {
+			commands[p] = call;
+			if (call == STOP) {
+				commandReady[p].signal();
+				return true;
+			}
+			inFlight++;
+			commandReady[p].signal();
+			while (inFlight > 0) {
+				//Every thread settles within microseconds; only a broken OS leaves one running or lost
+				if (!settled.await(10, TimeUnit.SECONDS)) return false;
+			}
+			return true;
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			baton.unlock();
+		}
+	}
+
+	void processThread(OS os, int p, int pid) {
+		while (true) {
+			int call;
+			baton.lock();
+			try {
+				while (commands[p] == -1) commandReady[p].awaitUninterruptibly();
+				call = commands[p];
+				commands[p] = -1;
+			} finally {
+				baton.unlock();
+			}
+			if (call == STOP) return;
+			if (call == START) os.start(pid);
+			else if (call == SCHEDULE) os.schedule(pid);
+			else os.terminate(pid);
+			baton.lock();
+			try {
+				if (call != TERMINATE && !handed.contains(p)) handed.add(p); //Took a free processor without waiting
+				inFlight--;
+				settled.signal();
+			} finally {
+				baton.unlock();
+			}
+			if (call == TERMINATE) return;
+		}
+	}
+
+	@Override
+	public void dispatched(int pid) {
+		baton.lock();
+		try {
+			handed.add(pid);
+			if (waitingInOS[pid]) { //Its thread will now return from the OS, so the step isn't over until it has
+				waitingInOS[pid] = false;
+				inFlight++;
+			}
+		} finally {
+			baton.unlock();
+		}
+	}
+
+	@Override
+	public void waiting(int pid) {
+		baton.lock();
+		try {
+			if (!waitingInOS[pid]) { //A spurious wakeup waits again without having settled twice
+				waitingInOS[pid] = true;
+				inFlight--;
+				settled.signal();
+			}
+		} finally {
+			baton.unlock();
+		}
+	}
+
+	//Single-threaded model of the scheduling rules; records the processes it hands processors to in 'handed'
+	class Model {
+		int free = processors;
+		final TreeMap<Integer, ArrayDeque<Integer>> ready = new TreeMap<Integer, ArrayDeque<Integer>>(); //Lower value = higher priority
+
+		boolean call(int p, int call) {
+			if (call == START && free > 0 && ready.isEmpty()) {
+				free--;
+				handed.add(p);
+				return true;
+			}
+			if (call == START || call == SCHEDULE) ready.computeIfAbsent(processes[p].priority, priority -> new ArrayDeque<Integer>()).add(p);
+			if (call == SCHEDULE || call == TERMINATE) free++;
+			while (free > 0 && !ready.isEmpty()) {
+				ArrayDeque<Integer> queue = ready.firstEntry().getValue();
+				handed.add(queue.poll());
+				if (queue.isEmpty()) ready.pollFirstEntry();
+				free--;
+			}
+			return true;
+		}
+	}
+}
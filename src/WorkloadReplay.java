@@ -0,0 +1,199 @@
+// Workload replay - drives any OS_sim_interface implementation from a workload file - run with
+//   java WorkloadReplay workload-file [processors] [implementation] [fast|paced] [max live processes]
+//   java WorkloadReplay generate workload-file [processes] [seed]
+//
+// A workload file is text, one process per line (blank lines and lines starting with # are
+// skipped), in arrival order:
+//   arrival-us priority schedules session-us
+// i.e. the process arrives (registers and starts) arrival-us microseconds into the run, calls
+// schedule 'schedules' times, and holds its processor for session-us microseconds in each of
+// its schedules+1 sessions before terminating.
+//
+// 'fast' replays as fast as possible - arrivals and sessions take no time - to measure the
+// scheduler itself. 'paced' keeps the recorded arrival times and holds each processor for the
+// session length, so waits and utilization are those the real workload would see.
+//
+// The file is streamed: lines are read only as the replay reaches them, and no more than
+// 'max live processes' (default 4 per processor) are in flight at once, so a multi-GB trace never
+// has to fit in memory. Each process is a thread - virtual on Java 21+, see LoadDriver - but a
+// platform thread on SE 17, so raise the cap far above the default only on Java 21+.
+//
+// The implementation is ShardedOS, or OS with a scheduling policy: OS (strict priority, the
+// default), OS-aging, OS-mlfq or OS-fair - see implementation.
+//
+// The report gives throughput, start and schedule wait percentiles per priority, and processor
+// utilization (the share of processor time processes spent in their sessions).
+
+//Note that you may use *any* classes in this WorkloadReplay class that are available in SE 17.
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class WorkloadReplay {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length > 0 && args[0].equals("generate")) {
+			int processes = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+			long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+			generate(Paths.get(args[1]), processes, seed);
+			return;
+		}
+		if (args.length < 1) {
+			System.out.println("usage: java WorkloadReplay workload-file [processors] [OS|OS-aging|OS-mlfq|OS-fair|ShardedOS] [fast|paced] [max live processes]");
+			System.out.println("       java WorkloadReplay generate workload-file [processes] [seed]");
+			return;
+		}
+		int processors = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		String implementation = args.length > 2 ? args[2] : "OS";
+		boolean paced = args.length > 3 && args[3].equals("paced");
+		int maxLive = args.length > 4 ? Integer.parseInt(args[4]) : 4 * processors;
+		OS_sim_interface os = implementation(implementation, processors);
+		System.out.println("implementation = " + os.getClass().getName() + ", processors = " + processors + ", mode = " + (paced ? "paced" : "fast") + ", max live processes = " + maxLive);
+		Report report = new WorkloadReplay(os, processors, paced, maxLive).replay(Paths.get(args[0]));
+		System.out.print(report);
+	}
+
+	//The implementation called name: ShardedOS, or OS with the scheduling policy named after the dash
+	//(strict by default). Aging moves a waiting process up a priority every 64 dispatches; the
+	//multilevel feedback queue drops a process a level (up to 3) for each 100 us session and
+	//boosts every 1000 dispatches.
+	public static OS_sim_interface implementation(String name, int processors) {
+		switch (name) {
+			case "ShardedOS": return new ShardedOS(processors);
+			case "OS-aging": return new OS(new AgingPolicy(64));
+			case "OS-mlfq": return new OS(new MultilevelFeedbackPolicy(100_000, 3, 1000));
+			case "OS-fair": return new OS(new FairSharePolicy());
+			default: return new OS(new StrictPriorityPolicy());
+		}
+	}
+
+	//Write a random workload: arrivals every 0-20 us, priorities 0-3 skewed towards low priority
+	//(high values), 0-4 schedules, sessions of 0-50 us
+	public static void generate(Path path, int processes, long seed) throws IOException {
+		Random random = new Random(seed);
+		long arrival = 0;
+		try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+			writer.write("# arrival-us priority schedules session-us\n");
+			for (int p = 0; p < processes; p++) {
+				arrival += random.nextInt(21);
+				int priority = 3 - (int) Math.sqrt(random.nextInt(16));
+				writer.write(arrival + " " + priority + " " + random.nextInt(5) + " " + random.nextInt(51) + "\n");
+			}
+		}
+	}
+
+	public static class Report {
+		public long processes;
+		public long calls; //start, schedule and terminate calls
+		public long elapsedNanos;
+		public double utilization;
+		//Wait histograms by priority, in priority order
+		public final TreeMap<Integer, SchedulerMetrics.LatencyHistogram> startWaits = new TreeMap<Integer, SchedulerMetrics.LatencyHistogram>();
+		public final TreeMap<Integer, SchedulerMetrics.LatencyHistogram> scheduleWaits = new TreeMap<Integer, SchedulerMetrics.LatencyHistogram>();
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append("processes = " + processes + ", elapsed = " + elapsedNanos / 1_000_000 + " ms\n");
+			report.append("processes per second = " + (long) (processes * 1e9 / elapsedNanos)
+					+ ", calls per second = " + (long) (calls * 1e9 / elapsedNanos) + "\n");
+			report.append("processor utilization = " + String.format("%.1f", utilization * 100) + "%\n");
+			for (Integer priority : startWaits.keySet()) {
+				report.append("priority " + priority + " start wait:    " + startWaits.get(priority) + "\n");
+				report.append("priority " + priority + " schedule wait: " + scheduleWaits.get(priority) + "\n");
+			}
+			return report.toString();
+		}
+	}
+
+	final OS_sim_interface os;
+	final int processors;
+	final boolean paced;
+	final int maxLive;
+	final Semaphore live;
+	final AtomicLong busyNanos = new AtomicLong(); //Total time processes have held processors
+	final ReentrantLock statsLock = new ReentrantLock(); //Guards the report's histograms
+	Report report;
+
+	//maxLive caps the processes (threads) in flight at once - see above
+	public WorkloadReplay(OS_sim_interface os, int processors, boolean paced, int maxLive) {
+		if (maxLive < 1) throw new IllegalArgumentException("max live processes must be at least 1: " + maxLive);
+		this.os = os;
+		this.processors = processors;
+		this.paced = paced;
+		this.maxLive = maxLive;
+		this.live = new Semaphore(maxLive);
+	}
+
+	public Report replay(Path path) throws IOException {
+		ThreadFactory factory = LoadDriver.virtualThreadFactory();
+		if (factory == null) factory = Thread::new;
+		report = new Report();
+		os.set_number_of_processors(processors);
+
+		long timeBefore = System.nanoTime();
+		try (BufferedReader reader = Files.newBufferedReader(path)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				String[] fields = line.split("\\s+");
+				long arrival = Long.parseLong(fields[0]) * 1000;
+				int priority = Integer.parseInt(fields[1]);
+				int schedules = Integer.parseInt(fields[2]);
+				long session = Long.parseLong(fields[3]) * 1000;
+				if (paced) {
+					for (long wait; (wait = timeBefore + arrival - System.nanoTime()) > 0; ) LockSupport.parkNanos(wait);
+				}
+				live.acquireUninterruptibly(); //Backpressure on the reader, so only maxLive processes are held in memory
+				int pid = os.reg(priority);
+				report.processes++;
+				report.calls += schedules + 2;
+				factory.newThread(() -> {
+					runProcess(pid, priority, schedules, session);
+					live.release();
+				}).start();
+			}
+		}
+		live.acquireUninterruptibly(maxLive); //Wait for every process to terminate
+		report.elapsedNanos = System.nanoTime() - timeBefore;
+		report.utilization = (double) busyNanos.get() / ((double) report.elapsedNanos * processors);
+		return report;
+	}
+
+	void runProcess(int pid, int priority, int schedules, long session) {
+		long[] waits = new long[schedules + 1];
+		long busy = 0;
+		for (int s = 0; s <= schedules; s++) {
+			long before = System.nanoTime();
+			if (s == 0) os.start(pid); else os.schedule(pid);
+			long dispatched = System.nanoTime();
+			waits[s] = dispatched - before;
+			if (paced) {
+				for (long wait; (wait = dispatched + session - System.nanoTime()) > 0; ) LockSupport.parkNanos(wait); //The session
+			}
+			busy += System.nanoTime() - dispatched;
+		}
+		os.terminate(pid);
+		busyNanos.addAndGet(busy);
+		statsLock.lock();
+		try {
+			report.startWaits.computeIfAbsent(priority, p -> new SchedulerMetrics.LatencyHistogram()).record(waits[0]);
+			SchedulerMetrics.LatencyHistogram scheduleWaits = report.scheduleWaits.computeIfAbsent(priority, p -> new SchedulerMetrics.LatencyHistogram());
+			for (int s = 1; s <= schedules; s++) scheduleWaits.record(waits[s]);
+		} finally {
+			statsLock.unlock();
+		}
+	}
+}